@@ -0,0 +1,130 @@
+package openepsim;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Models used by the benchmarks, generated for any lattice length,
+ * number of states and window.
+ */
+class BenchmarkModels {
+    /**
+     * A multi-species exchange model: in the bulk, neighbouring sites
+     * a, b within a window swap with rate 1 if a < b, or 0.3 if a > b.
+     * At each boundary, a site in state c changes to state (c + 1) %
+     * nstates with rate 0.5.
+     *
+     * @param engine The simulation engine (see SimOptions).
+     */
+    static SimOptions exchangeModel(
+        int L, int nstates, int window, String engine
+    ) throws Exception {
+        JsonObject options = new JsonObject();
+
+        options.addProperty("L", L);
+        options.addProperty("nstates", nstates);
+        options.addProperty("tMax", 1.0);
+        options.addProperty("engine", engine);
+
+        JsonArray transitions = new JsonArray();
+
+        transitions.add(boundary(1, nstates));
+        transitions.add(bulk(window, nstates));
+        transitions.add(boundary(-1, nstates));
+
+        options.add("transitions", transitions);
+
+        return SimOptions.fromJSON(options.toString());
+    }
+
+    private static JsonObject boundary(int site, int nstates) {
+        double [][] rates = new double[nstates][nstates];
+
+        for (int c = 0; c < nstates; c++) {
+            rates[(c + 1) % nstates][c] = 0.5;
+        }
+
+        return spec(1, site, site, rates);
+    }
+
+    private static JsonObject bulk(int window, int nstates) {
+        int d = (int) Math.pow(nstates, window);
+
+        double [][] rates = new double[d][d];
+
+        for (int c = 0; c < d; c++) {
+            int [] digits = new int[window];
+
+            for (int k = window - 1, x = c; k >= 0; k--, x /= nstates) {
+                digits[k] = x % nstates;
+            }
+
+            for (int k = 0; k + 1 < window; k++) {
+                int a = digits[k];
+                int b = digits[k + 1];
+
+                if (a == b) {
+                    continue;
+                }
+
+                digits[k] = b;
+                digits[k + 1] = a;
+
+                int n = 0;
+
+                for (int m = 0; m < window; m++) {
+                    n = nstates * n + digits[m];
+                }
+
+                digits[k] = a;
+                digits[k + 1] = b;
+
+                rates[n][c] = a < b ? 1.0 : 0.3;
+            }
+        }
+
+        return spec(window, 1, -window, rates);
+    }
+
+    private static JsonObject spec(
+        int window, int from, int to, double [][] rates
+    ) {
+        JsonObject spec = new JsonObject();
+
+        spec.addProperty("window", window);
+        spec.addProperty("from", from);
+        spec.addProperty("to", to);
+        spec.addProperty("count", true);
+
+        JsonArray rows = new JsonArray();
+
+        for (int i = 0; i < rates.length; i++) {
+            JsonArray row = new JsonArray();
+
+            for (int j = 0; j < rates[i].length; j++) {
+                row.add(rates[i][j]);
+            }
+
+            rows.add(row);
+        }
+
+        spec.add("rates", rows);
+
+        return spec;
+    }
+
+    /**
+     * A random initial state for options.
+     */
+    static int [] randomState(SimOptions options, long seed) {
+        java.util.Random random = new java.util.Random(seed);
+
+        int [] state = new int[options.L];
+
+        for (int i = 0; i < state.length; i++) {
+            state[i] = random.nextInt(options.nstates);
+        }
+
+        return state;
+    }
+}
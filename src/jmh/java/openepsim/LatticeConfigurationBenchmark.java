@@ -0,0 +1,83 @@
+package openepsim;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading and writing local configurations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LatticeConfigurationBenchmark {
+    @Param({"100", "10000", "1000000"})
+    int L;
+
+    @Param({"2", "3", "5"})
+    int nstates;
+
+    @Param({"1", "2", "3"})
+    int window;
+
+    @Param({"true", "false"})
+    boolean packed;
+
+    private LatticeConfiguration config;
+
+    // Pre-drawn positions and local configurations
+    private int [] positions;
+    private int [] codes;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        SimOptions options = BenchmarkModels.exchangeModel(
+            L, nstates, Math.max(window, 2), SimOptions.ENGINE_LIST);
+
+        config = new LatticeConfiguration(
+            L, nstates, BenchmarkModels.randomState(options, 1), packed);
+        config.setMaxWindow(options.getMaxWindow());
+
+        java.util.Random random = new java.util.Random(2);
+
+        positions = new int[4096];
+        codes = new int[positions.length];
+
+        int d = (int) Math.pow(nstates, window);
+
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = random.nextInt(L - window + 1);
+            codes[i] = random.nextInt(d);
+        }
+    }
+
+    @Benchmark
+    public int getConfigurationInt() {
+        int k = next++ & (positions.length - 1);
+
+        return config.getConfigurationInt(positions[k], window);
+    }
+
+    @Benchmark
+    public int setConfiguration() {
+        int k = next++ & (positions.length - 1);
+
+        config.setConfiguration(codes[k], positions[k], window);
+
+        return k;
+    }
+}
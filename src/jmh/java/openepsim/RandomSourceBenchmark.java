@@ -0,0 +1,50 @@
+package openepsim;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The random numbers drawn per event, for each generator: the score of
+ * event() is an upper bound on the event rate any engine can reach.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RandomSourceBenchmark {
+    @Param({"mt", "splitmix", "xoshiro"})
+    String generator;
+
+    private RandomSource random;
+
+    @Setup
+    public void setup() {
+        random = RandomSource.create(generator, 2);
+    }
+
+    @Benchmark
+    public double exponential() {
+        return random.nextExponential();
+    }
+
+    /**
+     * A waiting time and a uniform value to select the transition.
+     */
+    @Benchmark
+    public double event() {
+        return random.nextExponential() + random.nextDouble();
+    }
+}
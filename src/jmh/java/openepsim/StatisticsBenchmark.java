@@ -0,0 +1,98 @@
+package openepsim;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Density statistics collection: each operation records one event, so
+ * the score is events per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatisticsBenchmark {
+    @Param({"100", "10000", "1000000"})
+    int L;
+
+    @Param({"2", "3", "5"})
+    int nstates;
+
+    @Param({"2"})
+    int window;
+
+    private LatticeConfiguration config;
+    private DensityStatistics stats;
+
+    // Pre-drawn changes to apply
+    private int [] positions;
+    private int [] codes;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        SimOptions options = BenchmarkModels.exchangeModel(
+            L, nstates, window, SimOptions.ENGINE_LIST);
+
+        config = new LatticeConfiguration(
+            L, nstates, BenchmarkModels.randomState(options, 1));
+        config.setMaxWindow(options.getMaxWindow());
+
+        // Each benchmark method gets a fresh setup; update() ends the
+        // incremental recording started here on its first call
+        stats = new DensityStatistics(L, nstates, options.transitions);
+        stats.start(config);
+
+        java.util.Random random = new java.util.Random(2);
+
+        positions = new int[4096];
+        codes = new int[positions.length];
+
+        int d = (int) Math.pow(nstates, window);
+
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = random.nextInt(L - window + 1);
+            codes[i] = random.nextInt(d);
+        }
+    }
+
+    /**
+     * DensityStatistics.update(): O(L) per event.
+     */
+    @Benchmark
+    public double update() {
+        int k = next++ & (positions.length - 1);
+
+        config.setConfiguration(codes[k], positions[k], window);
+        stats.update(config, 0.1);
+
+        return stats.getTotalTime();
+    }
+
+    /**
+     * Incremental recording: O(window) per event.
+     */
+    @Benchmark
+    public double incremental() {
+        int k = next++ & (positions.length - 1);
+
+        config.setConfiguration(codes[k], positions[k], window);
+        stats.advance(0.1);
+        stats.updateSites(config, positions[k], window);
+
+        return stats.getTotalTime();
+    }
+}
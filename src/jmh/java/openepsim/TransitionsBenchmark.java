@@ -0,0 +1,125 @@
+package openepsim;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.math3.random.MersenneTwister;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Transition selection and update: each operation is one event, so the
+ * score is events per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransitionsBenchmark {
+    @Param({"100", "10000", "1000000"})
+    int L;
+
+    @Param({"2", "3", "5"})
+    int nstates;
+
+    @Param({"2", "3"})
+    int window;
+
+    @Param({"list", "tree", "rejection"})
+    String engine;
+
+    private Transitions transitions;
+    private DensityStatistics stats;
+    private MersenneTwister random;
+
+    // Pre-drawn positions for clearDirtyRecalculate()
+    private int [] positions;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        SimOptions options
+            = BenchmarkModels.exchangeModel(L, nstates, window, engine);
+
+        LatticeConfiguration config = new LatticeConfiguration(
+            L, nstates, BenchmarkModels.randomState(options, 1));
+        config.setMaxWindow(options.getMaxWindow());
+
+        transitions = new Transitions(
+            config, options.transitions, options.useTree());
+
+        stats = new DensityStatistics(L, nstates, options.transitions);
+        stats.start(config);
+
+        random = new MersenneTwister(2);
+
+        positions = new int[4096];
+
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = random.nextInt(L - window + 1);
+        }
+    }
+
+    /**
+     * One event (for the rejection engine, one candidate event).
+     */
+    @Benchmark
+    public boolean doTransition() {
+        if (engine.equals(SimOptions.ENGINE_REJECTION)) {
+            return transitions.tryTransition(
+                random.nextDouble() * transitions.getBoundingRate(), null);
+        }
+
+        transitions.doTransition(
+            random.nextDouble() * transitions.getExitRate());
+
+        return true;
+    }
+
+    /**
+     * One event, counting transitions and recording density statistics
+     * incrementally, as in OpenEPSimulation.run().
+     */
+    @Benchmark
+    public boolean doTransitionWithStats() {
+        if (engine.equals(SimOptions.ENGINE_REJECTION)) {
+            double boundingRate = transitions.getBoundingRate();
+
+            stats.advance(-Math.log(random.nextDouble()) / boundingRate);
+
+            return transitions.tryTransition(
+                random.nextDouble() * boundingRate, stats);
+        }
+
+        double exitRate = transitions.getExitRate();
+
+        stats.advance(-Math.log(random.nextDouble()) / exitRate);
+
+        transitions.doTransition(random.nextDouble() * exitRate, stats);
+
+        return true;
+    }
+
+    /**
+     * Invalidate and recalculate the transitions around one window.
+     */
+    @Benchmark
+    public double clearDirtyRecalculate() {
+        int position = positions[next++ & (positions.length - 1)];
+
+        transitions.clearDirty(position, window);
+        transitions.recalculate(position, window);
+
+        return transitions.getExitRate();
+    }
+}
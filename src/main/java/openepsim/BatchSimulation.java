@@ -0,0 +1,350 @@
+package openepsim;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Run a batch of simulations in one JVM, for example a scan over
+ * boundary rates.  Avoids paying JVM start up, and JIT compilation of the
+ * simulation loop, for every point.
+ *
+ * The batch is read from stdin as JSON, either as a list of complete
+ * option sets:
+ *
+ * <pre>
+ * { "runs": [ {...options...}, {...options...} ] }
+ * </pre>
+ *
+ * or as base options plus a sweep over transition rates:
+ *
+ * <pre>
+ * {
+ *   "base": {...options...},
+ *   "sweep": [
+ *     { "transition": 0, "to": 1, "from": 0, "values": [0.1, 0.2, 0.3] },
+ *     { "transition": 2, "to": 0, "from": 1, "values": [0.5, 1.0] }
+ *   ]
+ * }
+ * </pre>
+ *
+ * where each sweep item varies rates[to][from] of the given transition
+ * (index into the transitions list, which must be given by rates rather
+ * than rules), and all combinations of values are run.  Points run in
+ * parallel on "threads" threads (0, the default, for all available
+ * processors).
+ *
+ * One JSON object per point is written to stdout, one per line, as each
+ * point finishes.  Each is the output of OpenEPSimulation, with the point
+ * index and (for sweeps) the swept values added.  Points may not be
+ * verbose, which would mix configurations into these lines.
+ *
+ * Sweep points would all write the files named in the base options at
+ * the same time, so each writes to its own: ".point" and the point index
+ * are appended to sampleFile, checkpointFile and trajectoryFile.  The
+ * "runs" points keep the names they give, so a batch in which two points
+ * (or two options of one point) name the same file is rejected.
+ */
+public class BatchSimulation {
+    private static class Sweep {
+        int transition;
+        int to;
+        int from;
+        double [] values;
+    }
+
+    private static class BatchOptions {
+        JsonObject [] runs;
+        JsonObject base;
+        Sweep [] sweep;
+        int threads;
+    }
+
+    // Options naming files written during a run, see pointFiles()
+    private static final String [] FILE_OPTIONS = {
+        "sampleFile", "checkpointFile", "trajectoryFile"
+    };
+
+    private final BatchOptions batch;
+
+    private final int nruns;
+    private final int npoints;
+
+    /**
+     * Construct from the batch specification in JSON format (see above).
+     */
+    public BatchSimulation(String json) throws Exception {
+        Gson gson = new Gson();
+
+        batch = gson.fromJson(json, BatchOptions.class);
+
+        if (batch == null) {
+            throw new Exception("Empty batch");
+        }
+
+        nruns = batch.runs == null ? 0 : batch.runs.length;
+
+        int nsweep = 0;
+
+        if (batch.sweep != null) {
+            if (batch.base == null) {
+                throw new Exception("sweep requires base options");
+            }
+
+            nsweep = 1;
+
+            for (int i = 0; i < batch.sweep.length; i++) {
+                if (
+                    batch.sweep[i].values == null
+                    ||
+                    batch.sweep[i].values.length == 0
+                ) {
+                    throw new Exception("sweep " + i + ": values missing");
+                }
+
+                nsweep *= batch.sweep[i].values.length;
+            }
+        } else if (batch.base != null) {
+            // Base options alone are a single point
+            nsweep = 1;
+        }
+
+        npoints = nruns + nsweep;
+
+        if (batch.threads < 0) {
+            throw new Exception("threads must be at least zero.");
+        }
+
+        checkFiles();
+    }
+
+    /**
+     * Check that no two points, which run at the same time, write the
+     * same file.
+     */
+    private void checkFiles() throws Exception {
+        Set<String> files = new HashSet<String>();
+
+        for (int k = 0; k < npoints; k++) {
+            JsonObject options = k < nruns ? batch.runs[k] : batch.base;
+
+            if (options == null) {
+                continue;
+            }
+
+            for (String name : FILE_OPTIONS) {
+                if (!options.has(name) || options.get(name).isJsonNull()) {
+                    continue;
+                }
+
+                String file = options.get(name).getAsString();
+
+                if (k >= nruns) {
+                    file += ".point" + k;
+                }
+
+                if (!files.add(file)) {
+                    throw new Exception(
+                        "point " + k + ": " + name + " " + file
+                        + " is written by another point");
+                }
+            }
+        }
+    }
+
+    /**
+     * The number of points in the batch.
+     */
+    public int getNumPoints() {
+        return npoints;
+    }
+
+    /**
+     * The swept values for sweep point k (counting from 0 after the
+     * "runs" points), with the last sweep item varying fastest.
+     */
+    private double [] sweepValues(int k) {
+        int n = batch.sweep == null ? 0 : batch.sweep.length;
+
+        double [] values = new double[n];
+
+        for (int i = n - 1; i >= 0; i--) {
+            double [] itemValues = batch.sweep[i].values;
+
+            values[i] = itemValues[k % itemValues.length];
+            k /= itemValues.length;
+        }
+
+        return values;
+    }
+
+    /**
+     * Build the options for point k.
+     */
+    public SimOptions getOptions(int k) throws Exception {
+        SimOptions options = k < nruns
+            ? SimOptions.fromJSON(batch.runs[k].toString())
+            : SimOptions.fromJSON(sweepOptions(k).toString());
+
+        if (options.verbose > 0) {
+            throw new Exception(
+                "verbose can't be used in a batch: its output would mix with"
+                + " the results.");
+        }
+
+        return options;
+    }
+
+    /**
+     * Give sweep point k its own files, by appending ".point" and k to
+     * the names of the files options would write.
+     */
+    private static void pointFiles(JsonObject options, int k) {
+        for (String name : FILE_OPTIONS) {
+            if (options.has(name) && !options.get(name).isJsonNull()) {
+                options.addProperty(
+                    name, options.get(name).getAsString() + ".point" + k);
+            }
+        }
+    }
+
+    /**
+     * The options of sweep point k (counting from 0 for the first point,
+     * including the "runs" points), as JSON.
+     */
+    private JsonObject sweepOptions(int k) throws Exception {
+        JsonObject options = batch.base.deepCopy();
+
+        double [] values = sweepValues(k - nruns);
+
+        for (int i = 0; i < values.length; i++) {
+            Sweep item = batch.sweep[i];
+
+            JsonArray transitions = options.getAsJsonArray("transitions");
+
+            if (
+                transitions == null
+                ||
+                item.transition < 0
+                ||
+                item.transition >= transitions.size()
+            ) {
+                throw new Exception(
+                    "sweep " + i + ": transition " + item.transition
+                    + " invalid");
+            }
+
+            JsonObject spec = transitions.get(item.transition)
+                .getAsJsonObject();
+
+            if (spec.has("rules") && !spec.get("rules").isJsonNull()) {
+                throw new Exception(
+                    "sweep " + i + ": transition " + item.transition
+                    + " is given by rules; sweeps need rates");
+            }
+
+            JsonArray rates = spec.getAsJsonArray("rates");
+
+            if (
+                rates == null
+                ||
+                item.to < 0 || item.to >= rates.size()
+                ||
+                item.from < 0
+                ||
+                item.from >= rates.get(item.to).getAsJsonArray().size()
+            ) {
+                throw new Exception("sweep " + i + ": to, from invalid");
+            }
+
+            rates.get(item.to).getAsJsonArray()
+                .set(item.from, new JsonPrimitive(values[i]));
+        }
+
+        pointFiles(options, k);
+
+        return options;
+    }
+
+    /**
+     * Run point k, returning its results as a single line of JSON.
+     */
+    public String runPoint(int k) {
+        final long startTime = System.currentTimeMillis();
+
+        String prefix = "{\"point\": " + k;
+
+        if (k >= nruns) {
+            prefix += ", \"sweep\": "
+                + new Gson().toJson(sweepValues(k - nruns));
+        }
+
+        String result;
+
+        try {
+            result = OpenEPSimulation.runToJSON(getOptions(k), startTime);
+        } catch (Exception e) {
+            return prefix + ", \"error\": "
+                + new Gson().toJson(String.valueOf(e.getMessage())) + "}";
+        }
+
+        // Drop the opening brace, and the line breaks (Gson escapes any
+        // within strings, so these are only between items)
+        return prefix + ", " + result.substring(1).replace("\n", "");
+    }
+
+    /**
+     * Run all points, writing the result of each to stdout as it
+     * finishes.
+     */
+    public void run() throws Exception {
+        int threads = batch.threads;
+
+        if (threads == 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(threads, npoints)));
+
+        try {
+            CompletionService<String> completion
+                = new ExecutorCompletionService<String>(executor);
+
+            for (int k = 0; k < npoints; k++) {
+                final int point = k;
+
+                completion.submit(new Callable<String>() {
+                    public String call() {
+                        return runPoint(point);
+                    }
+                });
+            }
+
+            for (int k = 0; k < npoints; k++) {
+                System.out.println(completion.take().get());
+                System.out.flush();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Read a batch specification from stdin, and run it.
+     */
+    public static void main(String [] args) throws Exception {
+        BatchSimulation batch = new BatchSimulation(SimUtil.getStdIn());
+
+        batch.run();
+    }
+}
@@ -0,0 +1,190 @@
+package openepsim;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The full state of a simulation part way through, so that a run can be
+ * stopped and continued exactly as if it had never stopped.
+ *
+ * Format (big-endian):
+ *
+ * <pre>
+ * int MAGIC, int VERSION, int L, int nstates, UTF engine,
+ * boolean recording, double t, double nextCheckpoint, double exitRate,
+ * long candidates, long accepted, int nextRateChange,
+ * int[L] lattice configuration,
+ * int n, byte[n] serialized random number generator,
+ * statistics (see DensityStatistics.writeState())
+ * </pre>
+ */
+class Checkpoint {
+    static final int MAGIC = 0x4f455043; // "OEPC"
+    static final int VERSION = 3;
+
+    // Whether statistics are being recorded (past tSkip)
+    boolean recording;
+
+    // Time from the start of the current part of the run (unrecorded or
+    // recorded)
+    double t;
+
+    // Time from the start of the run of the next checkpoint
+    double nextCheckpoint;
+
+    // Transitions.getExitRate(), which is not recomputed exactly
+    double exitRate;
+
+    // Rejection sampling counts
+    long candidates;
+    long accepted;
+
+    // Index of the next scheduled rate change to apply
+    int nextRateChange;
+
+    LatticeConfiguration config;
+    RandomSource random;
+
+    /**
+     * Write to file, along with stats.  The file is written under a
+     * temporary name and then renamed, so that a run killed while writing
+     * leaves the previous checkpoint intact.
+     */
+    void write(String file, SimOptions options, DensityStatistics stats)
+        throws IOException {
+        Path path = Paths.get(file);
+        Path tmp = Paths.get(file + ".tmp");
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(tmp.toFile()), 1 << 16));
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(options.L);
+            out.writeInt(options.nstates);
+            out.writeUTF(options.engine);
+
+            out.writeBoolean(recording);
+            out.writeDouble(t);
+            out.writeDouble(nextCheckpoint);
+            out.writeDouble(exitRate);
+            out.writeLong(candidates);
+            out.writeLong(accepted);
+            out.writeInt(nextRateChange);
+
+            for (int i = 0; i < options.L; i++) {
+                out.writeInt(config.getConfigurationInt(i));
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream objects = new ObjectOutputStream(bytes);
+
+            objects.writeObject(random);
+            objects.close();
+
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+
+            stats.writeState(out);
+        } finally {
+            out.close();
+        }
+
+        Files.move(
+            tmp, path,
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE
+        );
+    }
+
+    /**
+     * Read a checkpoint written for the same options, restoring stats.
+     */
+    static Checkpoint read(
+        String file, SimOptions options, DensityStatistics stats
+    ) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(file), 1 << 16));
+
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + ": not a checkpoint file");
+            }
+
+            int version = in.readInt();
+
+            if (version != VERSION) {
+                throw new IOException(
+                    file + ": unsupported checkpoint version " + version);
+            }
+
+            int L = in.readInt();
+            int nstates = in.readInt();
+            String engine = in.readUTF();
+
+            if (
+                L != options.L
+                ||
+                nstates != options.nstates
+                ||
+                !engine.equals(options.engine)
+            ) {
+                throw new IOException(
+                    file + ": checkpoint L, nstates or engine don't match");
+            }
+
+            Checkpoint checkpoint = new Checkpoint();
+
+            checkpoint.recording = in.readBoolean();
+            checkpoint.t = in.readDouble();
+            checkpoint.nextCheckpoint = in.readDouble();
+            checkpoint.exitRate = in.readDouble();
+            checkpoint.candidates = in.readLong();
+            checkpoint.accepted = in.readLong();
+            checkpoint.nextRateChange = in.readInt();
+
+            int [] sites = new int[L];
+
+            for (int i = 0; i < L; i++) {
+                sites[i] = in.readInt();
+            }
+
+            checkpoint.config = new LatticeConfiguration(
+                L, nstates, sites,
+                LatticeConfiguration.isPackedByDefault(nstates),
+                options.periodic);
+
+            byte [] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+
+            ObjectInputStream objects
+                = new ObjectInputStream(new ByteArrayInputStream(bytes));
+
+            try {
+                checkpoint.random = (RandomSource) objects.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(file + ": invalid random state", e);
+            }
+
+            stats.readState(in);
+
+            return checkpoint;
+        } finally {
+            in.close();
+        }
+    }
+}
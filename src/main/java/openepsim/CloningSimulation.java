@@ -0,0 +1,437 @@
+package openepsim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.math3.random.MersenneTwister;
+
+import com.google.gson.Gson;
+
+/**
+ * Estimate the scaled cumulant generating function
+ *
+ *     psi(s) = lim (1 / t) log E[exp(s J_t)]
+ *
+ * of the integrated current J_t of the counted transitions (each
+ * transition weighted as in LocalTransitionSpec.currentWeights) with the
+ * cloning algorithm (population dynamics).
+ *
+ * A population of options.clones clones, each a lattice with its own
+ * Transitions and random stream, evolves with the unbiased dynamics.
+ * Every cloningInterval, each clone is given the weight exp(s dJ), with dJ
+ * its current over the interval, and the population is resampled in
+ * proportion to the weights (systematic resampling), the chosen clones'
+ * lattices being copied.  The log of the mean weight, summed over the
+ * intervals after tSkip and divided by the time, estimates psi(s).  The
+ * estimate is exact as the population grows; the larger |s|, the more the
+ * weights spread out and the more clones are needed.
+ *
+ * Between resamplings the clones evolve in parallel.  Each clone slot has
+ * its own random stream derived from the seed, as replicas do (see
+ * RandomSource.create()), and resampling has another, so a run can be
+ * repeated exactly regardless of the number of threads.
+ */
+public class CloningSimulation {
+    private class CloningResults {
+        long seed;
+        double bias;
+        int clones;
+        long intervals;
+        double tTotal;
+        double scgf;
+        double current;
+        double [][] density;
+    }
+
+    private class Clone {
+        final LatticeConfiguration config;
+        final Transitions transitions;
+
+        // Integrated current since the last resampling, and along the
+        // clone's line of ancestors since recording started
+        double current;
+        double lineageCurrent;
+
+        Clone() {
+            config = new LatticeConfiguration(
+                options.L,
+                options.nstates,
+                options.initialState,
+                LatticeConfiguration.isPackedByDefault(options.nstates),
+                options.periodic
+            );
+            config.setMaxWindow(options.getMaxWindow());
+
+            transitions = new Transitions(
+                config, options.transitions, options.useTree());
+        }
+
+        /**
+         * A copy of other.
+         */
+        Clone(Clone other) {
+            config = new LatticeConfiguration(other.config);
+            transitions = new Transitions(other.transitions, config);
+        }
+
+        /**
+         * Run the Gillespie algorithm on this clone for time dt, adding
+         * up the current.
+         */
+        void advance(RandomSource random, double dt) {
+            double t = 0;
+
+            while (true) {
+                double exitRate = transitions.getExitRate();
+
+                if (exitRate <= 0) {
+                    return;
+                }
+
+                t += random.nextExponential() / exitRate;
+
+                if (t >= dt) {
+                    return;
+                }
+
+                if (
+                    !transitions.doTransition(random.nextDouble() * exitRate)
+                ) {
+                    continue;
+                }
+
+                int spec = transitions.getLastSpec();
+
+                if (counted[spec]) {
+                    current += weights[spec] == null
+                        ? 1
+                        : weights[spec][transitions.getLastConfiguration()]
+                            [transitions.getLastFromConfiguration()];
+                }
+            }
+        }
+
+        /**
+         * Become a copy of other, with zero current since the last
+         * resampling.
+         */
+        void copyFrom(Clone other) {
+            config.copyFrom(other.config);
+            transitions.copyFrom(other.transitions);
+
+            current = 0;
+            lineageCurrent = other.lineageCurrent;
+        }
+    }
+
+    private final SimOptions options;
+    private final long seed;
+    private final int threads;
+
+    // The weight of each transition in the current (see
+    // SimOptions.LocalTransitionSpec.getCurrentWeights()), for the counted
+    // specs
+    private final boolean [] counted;
+    private final double [][][] weights;
+
+    // The clones, and the clones they are resampled into
+    private Clone [] population;
+    private Clone [] next;
+
+    private final RandomSource [] randoms;
+    private final RandomSource random;
+
+    // Scratch space for resample()
+    private final double [] cloneWeights;
+    private final int [] parents;
+
+    // Recorded intervals: their number and total length, and the sum of
+    // the logs of the mean weights
+    private long intervals;
+    private double tTotal;
+    private double logWeightSum;
+
+    // Densities of the population at the end of each recorded interval
+    private final DensityStatistics stats;
+
+    /**
+     * Set up the population for the run specified by options, with
+     * options.clones at least 2.
+     */
+    public CloningSimulation(SimOptions options) {
+        this.options = options;
+
+        // Choose a seed if none was given, so we can report it
+        long seed = options.seed;
+
+        while (seed == 0) {
+            seed = new MersenneTwister().nextLong();
+        }
+
+        this.seed = seed;
+
+        int threads = options.threads;
+
+        if (threads == 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        this.threads = Math.max(1, Math.min(threads, options.clones));
+
+        int nspecs = options.transitions.length;
+
+        counted = new boolean[nspecs];
+        weights = new double[nspecs][][];
+
+        for (int i = 0; i < nspecs; i++) {
+            counted[i] = options.transitions[i].count;
+
+            if (counted[i]) {
+                weights[i] = options.transitions[i].getCurrentWeights(
+                    options.nstates);
+            }
+        }
+
+        int n = options.clones;
+
+        population = new Clone[n];
+        next = new Clone[n];
+        randoms = new RandomSource[n];
+
+        for (int k = 0; k < n; k++) {
+            population[k] = k > 0 ? new Clone(population[0]) : new Clone();
+            next[k] = new Clone(population[0]);
+            randoms[k] = RandomSource.create(options.generator, seed, k);
+        }
+
+        random = RandomSource.create(options.generator, seed, n);
+
+        cloneWeights = new double[n];
+        parents = new int[n];
+
+        stats = new DensityStatistics(
+            options.L, options.nstates, options.transitions);
+    }
+
+    /**
+     * Work on the clones lo, ..., hi - 1.
+     */
+    private interface RangeTask {
+        void run(int lo, int hi);
+    }
+
+    /**
+     * Run task for consecutive ranges of clones covering the population,
+     * one per thread, returning once all are done.
+     */
+    private void forRanges(ExecutorService executor, final RangeTask task)
+        throws InterruptedException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+        int n = population.length;
+
+        for (int k = 0; k < threads; k++) {
+            final int lo = (int) ((long) n * k / threads);
+            final int hi = (int) ((long) n * (k + 1) / threads);
+
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    task.run(lo, hi);
+
+                    return null;
+                }
+            });
+        }
+
+        DomainSimulation.invokeAll(executor, tasks);
+    }
+
+    /**
+     * Run every clone for time dt.
+     */
+    private void advance(ExecutorService executor, final double dt)
+        throws InterruptedException {
+        forRanges(executor, new RangeTask() {
+            public void run(int lo, int hi) {
+                for (int k = lo; k < hi; k++) {
+                    population[k].advance(randoms[k], dt);
+                }
+            }
+        });
+    }
+
+    /**
+     * Weight the clones by their currents over the last interval, of
+     * length dt, and resample the population.  Records the interval if
+     * recording.
+     */
+    private void resample(
+        ExecutorService executor, double dt, boolean recording
+    ) throws InterruptedException {
+        int n = population.length;
+        double s = options.cloningBias;
+
+        // Weights relative to the largest, to avoid overflow
+        double max = Double.NEGATIVE_INFINITY;
+
+        for (int k = 0; k < n; k++) {
+            max = Math.max(max, s * population[k].current);
+        }
+
+        double sum = 0;
+
+        for (int k = 0; k < n; k++) {
+            cloneWeights[k] = Math.exp(s * population[k].current - max);
+
+            sum += cloneWeights[k];
+
+            if (recording) {
+                population[k].lineageCurrent += population[k].current;
+            }
+        }
+
+        if (recording) {
+            intervals++;
+            tTotal += dt;
+            logWeightSum += max + Math.log(sum / n);
+        }
+
+        // Systematic resampling: clone k is the parent of the new clones
+        // at points u + i sum / n falling in its share of [0, sum)
+        double step = sum / n;
+        double u = random.nextDouble() * step;
+
+        int parent = 0;
+        double cumulative = cloneWeights[0];
+
+        for (int i = 0; i < n; i++) {
+            double point = u + i * step;
+
+            while (cumulative <= point && parent < n - 1) {
+                parent++;
+                cumulative += cloneWeights[parent];
+            }
+
+            parents[i] = parent;
+        }
+
+        forRanges(executor, new RangeTask() {
+            public void run(int lo, int hi) {
+                for (int i = lo; i < hi; i++) {
+                    next[i].copyFrom(population[parents[i]]);
+                }
+            }
+        });
+
+        Clone [] swap = population;
+        population = next;
+        next = swap;
+
+        if (recording) {
+            for (int k = 0; k < n; k++) {
+                stats.update(population[k].config, dt / n);
+            }
+        }
+    }
+
+    /**
+     * Run the population for time tEnd, resampling every
+     * cloningInterval, and recording the intervals if recording.
+     */
+    private void run(
+        ExecutorService executor, double tEnd, boolean recording
+    ) throws InterruptedException {
+        double interval = options.cloningInterval;
+
+        long n = (long) Math.ceil(tEnd / interval);
+
+        for (long k = 0; k < n; k++) {
+            double dt = Math.min(interval, tEnd - k * interval);
+
+            advance(executor, dt);
+            resample(executor, dt, recording);
+        }
+    }
+
+    /**
+     * Run for tSkip, letting the population settle into the biased
+     * ensemble, then to tMax recording the estimates, on options.threads
+     * threads (0 for all available processors).
+     */
+    public void simulate() throws InterruptedException {
+        double tMax = options.tMax;
+        double tSkip = Math.min(options.tSkip, tMax);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            run(executor, tSkip, false);
+            run(executor, tMax - tSkip, true);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * The estimate of the scaled cumulant generating function psi(s), at
+     * s = options.cloningBias.
+     */
+    public double getScgf() {
+        return logWeightSum / tTotal;
+    }
+
+    /**
+     * The estimate of the mean current per unit time in the biased
+     * ensemble, psi'(s): the current along the lines of ancestors of the
+     * final population (the current of the last interval alone, weighted,
+     * would describe the end of a biased trajectory, not its typical
+     * part).
+     */
+    public double getCurrent() {
+        double sum = 0;
+
+        for (Clone clone : population) {
+            sum += clone.lineageCurrent;
+        }
+
+        return sum / population.length / tTotal;
+    }
+
+    /**
+     * The configuration of clone k.
+     */
+    public LatticeConfiguration getConfiguration(int k) {
+        return population[k].config;
+    }
+
+    /**
+     * Return a string summary of the run (the estimates, and the density
+     * profiles of the population at the ends of the intervals, averaged)
+     * in JSON format.
+     */
+    public String summary() {
+        CloningResults results = new CloningResults();
+
+        results.seed = seed;
+        results.bias = options.cloningBias;
+        results.clones = population.length;
+        results.intervals = intervals;
+        results.tTotal = tTotal;
+
+        if (tTotal > 0) {
+            results.scgf = getScgf();
+            results.current = getCurrent();
+
+            results.density = new double[options.nstates][];
+
+            for (int c = 0; c < options.nstates; c++) {
+                results.density[c] = stats.getDensityProfile(c);
+            }
+        }
+
+        return new Gson().toJson(results);
+    }
+}
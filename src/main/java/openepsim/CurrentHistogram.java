@@ -0,0 +1,282 @@
+package openepsim;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Distribution of a value observed many times, such as the integrated
+ * current of a transition over fixed time windows: an exact record of
+ * the first four moments, and a histogram in a fixed number of bins.
+ *
+ * The bins have width a power of two (starting at 1, suiting integer
+ * currents), and are aligned to multiples of the width.  When a value
+ * falls outside the bins, they are moved if the values seen so far fit,
+ * and otherwise merged in pairs, doubling the width.  So memory is
+ * bounded, and the histogram covers the range of the values at the
+ * finest resolution which fits.
+ */
+class CurrentHistogram {
+    /**
+     * The number of bins.
+     */
+    static final int BINS = 128;
+
+    /**
+     * Summary of the distribution, for output.  cumulants[k - 1] is the
+     * k-th cumulant for k = 1, ..., 4, and scaledCumulants are those
+     * divided by the window length, estimating the derivatives of the
+     * scaled cumulant generating function.  histogram[k] is the number
+     * of values in [binStart + k binWidth, binStart + (k + 1) binWidth),
+     * leaving out empty bins at either end.
+     */
+    static class Results {
+        long windows;
+        double mean;
+        double variance;
+        double [] cumulants;
+        double [] scaledCumulants;
+        double binStart;
+        double binWidth;
+        long [] histogram;
+    }
+
+    private final long [] bins = new long[BINS];
+
+    private double width = 1;
+
+    // bins[k] holds the values in [(first + k) width, (first + k + 1) width)
+    private long first;
+
+    private long n;
+
+    // Sums of (value - shift)^p for p = 1, ..., 4, with shift the first
+    // value, to avoid cancellation when the mean is large
+    private double shift;
+    private final double [] powerSums = new double[4];
+
+    /**
+     * Record one value.
+     */
+    void add(double x) {
+        if (n == 0) {
+            shift = x;
+            first = (long) Math.floor(x / width) - BINS / 2;
+        }
+
+        double y = x - shift;
+        double p = y;
+
+        for (int k = 0; k < powerSums.length; k++) {
+            powerSums[k] += p;
+            p *= y;
+        }
+
+        addToBin(x, 1);
+
+        n++;
+    }
+
+    /**
+     * Add count values x to the bins, moving or merging them to fit.
+     */
+    private void addToBin(double x, long count) {
+        long index = (long) Math.floor(x / width);
+
+        while (index < first || index >= first + BINS) {
+            // The range of the non-empty bins and index
+            int k = 0;
+            int m = BINS - 1;
+
+            while (k < m && bins[k] == 0) {
+                k++;
+            }
+
+            while (m > k && bins[m] == 0) {
+                m--;
+            }
+
+            long lo = Math.min(first + k, index);
+            long hi = Math.max(first + m, index);
+
+            if (hi - lo < BINS) {
+                move(index < first ? index : index - BINS + 1);
+            } else {
+                coarsen();
+                index = (long) Math.floor(x / width);
+            }
+        }
+
+        bins[(int) (index - first)] += count;
+    }
+
+    /**
+     * Move the bins to start at index newFirst.  Every non-empty bin must
+     * stay in range.
+     */
+    private void move(long newFirst) {
+        long [] old = bins.clone();
+
+        Arrays.fill(bins, 0);
+
+        for (int k = 0; k < BINS; k++) {
+            if (old[k] != 0) {
+                bins[(int) (first + k - newFirst)] = old[k];
+            }
+        }
+
+        first = newFirst;
+    }
+
+    /**
+     * Double the bin width, merging pairs of bins.
+     */
+    private void coarsen() {
+        long [] old = bins.clone();
+        long newFirst = Math.floorDiv(first, 2);
+
+        Arrays.fill(bins, 0);
+
+        for (int k = 0; k < BINS; k++) {
+            bins[(int) (Math.floorDiv(first + k, 2) - newFirst)] += old[k];
+        }
+
+        first = newFirst;
+        width *= 2;
+    }
+
+    /**
+     * Add the values recorded by other to these.
+     */
+    void merge(CurrentHistogram other) {
+        if (other.n == 0) {
+            return;
+        }
+
+        if (n == 0) {
+            shift = other.shift;
+            width = other.width;
+            first = other.first;
+        }
+
+        // Moments of other about our shift
+        double d = other.shift - shift;
+        double [] s = other.powerSums;
+        double m = other.n;
+
+        powerSums[0] += s[0] + m * d;
+        powerSums[1] += s[1] + 2 * d * s[0] + m * d * d;
+        powerSums[2] += s[2] + 3 * d * s[1] + 3 * d * d * s[0]
+            + m * d * d * d;
+        powerSums[3] += s[3] + 4 * d * s[2] + 6 * d * d * s[1]
+            + 4 * d * d * d * s[0] + m * d * d * d * d;
+
+        // So that each of other's bins lies within one of ours
+        while (width < other.width) {
+            coarsen();
+        }
+
+        for (int k = 0; k < BINS; k++) {
+            if (other.bins[k] != 0) {
+                addToBin((other.first + k) * other.width, other.bins[k]);
+            }
+        }
+
+        n += other.n;
+    }
+
+    /**
+     * The cumulants kappa_1, ..., kappa_4 of the values recorded.  NaN
+     * if there are none.
+     */
+    double [] getCumulants() {
+        double m = powerSums[0] / n;
+        double s2 = powerSums[1] / n;
+        double s3 = powerSums[2] / n;
+        double s4 = powerSums[3] / n;
+
+        // Central moments
+        double mu2 = s2 - m * m;
+        double mu3 = s3 - 3 * m * s2 + 2 * m * m * m;
+        double mu4 = s4 - 4 * m * s3 + 6 * m * m * s2 - 3 * m * m * m * m;
+
+        return new double [] {shift + m, mu2, mu3, mu4 - 3 * mu2 * mu2};
+    }
+
+    /**
+     * Summary for windows of length window.
+     */
+    Results getResults(double window) {
+        Results results = new Results();
+
+        results.windows = n;
+
+        if (n == 0) {
+            return results;
+        }
+
+        results.cumulants = getCumulants();
+        results.mean = results.cumulants[0];
+        results.variance = results.cumulants[1];
+
+        results.scaledCumulants = new double[results.cumulants.length];
+
+        for (int k = 0; k < results.cumulants.length; k++) {
+            results.scaledCumulants[k] = results.cumulants[k] / window;
+        }
+
+        int lo = 0;
+        int hi = BINS - 1;
+
+        while (bins[lo] == 0) {
+            lo++;
+        }
+
+        while (bins[hi] == 0) {
+            hi--;
+        }
+
+        results.binStart = (first + lo) * width;
+        results.binWidth = width;
+        results.histogram = Arrays.copyOfRange(bins, lo, hi + 1);
+
+        return results;
+    }
+
+    /**
+     * Write the complete state to out, for Checkpoint.
+     */
+    void writeState(DataOutputStream out) throws IOException {
+        out.writeLong(n);
+        out.writeDouble(width);
+        out.writeLong(first);
+        out.writeDouble(shift);
+
+        for (int k = 0; k < powerSums.length; k++) {
+            out.writeDouble(powerSums[k]);
+        }
+
+        for (int k = 0; k < BINS; k++) {
+            out.writeLong(bins[k]);
+        }
+    }
+
+    /**
+     * Restore the state written by writeState().
+     */
+    void readState(DataInputStream in) throws IOException {
+        n = in.readLong();
+        width = in.readDouble();
+        first = in.readLong();
+        shift = in.readDouble();
+
+        for (int k = 0; k < powerSums.length; k++) {
+            powerSums[k] = in.readDouble();
+        }
+
+        for (int k = 0; k < BINS; k++) {
+            bins[k] = in.readLong();
+        }
+    }
+}
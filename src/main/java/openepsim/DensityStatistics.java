@@ -1,5 +1,9 @@
 package openepsim;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 import com.google.gson.Gson;
 
 /**
@@ -7,11 +11,20 @@ import com.google.gson.Gson;
  * primarily the site-wise per-species densities.
  */
 public class DensityStatistics {
+    /**
+     * Minimum number of batches before isPrecise() can be true.
+     */
+    public static final int MIN_BATCHES = 10;
+
     private class DensityResults {
         double tTotal;
         double [][] density;
         double [][] speciesDensity;
         int [][][] counts;
+        double [][] densityError;
+        double [][][] rateError;
+        double [][] correlation;
+        CurrentHistogram.Results [] current;
 
         DensityResults() {
             density = new double[nstates][L];
@@ -26,37 +39,172 @@ public class DensityStatistics {
     private double [][] tOccupied;
     private double [][] tSpeciesOccupation;
 
+    // Time integral of the number of particles of each species
+    private double [] speciesIntegral;
+
     private int [][][] counts;
 
+    private final SimOptions.LocalTransitionSpec [] specs;
+
+    // Scratch space for update()
+    private final int [] scratchCount;
+
+    // Incremental recording (see start()): the state of each site, and the
+    // time it last changed, so that time spent in a state is only added
+    // to tOccupied when the site changes.  Similarly for the number of
+    // particles of each species.
+    private boolean incremental;
+    private final int [] sites;
+    private final double [] tLast;
+    private final int [] speciesCount;
+    private final double [] tSpeciesLast;
+
+    // Batch means (see setBatchLength()): the batch length, the start of
+    // the current batch and the number completed, tOccupied and counts at
+    // the start of the current batch, and the sums and sums of squares
+    // over batches of the batch averages of the densities and of the
+    // rates of the counted transitions.
+    private double batchLength;
+    private double batchStart;
+    private int batches;
+    private double [][] batchOccupied;
+    private int [][][] batchCounts;
+    private double [][] densitySum;
+    private double [][] densitySumSq;
+    private double [][][] rateSum;
+    private double [][][] rateSumSq;
+
+    // Two-point correlations (see setCorrelations()): pairIntegral[d - 1][i]
+    // is the time integral of n_i n_{i+d}, where n_i is 1 if site i holds
+    // species correlationSpecies.  Incrementally, the product for a pair
+    // has been constant since the later of its sites' tLast, so it only
+    // needs adding up when one of the sites changes.
+    private int correlationSpecies;
+    private int maxSeparation;
+    private boolean periodic;
+    private double [][] pairIntegral;
+
+    // Integrated currents (see setCurrentWindow()): the window length and
+    // the time the current window ends, the current of each counted spec
+    // so far in this window, the weight of each transition in it, and the
+    // distribution over completed windows.  Entries for specs without
+    // count set are null (or zero).
+    private double currentWindow;
+    private double windowEnd;
+    private double [] windowCurrent;
+    private double [][][] currentWeights;
+    private CurrentHistogram [] currentHistograms;
+
     public DensityStatistics(
         int L, int nstates, SimOptions.LocalTransitionSpec [] specs
     ) {
         this.L = L;
         this.nstates = nstates;
+        this.specs = specs;
 
         this.tOccupied = new double[nstates][L];
 
         this.tSpeciesOccupation = new double[nstates][L + 1];
+        this.speciesIntegral = new double[nstates];
+
+        this.scratchCount = new int[nstates];
+
+        this.sites = new int[L];
+        this.tLast = new double[L];
+        this.speciesCount = new int[nstates];
+        this.tSpeciesLast = new double[nstates];
 
         this.counts = new int[specs.length][][];
 
         for (int i = 0; i < specs.length; i++) {
             if (specs[i].count) {
-                int d = specs[i].rates.length;
+                int d = specs[i].getNumConfigurations(nstates);
                 this.counts[i] = new int[d][d];
             }
         }
     }
 
+    /**
+     *  Also record the time-averaged two-point correlations
+     *  <n_i n_{i+d}> of species c, for separations d = 1, ..., maxSeparation.
+     *  Memory is O(L maxSeparation), and each site change during
+     *  incremental recording costs O(maxSeparation), and only when the
+     *  site held species c.  Call before recording starts.
+     *
+     *  @param periodic Pairs wrap around the end of the lattice, as in a
+     *         periodic LatticeConfiguration.
+     */
+    public void setCorrelations(int c, int maxSeparation, boolean periodic) {
+        this.correlationSpecies = c;
+        this.maxSeparation = maxSeparation;
+        this.periodic = periodic;
+
+        pairIntegral = new double[maxSeparation][L];
+    }
+
+    /**
+     *  Also record the distribution of the integrated current of each
+     *  counted transition over consecutive windows of length window
+     *  (simulated time), starting from the current total time.  The
+     *  current of a spec is the sum of the weights of its transitions
+     *  (see LocalTransitionSpec.currentWeights) during a window, and its
+     *  distribution is kept in a CurrentHistogram, so memory doesn't grow
+     *  with the length of the run.  A window which is incomplete at the
+     *  end of the run is left out.
+     */
+    public void setCurrentWindow(double window) {
+        currentWindow = window;
+        windowEnd = tTotal + window;
+
+        windowCurrent = new double[counts.length];
+        currentWeights = new double[counts.length][][];
+        currentHistograms = new CurrentHistogram[counts.length];
+
+        for (int spec = 0; spec < counts.length; spec++) {
+            if (counts[spec] != null) {
+                currentWeights[spec]
+                    = specs[spec].getCurrentWeights(nstates);
+                currentHistograms[spec] = new CurrentHistogram();
+            }
+        }
+    }
+
+    /**
+     *  Record the currents of the windows which have ended by the
+     *  current total time.
+     */
+    private void endWindows() {
+        while (tTotal >= windowEnd) {
+            for (int spec = 0; spec < counts.length; spec++) {
+                if (currentHistograms[spec] != null) {
+                    currentHistograms[spec].add(windowCurrent[spec]);
+                    windowCurrent[spec] = 0;
+                }
+            }
+
+            windowEnd += currentWindow;
+        }
+    }
+
     /**
      *  Update statistics to count time dt spent in configuration
-     *  config.
+     *  config.  This costs O(L): for long runs use the incremental
+     *  methods start(), advance() and updateSites() instead.
+     *
+     *  Ends incremental recording, if it was started.
      *
      *  @param config The lattice configuration.
      *  @param dt Time spent in this configuration.
      */
     public void update(LatticeConfiguration config, double dt) {
-        int [] speciesCount = new int[nstates];
+        flush();
+        incremental = false;
+
+        int [] speciesCount = scratchCount;
+
+        for (int c = 0; c < nstates; c++) {
+            speciesCount[c] = 0;
+        }
 
         for (int i = 0; i < L; i++) {
             int c = config.getConfigurationInt(i);
@@ -68,9 +216,697 @@ public class DensityStatistics {
 
         for (int c = 0; c < nstates; c++) {
             tSpeciesOccupation[c][speciesCount[c]] += dt;
+            speciesIntegral[c] += speciesCount[c] * dt;
+        }
+
+        if (pairIntegral != null) {
+            updatePairs(config, dt);
         }
 
         tTotal += dt;
+
+        if (currentHistograms != null) {
+            endWindows();
+        }
+    }
+
+    /**
+     *  update() for the two-point correlations.
+     */
+    private void updatePairs(LatticeConfiguration config, double dt) {
+        for (int i = 0; i < L; i++) {
+            if (config.getConfigurationInt(i) != correlationSpecies) {
+                continue;
+            }
+
+            for (int d = 1; d <= maxSeparation; d++) {
+                int j = partner(i, d);
+
+                if (
+                    j >= 0
+                    &&
+                    config.getConfigurationInt(j) == correlationSpecies
+                ) {
+                    pairIntegral[d - 1][i] += dt;
+                }
+            }
+        }
+    }
+
+    /**
+     *  The site d sites to the right of site i, or -1 if there is none.
+     */
+    private int partner(int i, int d) {
+        int j = i + d;
+
+        if (j < L) {
+            return j;
+        }
+
+        return periodic ? j - L : -1;
+    }
+
+    /**
+     *  Incremental recording: site i is about to change from species
+     *  correlationSpecies, so add up the pairs it belongs to.
+     */
+    private void flushPairs(int i) {
+        for (int d = 1; d <= maxSeparation; d++) {
+            int j = partner(i, d);
+
+            if (j >= 0 && sites[j] == correlationSpecies) {
+                pairIntegral[d - 1][i]
+                    += tTotal - Math.max(tLast[i], tLast[j]);
+            }
+
+            // And the pair with site i on the right
+            int k = i - d;
+
+            if (k < 0) {
+                k = periodic ? k + L : -1;
+            }
+
+            if (k >= 0 && sites[k] == correlationSpecies) {
+                pairIntegral[d - 1][k]
+                    += tTotal - Math.max(tLast[i], tLast[k]);
+            }
+        }
+    }
+
+    /**
+     *  Start recording statistics incrementally from configuration
+     *  config.  After this, call advance() as time passes, and
+     *  updateSites() whenever sites change, each costing O(1) per site
+     *  (Transitions.doTransition() calls updateSites() for you).
+     *
+     *  @param config The lattice configuration.
+     */
+    public void start(LatticeConfiguration config) {
+        flush();
+        incremental = true;
+
+        for (int c = 0; c < nstates; c++) {
+            speciesCount[c] = 0;
+            tSpeciesLast[c] = tTotal;
+        }
+
+        for (int i = 0; i < L; i++) {
+            int c = config.getConfigurationInt(i);
+
+            sites[i] = c;
+            tLast[i] = tTotal;
+
+            speciesCount[c]++;
+        }
+    }
+
+    /**
+     *  Incremental recording: count time dt spent in the current
+     *  configuration.
+     */
+    public void advance(double dt) {
+        tTotal += dt;
+
+        if (currentHistograms != null && tTotal >= windowEnd) {
+            endWindows();
+        }
+    }
+
+    /**
+     *  Incremental recording: sites position, ..., position + window - 1
+     *  of config have (possibly) changed.  Does nothing unless start()
+     *  has been called.
+     */
+    public void updateSites(
+        LatticeConfiguration config, int position, int window
+    ) {
+        if (!incremental) {
+            return;
+        }
+
+        for (int j = position; j < position + window; j++) {
+            // In a periodic lattice the window may wrap around the end
+            int i = j < L ? j : j - L;
+            int c = config.getConfigurationInt(i);
+            int old = sites[i];
+
+            if (c == old) {
+                continue;
+            }
+
+            if (pairIntegral != null && old == correlationSpecies) {
+                flushPairs(i);
+            }
+
+            tOccupied[old][i] += tTotal - tLast[i];
+            tLast[i] = tTotal;
+            sites[i] = c;
+
+            flushSpecies(old);
+            speciesCount[old]--;
+
+            flushSpecies(c);
+            speciesCount[c]++;
+        }
+    }
+
+    /**
+     *  Incremental recording: add the time each site and species count
+     *  has spent in its current state to the totals.
+     */
+    private void flush() {
+        if (!incremental) {
+            return;
+        }
+
+        if (pairIntegral != null) {
+            for (int i = 0; i < L; i++) {
+                for (int d = 1; d <= maxSeparation; d++) {
+                    int j = partner(i, d);
+
+                    if (
+                        sites[i] == correlationSpecies
+                        &&
+                        j >= 0 && sites[j] == correlationSpecies
+                    ) {
+                        pairIntegral[d - 1][i]
+                            += tTotal - Math.max(tLast[i], tLast[j]);
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < L; i++) {
+            tOccupied[sites[i]][i] += tTotal - tLast[i];
+            tLast[i] = tTotal;
+        }
+
+        for (int c = 0; c < nstates; c++) {
+            flushSpecies(c);
+        }
+    }
+
+    /**
+     *  Incremental recording: add the time since the number of particles
+     *  of species c last changed to the totals.
+     */
+    private void flushSpecies(int c) {
+        double dt = tTotal - tSpeciesLast[c];
+
+        tSpeciesOccupation[c][speciesCount[c]] += dt;
+        speciesIntegral[c] += speciesCount[c] * dt;
+        tSpeciesLast[c] = tTotal;
+    }
+
+    /**
+     *  Add the statistics collected by other (e.g. from an independent
+     *  replica of the same simulation) to these.  Densities become time
+     *  weighted averages over both, and transition counts are summed.
+     *
+     *  @param other Statistics for the same lattice length, number of
+     *         states, and transitions.
+     */
+    public void merge(DensityStatistics other) {
+        flush();
+        other.flush();
+
+        tTotal += other.tTotal;
+
+        for (int c = 0; c < nstates; c++) {
+            speciesIntegral[c] += other.speciesIntegral[c];
+        }
+
+        for (int c = 0; c < nstates; c++) {
+            for (int i = 0; i < L; i++) {
+                tOccupied[c][i] += other.tOccupied[c][i];
+            }
+
+            for (int i = 0; i < L + 1; i++) {
+                tSpeciesOccupation[c][i] += other.tSpeciesOccupation[c][i];
+            }
+        }
+
+        for (int spec = 0; spec < counts.length; spec++) {
+            if (counts[spec] == null) {
+                continue;
+            }
+
+            for (int i = 0; i < counts[spec].length; i++) {
+                for (int j = 0; j < counts[spec][i].length; j++) {
+                    counts[spec][i][j] += other.counts[spec][i][j];
+                }
+            }
+        }
+
+        if (pairIntegral != null && other.pairIntegral != null) {
+            for (int d = 0; d < maxSeparation; d++) {
+                for (int i = 0; i < L; i++) {
+                    pairIntegral[d][i] += other.pairIntegral[d][i];
+                }
+            }
+        }
+
+        if (currentHistograms != null && other.currentHistograms != null) {
+            for (int spec = 0; spec < counts.length; spec++) {
+                if (currentHistograms[spec] != null) {
+                    currentHistograms[spec].merge(
+                        other.currentHistograms[spec]);
+                }
+            }
+        }
+    }
+
+    /**
+     *  Add dt to the time spent by each of sites first, ..., last of
+     *  config in its current state, and add the number of those sites in
+     *  each state to speciesCount.  Different threads may update disjoint
+     *  ranges at once.  Once all ranges are done, call addTime().
+     *
+     *  Used by DomainSimulation, which samples the lattice at the end of
+     *  each time window.  Not to be mixed with incremental recording.
+     */
+    void updateRange(
+        LatticeConfiguration config, int first, int last, double dt,
+        int [] speciesCount
+    ) {
+        for (int i = first; i <= last; i++) {
+            int c = config.getConfigurationInt(i);
+
+            tOccupied[c][i] += dt;
+
+            speciesCount[c]++;
+        }
+    }
+
+    /**
+     *  Complete updateRange(): add dt to the total time, with
+     *  speciesCount the number of sites in each state over the whole
+     *  lattice.
+     */
+    void addTime(int [] speciesCount, double dt) {
+        for (int c = 0; c < nstates; c++) {
+            tSpeciesOccupation[c][speciesCount[c]] += dt;
+            speciesIntegral[c] += speciesCount[c] * dt;
+
+            scratchCount[c] = speciesCount[c];
+        }
+
+        tTotal += dt;
+    }
+
+    /**
+     *  Start estimating the standard errors of the density profile and
+     *  of the transition rates by batch means, with batches of length
+     *  (simulated time) length from the current total time.  The caller
+     *  ends each batch with endBatch(), at getNextBatchTime().
+     *
+     *  Batches should be long compared to the correlation time of the
+     *  observables, so that the batch averages are close to
+     *  independent.
+     */
+    public void setBatchLength(double length) {
+        flush();
+
+        batchLength = length;
+        batches = 0;
+
+        allocateBatches();
+        startBatch();
+    }
+
+    private void allocateBatches() {
+        batchOccupied = new double[nstates][L];
+        densitySum = new double[nstates][L];
+        densitySumSq = new double[nstates][L];
+
+        batchCounts = new int[counts.length][][];
+        rateSum = new double[counts.length][][];
+        rateSumSq = new double[counts.length][][];
+
+        for (int spec = 0; spec < counts.length; spec++) {
+            if (counts[spec] == null) {
+                continue;
+            }
+
+            int d = counts[spec].length;
+
+            batchCounts[spec] = new int[d][d];
+            rateSum[spec] = new double[d][d];
+            rateSumSq[spec] = new double[d][d];
+        }
+    }
+
+    private void startBatch() {
+        for (int c = 0; c < nstates; c++) {
+            System.arraycopy(tOccupied[c], 0, batchOccupied[c], 0, L);
+        }
+
+        for (int spec = 0; spec < counts.length; spec++) {
+            if (counts[spec] == null) {
+                continue;
+            }
+
+            for (int i = 0; i < counts[spec].length; i++) {
+                System.arraycopy(
+                    counts[spec][i], 0, batchCounts[spec][i], 0,
+                    counts[spec][i].length);
+            }
+        }
+
+        batchStart = tTotal;
+    }
+
+    /**
+     *  The batch length, or 0 if batch means are not being collected.
+     */
+    public double getBatchLength() {
+        return batchLength;
+    }
+
+    /**
+     *  The total time at which the current batch should end.
+     */
+    public double getNextBatchTime() {
+        return batchStart + batchLength;
+    }
+
+    /**
+     *  The number of batches completed.
+     */
+    public int getNumBatches() {
+        return batches;
+    }
+
+    /**
+     *  End the current batch, adding its averages to the batch means, and
+     *  start the next.  This costs O(L).
+     */
+    public void endBatch() {
+        flush();
+
+        double dt = tTotal - batchStart;
+
+        if (dt <= 0) {
+            return;
+        }
+
+        for (int c = 0; c < nstates; c++) {
+            for (int i = 0; i < L; i++) {
+                double x = (tOccupied[c][i] - batchOccupied[c][i]) / dt;
+
+                densitySum[c][i] += x;
+                densitySumSq[c][i] += x * x;
+            }
+        }
+
+        for (int spec = 0; spec < counts.length; spec++) {
+            if (counts[spec] == null) {
+                continue;
+            }
+
+            for (int i = 0; i < counts[spec].length; i++) {
+                for (int j = 0; j < counts[spec][i].length; j++) {
+                    double x
+                        = (counts[spec][i][j] - batchCounts[spec][i][j]) / dt;
+
+                    rateSum[spec][i][j] += x;
+                    rateSumSq[spec][i][j] += x * x;
+                }
+            }
+        }
+
+        batches++;
+
+        startBatch();
+    }
+
+    /**
+     *  Standard error of the mean of n batch averages with the given sum
+     *  and sum of squares.
+     */
+    private static double standardError(double sum, double sumSq, int n) {
+        if (n < 2) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        double variance = Math.max(0, (sumSq - sum * sum / n) / (n - 1));
+
+        return Math.sqrt(variance / n);
+    }
+
+    /**
+     *  Batch means estimate of the standard error of each site of the
+     *  density profile of species c.
+     */
+    public double [] getDensityError(int c) {
+        double [] error = new double[L];
+
+        for (int i = 0; i < L; i++) {
+            error[i] = standardError(
+                densitySum[c][i], densitySumSq[c][i], batches);
+        }
+
+        return error;
+    }
+
+    /**
+     *  Batch means estimate of the standard error of the rate
+     *  (transition count per unit time) of the given transition.  The
+     *  transition spec must have count set.
+     */
+    public double getRateError(int spec, int toC, int fromC) {
+        return standardError(
+            rateSum[spec][toC][fromC], rateSumSq[spec][toC][fromC], batches);
+    }
+
+    /**
+     *  Whether at least MIN_BATCHES batches are complete, and the
+     *  standard errors of every site of every density profile, and of the
+     *  rates of all counted transitions, are within tolerance.  A
+     *  tolerance of 0 leaves that observable unchecked.
+     */
+    public boolean isPrecise(double densityTolerance, double rateTolerance) {
+        if (batchLength <= 0 || batches < MIN_BATCHES) {
+            return false;
+        }
+
+        if (densityTolerance > 0) {
+            for (int c = 0; c < nstates; c++) {
+                for (int i = 0; i < L; i++) {
+                    double error = standardError(
+                        densitySum[c][i], densitySumSq[c][i], batches);
+
+                    if (error > densityTolerance) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        if (rateTolerance > 0) {
+            for (int spec = 0; spec < counts.length; spec++) {
+                if (counts[spec] == null) {
+                    continue;
+                }
+
+                for (int i = 0; i < counts[spec].length; i++) {
+                    for (int j = 0; j < counts[spec][i].length; j++) {
+                        if (getRateError(spec, i, j) > rateTolerance) {
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     *  Write the complete state, including that of incremental recording,
+     *  to out, for Checkpoint.  Nothing is flushed, so that a run
+     *  restored with readState() accumulates exactly the same values.
+     */
+    void writeState(DataOutputStream out) throws IOException {
+        out.writeDouble(tTotal);
+
+        for (int c = 0; c < nstates; c++) {
+            writeDoubles(out, tOccupied[c]);
+            writeDoubles(out, tSpeciesOccupation[c]);
+        }
+
+        writeDoubles(out, speciesIntegral);
+
+        for (int spec = 0; spec < counts.length; spec++) {
+            if (counts[spec] == null) {
+                continue;
+            }
+
+            for (int i = 0; i < counts[spec].length; i++) {
+                writeInts(out, counts[spec][i]);
+            }
+        }
+
+        writeInts(out, scratchCount);
+
+        out.writeBoolean(incremental);
+        writeInts(out, sites);
+        writeDoubles(out, tLast);
+        writeInts(out, speciesCount);
+        writeDoubles(out, tSpeciesLast);
+
+        if (pairIntegral != null) {
+            for (int d = 0; d < maxSeparation; d++) {
+                writeDoubles(out, pairIntegral[d]);
+            }
+        }
+
+        if (currentHistograms != null) {
+            out.writeDouble(windowEnd);
+            writeDoubles(out, windowCurrent);
+
+            for (int spec = 0; spec < counts.length; spec++) {
+                if (currentHistograms[spec] != null) {
+                    currentHistograms[spec].writeState(out);
+                }
+            }
+        }
+
+        out.writeDouble(batchLength);
+
+        if (batchLength <= 0) {
+            return;
+        }
+
+        out.writeDouble(batchStart);
+        out.writeInt(batches);
+
+        for (int c = 0; c < nstates; c++) {
+            writeDoubles(out, batchOccupied[c]);
+            writeDoubles(out, densitySum[c]);
+            writeDoubles(out, densitySumSq[c]);
+        }
+
+        for (int spec = 0; spec < counts.length; spec++) {
+            if (counts[spec] == null) {
+                continue;
+            }
+
+            for (int i = 0; i < counts[spec].length; i++) {
+                writeInts(out, batchCounts[spec][i]);
+                writeDoubles(out, rateSum[spec][i]);
+                writeDoubles(out, rateSumSq[spec][i]);
+            }
+        }
+    }
+
+    /**
+     *  Restore the state written by writeState() of statistics for the
+     *  same lattice length, number of states, and transitions.
+     */
+    void readState(DataInputStream in) throws IOException {
+        tTotal = in.readDouble();
+
+        for (int c = 0; c < nstates; c++) {
+            readDoubles(in, tOccupied[c]);
+            readDoubles(in, tSpeciesOccupation[c]);
+        }
+
+        readDoubles(in, speciesIntegral);
+
+        for (int spec = 0; spec < counts.length; spec++) {
+            if (counts[spec] == null) {
+                continue;
+            }
+
+            for (int i = 0; i < counts[spec].length; i++) {
+                readInts(in, counts[spec][i]);
+            }
+        }
+
+        readInts(in, scratchCount);
+
+        incremental = in.readBoolean();
+        readInts(in, sites);
+        readDoubles(in, tLast);
+        readInts(in, speciesCount);
+        readDoubles(in, tSpeciesLast);
+
+        if (pairIntegral != null) {
+            for (int d = 0; d < maxSeparation; d++) {
+                readDoubles(in, pairIntegral[d]);
+            }
+        }
+
+        if (currentHistograms != null) {
+            windowEnd = in.readDouble();
+            readDoubles(in, windowCurrent);
+
+            for (int spec = 0; spec < counts.length; spec++) {
+                if (currentHistograms[spec] != null) {
+                    currentHistograms[spec].readState(in);
+                }
+            }
+        }
+
+        double length = in.readDouble();
+
+        if (length <= 0) {
+            batchLength = 0;
+            return;
+        }
+
+        batchLength = length;
+        allocateBatches();
+
+        batchStart = in.readDouble();
+        batches = in.readInt();
+
+        for (int c = 0; c < nstates; c++) {
+            readDoubles(in, batchOccupied[c]);
+            readDoubles(in, densitySum[c]);
+            readDoubles(in, densitySumSq[c]);
+        }
+
+        for (int spec = 0; spec < counts.length; spec++) {
+            if (counts[spec] == null) {
+                continue;
+            }
+
+            for (int i = 0; i < counts[spec].length; i++) {
+                readInts(in, batchCounts[spec][i]);
+                readDoubles(in, rateSum[spec][i]);
+                readDoubles(in, rateSumSq[spec][i]);
+            }
+        }
+    }
+
+    private static void writeDoubles(DataOutputStream out, double [] values)
+        throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            out.writeDouble(values[i]);
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int [] values)
+        throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+
+    private static void readDoubles(DataInputStream in, double [] values)
+        throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readDouble();
+        }
+    }
+
+    private static void readInts(DataInputStream in, int [] values)
+        throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readInt();
+        }
     }
 
     /**
@@ -84,7 +920,44 @@ public class DensityStatistics {
     public void countTransition(int spec, int toC, int fromC) {
         if (this.counts[spec] != null) {
             this.counts[spec][toC][fromC]++;
+
+            if (windowCurrent != null) {
+                double [][] weights = currentWeights[spec];
+
+                windowCurrent[spec]
+                    += weights == null ? 1 : weights[toC][fromC];
+            }
+        }
+    }
+
+    /**
+     * Return the time integral of the number of particles of species c,
+     * so that (the change in this) / (the change in total time) is the
+     * average number of particles over a period.
+     */
+    public double getSpeciesIntegral(int c) {
+        if (incremental) {
+            flushSpecies(c);
         }
+
+        return speciesIntegral[c];
+    }
+
+    /**
+     * Return the current number of particles of species c (when
+     * recording with update(), the number at the last update).
+     */
+    public int getSpeciesCount(int c) {
+        return incremental ? speciesCount[c] : scratchCount[c];
+    }
+
+    /**
+     * The transition counts: counts[spec][toC][fromC], with counts[spec]
+     * null for transitions without count set.  This is the internal
+     * array, not a copy.
+     */
+    int [][][] getCounts() {
+        return counts;
     }
 
     /**
@@ -100,6 +973,8 @@ public class DensityStatistics {
      * @param c Species to compute density profile for.
      */
     public double [] getDensityProfile(int c) {
+        flush();
+
         double [] profile = new double[L];
 
         for (int i = 0; i < L; i++) {
@@ -109,6 +984,34 @@ public class DensityStatistics {
         return profile;
     }
 
+    /**
+     * Compute and return the time-averaged correlations <n_i n_{i+d}> (see
+     * setCorrelations()) at separation d, for each site i that has a
+     * partner: L - d sites, or L for a periodic lattice.
+     */
+    public double [] getCorrelation(int d) {
+        flush();
+
+        int n = periodic ? L : L - d;
+
+        double [] correlation = new double[n];
+
+        for (int i = 0; i < n; i++) {
+            correlation[i] = pairIntegral[d - 1][i] / tTotal;
+        }
+
+        return correlation;
+    }
+
+    /**
+     * The distribution of the integrated current of spec over the
+     * windows of setCurrentWindow(), or null for specs without count
+     * set.
+     */
+    CurrentHistogram getCurrentHistogram(int spec) {
+        return currentHistograms[spec];
+    }
+
     /**
      * Return the number of times the specified transition
      * has occurred.
@@ -130,6 +1033,8 @@ public class DensityStatistics {
      * in JSON format.
      */
     public String summary() {
+        flush();
+
         DensityResults results = new DensityResults();
 
         results.tTotal = tTotal;
@@ -149,6 +1054,53 @@ public class DensityStatistics {
 
         results.counts = counts;
 
+        if (pairIntegral != null && tTotal > 0) {
+            results.correlation = new double[maxSeparation][];
+
+            for (int d = 1; d <= maxSeparation; d++) {
+                results.correlation[d - 1] = getCorrelation(d);
+            }
+        }
+
+        if (currentHistograms != null) {
+            results.current
+                = new CurrentHistogram.Results[currentHistograms.length];
+
+            for (int spec = 0; spec < counts.length; spec++) {
+                if (currentHistograms[spec] != null) {
+                    results.current[spec] = currentHistograms[spec]
+                        .getResults(currentWindow);
+                }
+            }
+        }
+
+        if (batchLength > 0 && batches >= 2) {
+            results.densityError = new double[nstates][];
+
+            for (int c = 0; c < nstates; c++) {
+                results.densityError[c] = getDensityError(c);
+            }
+
+            results.rateError = new double[counts.length][][];
+
+            for (int spec = 0; spec < counts.length; spec++) {
+                if (counts[spec] == null) {
+                    continue;
+                }
+
+                int d = counts[spec].length;
+
+                results.rateError[spec] = new double[d][d];
+
+                for (int i = 0; i < d; i++) {
+                    for (int j = 0; j < d; j++) {
+                        results.rateError[spec][i][j]
+                            = getRateError(spec, i, j);
+                    }
+                }
+            }
+        }
+
         Gson gson = new Gson();
 
         return gson.toJson(results);
@@ -0,0 +1,396 @@
+package openepsim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Simulate one lattice on several threads, using the synchronous
+ * sublattice scheme.
+ *
+ * The lattice is split into 2 * domains blocks of consecutive sites,
+ * alternately "even" and "odd", each with its own Transitions (for the
+ * transitions whose window starts in the block) and random number
+ * generator.  Time advances in windows of domainWindow: within each
+ * window, all even blocks are run concurrently for the length of the
+ * window, then all odd blocks (the order alternates between windows).
+ *
+ * A transition starting in a block can change sites in the next block,
+ * up to window - 1 sites in.  Blocks are at least as long as the largest
+ * window, so blocks running at the same time never read or change the
+ * same sites.  Before it runs, each block recalculates the transitions
+ * that read sites near its ends, which the neighbouring blocks may have
+ * changed.
+ *
+ * Running the two halves in turn is an operator splitting of the master
+ * equation, with error vanishing as domainWindow goes to zero: every
+ * transition still occurs at its own rate, but transitions in
+ * neighbouring blocks are ordered by window rather than interleaved.
+ *
+ * Statistics are sampled at the end of each window, weighted by the
+ * window length: the time averages of the density (and correlations)
+ * are approximated by these samples rather than integrated over the
+ * window, with an error growing with domainWindow on top of that of the
+ * splitting.  Transition counts are exact.
+ *
+ * Each block has its own random stream derived from the seed, as
+ * replicas do (see RandomSource.create()), so a run can be repeated
+ * exactly regardless of the number of threads.
+ */
+public class DomainSimulation {
+    private class Block {
+        final int first;
+        final int last;
+
+        final Transitions transitions;
+        final RandomSource random;
+
+        // counts[spec][toC][fromC], as in DensityStatistics
+        final int [][][] counts;
+
+        // Scratch space for sample()
+        final int [] speciesCount;
+
+        // Instrumentation, or null when disabled
+        SimCounters counters;
+
+        Block(int first, int last, RandomSource random) {
+            this.first = first;
+            this.last = last;
+
+            transitions = new Transitions(
+                config, options.transitions, options.useTree(), first, last);
+            this.random = random;
+
+            counts = new int[options.transitions.length][][];
+
+            for (int i = 0; i < counts.length; i++) {
+                if (options.transitions[i].count) {
+                    int d = options.transitions[i].getNumConfigurations(
+                        options.nstates);
+
+                    counts[i] = new int[d][d];
+                }
+            }
+
+            speciesCount = new int[options.nstates];
+        }
+
+        /**
+         * Recalculate the transitions reading sites the neighbouring
+         * blocks may have changed: the first maxWindow - 1 sites of this
+         * block, and of the next.
+         */
+        void refresh() {
+            int n = maxWindow - 1;
+
+            if (n == 0) {
+                return;
+            }
+
+            transitions.clearDirty(first, n);
+            transitions.recalculate(first, n);
+
+            if (last + 1 < config.getLength()) {
+                int m = Math.min(n, config.getLength() - last - 1);
+
+                transitions.clearDirty(last + 1, m);
+                transitions.recalculate(last + 1, m);
+            }
+        }
+
+        /**
+         * Run the Gillespie algorithm on this block for time dt.
+         */
+        void advance(double dt) {
+            double t = 0;
+
+            while (true) {
+                double exitRate = transitions.getExitRate();
+
+                if (exitRate <= 0) {
+                    // Nothing can happen until a neighbour changes
+                    return;
+                }
+
+                t += random.nextExponential() / exitRate;
+
+                if (t >= dt) {
+                    return;
+                }
+
+                if (
+                    !transitions.doTransition(random.nextDouble() * exitRate)
+                ) {
+                    continue;
+                }
+
+                int spec = transitions.getLastSpec();
+
+                if (counts[spec] != null) {
+                    counts[spec][transitions.getLastConfiguration()]
+                        [transitions.getLastFromConfiguration()]++;
+                }
+            }
+        }
+
+        /**
+         * Add dt in the current state of this block's sites to stats.
+         */
+        void sample(DensityStatistics stats, double dt) {
+            for (int c = 0; c < speciesCount.length; c++) {
+                speciesCount[c] = 0;
+            }
+
+            stats.updateRange(config, first, last, dt, speciesCount);
+        }
+    }
+
+    private final SimOptions options;
+
+    // Sites are stored one per int, so that blocks running at the same
+    // time never write to the same array element
+    private final LatticeConfiguration config;
+
+    private final int maxWindow;
+    private final Block [] blocks;
+
+    private long windows;
+
+    // Instrumentation, or null when disabled
+    private SimCounters counters;
+
+    /**
+     * Set up the lattice and blocks for the simulation specified by
+     * options, with options.domains greater than 1.
+     *
+     * @param seed The seed the block seeds are derived from.
+     */
+    public DomainSimulation(SimOptions options, long seed) {
+        this.options = options;
+
+        config = new LatticeConfiguration(
+            options.L, options.nstates, options.initialState, false);
+
+        maxWindow = options.getMaxWindow();
+        config.setMaxWindow(maxWindow);
+
+        int nblocks = 2 * options.domains;
+
+        blocks = new Block[nblocks];
+
+        for (int k = 0; k < nblocks; k++) {
+            int first = (int) ((long) options.L * k / nblocks);
+            int last = (int) ((long) options.L * (k + 1) / nblocks) - 1;
+
+            blocks[k] = new Block(
+                first, last, RandomSource.create(options.generator, seed, k));
+        }
+    }
+
+    public LatticeConfiguration getConfiguration() {
+        return config;
+    }
+
+    /**
+     * Count the work done by simulate() in counters (null to not count).
+     * Each block counts separately, and the totals are added to
+     * counters at the end of the run.
+     */
+    public void setCounters(SimCounters counters) {
+        this.counters = counters;
+
+        for (Block block : blocks) {
+            block.counters = counters != null ? new SimCounters() : null;
+            block.transitions.setCounters(block.counters);
+        }
+    }
+
+    /**
+     * Run tasks on executor, returning once all are done.  Exceptions
+     * thrown by a task are rethrown.
+     */
+    static void invokeAll(
+        ExecutorService executor, List<Callable<Void>> tasks
+    ) throws InterruptedException {
+        for (Future<Void> future : executor.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+
+    /**
+     * Run the blocks of the given parity for time dt, concurrently.
+     */
+    private void runBlocks(
+        ExecutorService executor, int parity, final double dt
+    ) throws InterruptedException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+        for (int k = parity; k < blocks.length; k += 2) {
+            final Block block = blocks[k];
+
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    block.refresh();
+                    block.advance(dt);
+
+                    return null;
+                }
+            });
+        }
+
+        invokeAll(executor, tasks);
+    }
+
+    /**
+     * Sample the lattice into stats, weighted by dt.
+     */
+    private void sample(
+        ExecutorService executor, final DensityStatistics stats,
+        final double dt
+    ) throws InterruptedException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+        for (final Block block : blocks) {
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    block.sample(stats, dt);
+
+                    return null;
+                }
+            });
+        }
+
+        invokeAll(executor, tasks);
+
+        int [] speciesCount = new int[options.nstates];
+
+        for (Block block : blocks) {
+            for (int c = 0; c < speciesCount.length; c++) {
+                speciesCount[c] += block.speciesCount[c];
+            }
+        }
+
+        stats.addTime(speciesCount, dt);
+    }
+
+    /**
+     * Run for time tEnd, recording statistics if stats is not null.
+     */
+    public void run(
+        ExecutorService executor, double tEnd, DensityStatistics stats
+    ) throws InterruptedException {
+        double window = options.domainWindow;
+
+        long n = (long) Math.ceil(tEnd / window);
+
+        for (long k = 0; k < n; k++) {
+            double dt = Math.min(window, tEnd - k * window);
+
+            int parity = (int) (windows & 1);
+
+            runBlocks(executor, parity, dt);
+            runBlocks(executor, 1 - parity, dt);
+
+            windows++;
+
+            if (stats != null) {
+                sample(executor, stats, dt);
+            }
+        }
+    }
+
+    /**
+     * Add the transitions counted by the blocks to stats (unless null),
+     * and reset them.
+     */
+    private void addCounts(DensityStatistics stats) {
+        for (Block block : blocks) {
+            for (int spec = 0; spec < block.counts.length; spec++) {
+                if (block.counts[spec] == null) {
+                    continue;
+                }
+
+                for (int i = 0; i < block.counts[spec].length; i++) {
+                    for (int j = 0; j < block.counts[spec][i].length; j++) {
+                        if (stats != null) {
+                            stats.getCounts()[spec][i][j]
+                                += block.counts[spec][i][j];
+                        }
+
+                        block.counts[spec][i][j] = 0;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Skip tSkip, then run to tMax recording statistics in stats, on
+     * options.threads threads (0 for all available processors).
+     */
+    public void simulate(DensityStatistics stats)
+        throws InterruptedException {
+        double tMax = options.tMax;
+        double tSkip = Math.min(options.tSkip, tMax);
+
+        int threads = options.threads;
+
+        if (threads == 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(threads, options.domains)));
+
+        long phaseStart = System.nanoTime();
+
+        try {
+            run(executor, tSkip, null);
+
+            // Drop the counts from the skipped part
+            addCounts(null);
+
+            if (counters != null) {
+                for (Block block : blocks) {
+                    block.counters.resetCounts();
+                }
+            }
+
+            long recordStart = System.nanoTime();
+
+            run(executor, tMax - tSkip, stats);
+
+            addCounts(stats);
+
+            if (counters != null) {
+                for (Block block : blocks) {
+                    counters.add(block.counters);
+                }
+
+                counters.unrecordedNanos += recordStart - phaseStart;
+                counters.recordedNanos += System.nanoTime() - recordStart;
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -1,17 +1,48 @@
 package openepsim;
 
+import java.util.Arrays;
+
 import com.google.gson.Gson;
 
 public class LatticeConfiguration {
-    private final int [] lattice;
+    /**
+     * Largest number of states for which sites are packed into bits.
+     */
+    public static final int MAX_PACKED_STATES = 16;
+
+    private final int length;
     private final int nstates;
 
+    // Periodic lattice: sites length, ..., length + ghosts - 1 are copies
+    // of sites 0, ..., ghosts - 1, so a window starting near the end can
+    // be read straight through without wrapping the index.
+    private final boolean periodic;
+    private int ghosts;
+
+    // Unpacked storage: one int per site
+    private int [] lattice;
+
+    // Packed storage: bits bits per site, in order from the most
+    // significant bit of words[0].  A window of sites is then a bit field
+    // holding the sites' digits in the same order as the integer
+    // representation of the local configuration.
+    private long [] words;
+    private final int bits;
+    private final long siteMask;
+    private final boolean powerOfTwo;
+
     private int [] powers;
 
     /**
      * Creat a new LatticeConfiguration with specified length, number
      * of states, initial configuration.
      *
+     * Sites are packed into bits if nstates is a power of two, at most
+     * MAX_PACKED_STATES.  Then a local configuration is just a bit field,
+     * read or written with shifts and masks.  For other numbers of states
+     * converting between the bit field and the local configuration costs
+     * more than the packing saves, so the default is one int per site.
+     *
      * @param L the lattice length
      * @param nstates the number of states each site can be in
      * @param initialState initial state of the lattice.  If this
@@ -19,20 +50,185 @@ public class LatticeConfiguration {
      *        are set to zero.
      */
     public LatticeConfiguration(int L, int nstates, int [] initialState) {
-        this.lattice = new int[L];
+        this(L, nstates, initialState, isPackedByDefault(nstates));
+    }
+
+    /**
+     * As above, but choosing whether sites are packed into bits.
+     *
+     * @param packed Pack sites into ceil(log2(nstates)) bits each.
+     *        Requires nstates at most MAX_PACKED_STATES.
+     */
+    public LatticeConfiguration(
+        int L, int nstates, int [] initialState, boolean packed
+    ) {
+        this(L, nstates, initialState, packed, false);
+    }
+
+    /**
+     * As above, but choosing whether the lattice is periodic (a ring).
+     *
+     * @param periodic Windows starting near the end of the lattice wrap
+     *        around to its start.  The copies of the first sites this
+     *        needs are allocated by setMaxWindow().
+     */
+    public LatticeConfiguration(
+        int L, int nstates, int [] initialState, boolean packed,
+        boolean periodic
+    ) {
+        if (packed && nstates > MAX_PACKED_STATES) {
+            throw new IllegalArgumentException(
+                "Too many states to pack: " + nstates);
+        }
+
+        this.length = L;
         this.nstates = nstates;
+        this.periodic = periodic;
+
+        if (packed) {
+            int b = 1;
+
+            while ((1 << b) < nstates) {
+                b++;
+            }
+
+            this.bits = b;
+            this.siteMask = (1L << b) - 1;
+            this.powerOfTwo = (1 << b) == nstates;
+
+            // One extra word, so a field can always be read as two words
+            this.words = new long[(int) (((long) L * b + 63) / 64) + 1];
+            this.lattice = null;
+        } else {
+            this.bits = 0;
+            this.siteMask = 0;
+            this.powerOfTwo = false;
+
+            this.words = null;
+            this.lattice = new int[L];
+        }
 
         int n = initialState.length > L ? L : initialState.length;
 
         for (int i = 0; i < n; i++) {
-            lattice[i] = initialState[i];
+            if (packed) {
+                writeField((long) i * bits, bits, initialState[i]);
+            } else {
+                lattice[i] = initialState[i];
+            }
+        }
+    }
+
+    /**
+     * A copy of other, including its ghost sites.  The sites are copied
+     * in bulk, one array copy, rather than site by site.
+     */
+    public LatticeConfiguration(LatticeConfiguration other) {
+        this.length = other.length;
+        this.nstates = other.nstates;
+        this.periodic = other.periodic;
+        this.ghosts = other.ghosts;
+
+        this.bits = other.bits;
+        this.siteMask = other.siteMask;
+        this.powerOfTwo = other.powerOfTwo;
+
+        this.lattice = other.lattice != null ? other.lattice.clone() : null;
+        this.words = other.words != null ? other.words.clone() : null;
+
+        // Replaced, never changed, by setMaxWindow()
+        this.powers = other.powers;
+    }
+
+    /**
+     * Overwrite the sites with those of other, which must have the same
+     * length, number of states, packing and maximum window (for example
+     * a copy, or a lattice set up from the same options).
+     */
+    public void copyFrom(LatticeConfiguration other) {
+        if (
+            other.length != length || other.bits != bits
+            ||
+            other.ghosts != ghosts || other.nstates != nstates
+        ) {
+            throw new IllegalArgumentException(
+                "Can't copy a lattice of a different shape");
+        }
+
+        if (words != null) {
+            System.arraycopy(other.words, 0, words, 0, words.length);
+        } else {
+            System.arraycopy(other.lattice, 0, lattice, 0, lattice.length);
+        }
+    }
+
+    /**
+     * Whether sites are packed into bits by default for nstates states.
+     */
+    public static boolean isPackedByDefault(int nstates) {
+        return nstates <= MAX_PACKED_STATES && (nstates & (nstates - 1)) == 0;
+    }
+
+    /**
+     * Whether sites are packed into bits.
+     */
+    public boolean isPacked() {
+        return words != null;
+    }
+
+    /**
+     * Whether the lattice is periodic.
+     */
+    public boolean isPeriodic() {
+        return periodic;
+    }
+
+    /**
+     * Read the n bit field starting at bit g (counting from the most
+     * significant bit of words[0]).  n is at most 64.
+     */
+    private long readField(long g, int n) {
+        int w = (int) (g >>> 6);
+        int off = (int) (g & 63);
+
+        long field = words[w] << off;
+
+        if (off + n > 64) {
+            field |= words[w + 1] >>> (64 - off);
+        }
+
+        return field >>> (64 - n);
+    }
+
+    /**
+     * Write value to the n bit field starting at bit g.
+     */
+    private void writeField(long g, int n, long value) {
+        int w = (int) (g >>> 6);
+        int off = (int) (g & 63);
+
+        // The part in the first word
+        int n1 = Math.min(n, 64 - off);
+        int shift1 = 64 - off - n1;
+        long mask1 = (-1L >>> (64 - n1)) << shift1;
+
+        words[w] = (words[w] & ~mask1) | ((value >>> (n - n1)) << shift1);
+
+        // And the rest, at the top of the next word
+        if (n > n1) {
+            int n2 = n - n1;
+            long mask2 = -1L << (64 - n2);
+
+            words[w + 1] = (words[w + 1] & ~mask2) | (value << (64 - n2));
         }
     }
 
     /**
      * Set the maximum window value used in the transitions specification.
      *
-     * See SimOptions.getMaxWindow().  This is used to do some pre-calculation.
+     * See SimOptions.getMaxWindow().  This is used to do some pre-calculation,
+     * and for a periodic lattice to add the window - 1 ghost sites that
+     * windows wrap into.  The window must be at most the lattice length.
      */
     public void setMaxWindow(int window) {
         powers = new int[window];
@@ -42,20 +238,92 @@ public class LatticeConfiguration {
         for (int i = 1; i < window; i++) {
             powers[i] = nstates * powers[i - 1];
         }
+
+        if (periodic) {
+            ghosts = window - 1;
+
+            int n = length + ghosts;
+
+            if (words != null) {
+                words = Arrays.copyOf(
+                    words, (int) (((long) n * bits + 63) / 64) + 1);
+            } else {
+                lattice = Arrays.copyOf(lattice, n);
+            }
+
+            copySites(0, length, ghosts);
+        }
+    }
+
+    /**
+     * Copy n sites starting at site from to the sites starting at site to.
+     */
+    private void copySites(int from, int to, int n) {
+        if (words == null) {
+            System.arraycopy(lattice, from, lattice, to, n);
+
+            return;
+        }
+
+        for (int k = 0; k < n; k++) {
+            writeField(
+                (long) (to + k) * bits, bits,
+                readField((long) (from + k) * bits, bits));
+        }
+    }
+
+    /**
+     * Set every site from states, as returned by toArray() of a lattice
+     * of the same length.
+     */
+    public void setConfiguration(int [] states) {
+        for (int i = 0; i < length; i++) {
+            if (words != null) {
+                writeField((long) i * bits, bits, states[i]);
+            } else {
+                lattice[i] = states[i];
+            }
+        }
+
+        if (ghosts > 0) {
+            copySites(0, length, ghosts);
+        }
     }
 
     /**
      * Get the current state at site i.
      */
     public int getConfigurationInt(int i) {
+        if (words != null) {
+            return (int) readField((long) i * bits, bits);
+        }
+
         return lattice[i];
     }
 
     /**
      * Get the current state at site i, ..., i + window - 1, represented
-     * as an integer.
+     * as an integer.  In a periodic lattice the sites past the end are
+     * those at the start.
      */
     public int getConfigurationInt(int i, int window) {
+        if (words != null) {
+            long field = readField((long) i * bits, window * bits);
+
+            if (powerOfTwo) {
+                // The field is already the local configuration
+                return (int) field;
+            }
+
+            int c = 0;
+
+            for (int shift = (window - 1) * bits; shift >= 0; shift -= bits) {
+                c = nstates * c + (int) ((field >>> shift) & siteMask);
+            }
+
+            return c;
+        }
+
         int c = lattice[i];
 
         for (int j = 1; j < window; j++) {
@@ -67,31 +335,81 @@ public class LatticeConfiguration {
 
     /**
      * Set the lattice configuration at sites i, ..., i + window - 1,
-     * specified by integer c.
+     * specified by integer c.  In a periodic lattice the sites past the
+     * end are those at the start.
      *
      * @param c The local configuration.
      * @param i The position.
      * @param window The affected window.
      */
     public void setConfiguration(int c, int i, int window) {
-        for (int j = 0; j < window; j++) {
-            int p = powers[window - j - 1];
+        if (words != null) {
+            long field;
+
+            if (powerOfTwo) {
+                field = c;
+            } else {
+                field = 0;
+
+                for (int shift = 0; shift < window * bits; shift += bits) {
+                    field |= (long) (c % nstates) << shift;
+                    c /= nstates;
+                }
+            }
+
+            writeField((long) i * bits, window * bits, field);
+        } else {
+            for (int j = 0; j < window; j++) {
+                int p = powers[window - j - 1];
 
-            lattice[i + j] = c / p;
+                lattice[i + j] = c / p;
 
-            c = c % p;
+                c = c % p;
+            }
+        }
+
+        if (periodic) {
+            // Keep the ghost sites and the sites they copy in step
+            if (i + window > length) {
+                copySites(length, 0, i + window - length);
+            }
+
+            if (i < ghosts) {
+                copySites(i, length + i, Math.min(i + window, ghosts) - i);
+            }
         }
     }
 
     public int getLength() {
-        return lattice.length;
+        return length;
+    }
+
+    public int getNumStates() {
+        return nstates;
+    }
+
+    /**
+     * Return the lattice configuration as an array of site states.
+     */
+    public int [] toArray() {
+        if (words == null) {
+            return Arrays.copyOf(lattice, length);
+        }
+
+        int [] sites = new int[length];
+
+        for (int i = 0; i < length; i++) {
+            sites[i] = getConfigurationInt(i);
+        }
+
+        return sites;
     }
 
     public String toString() {
         StringBuilder builder = new StringBuilder();
 
-        for (int i = 0; i < lattice.length; i++) {
-            builder.append(lattice[i]);
+        for (int i = 0; i < length; i++) {
+            builder.append(getConfigurationInt(i));
         }
 
         return builder.toString();
@@ -100,6 +418,6 @@ public class LatticeConfiguration {
     public String toJson() {
         Gson gson = new Gson();
 
-        return gson.toJson(this.lattice);
+        return gson.toJson(toArray());
     }
 }
@@ -0,0 +1,36 @@
+package openepsim;
+
+import org.apache.commons.math3.random.MersenneTwister;
+
+/**
+ * RandomSource using the commons-math Mersenne Twister, with exponential
+ * variates as -log(uniform).  This is the original generator.
+ */
+class MersenneTwisterSource implements RandomSource {
+    private static final long serialVersionUID = 1L;
+
+    private final MersenneTwister random;
+
+    /**
+     * @param seed Random seed.  Pass 0 to not set a seed.
+     */
+    MersenneTwisterSource(long seed) {
+        if (seed == 0) {
+            random = new MersenneTwister();
+        } else {
+            random = new MersenneTwister(seed);
+        }
+    }
+
+    public double nextDouble() {
+        return random.nextDouble();
+    }
+
+    public long nextLong() {
+        return random.nextLong();
+    }
+
+    public double nextExponential() {
+        return -Math.log(random.nextDouble());
+    }
+}
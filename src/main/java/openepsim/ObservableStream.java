@@ -0,0 +1,276 @@
+package openepsim;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+
+/**
+ * Stream block averaged observables to a file during a run, one JSON
+ * object per line (NDJSON), so long runs can be monitored and checked
+ * for convergence.
+ *
+ * Every interval units of recorded time, sample() writes a record of
+ * the block just finished:
+ *
+ * <pre>
+ * {"t": 2000.0, "dt": 1000.0, "density": [0.26, 0.74],
+ *  "speciesCount": [26, 74], "counts": [[[0, 46], [178, 0]], null]}
+ * </pre>
+ *
+ * where t is the recorded time at the end of the block, density[c] the
+ * average density of species c over the lattice and the block,
+ * speciesCount[c] the number of particles of species c at the end of
+ * the block, and counts the transition counts during the block (as in
+ * DensityStatistics.summary()).
+ *
+ * Records are written by a background thread through a bounded queue.
+ * If the writer falls behind and the queue is full, records are dropped
+ * (see getDropped()) rather than stalling the simulation.  The number
+ * dropped is then written as a last line by close(),
+ *
+ * <pre>
+ * {"dropped": 12}
+ * </pre>
+ *
+ * so that an incomplete file can be told from a complete one.
+ */
+public class ObservableStream {
+    private class Record {
+        double t;
+        double dt;
+        double [] density;
+        int [] speciesCount;
+        int [][][] counts;
+    }
+
+    // Marks the end of the queue
+    private static final String END = new String();
+
+    private static final int QUEUE_SIZE = 1024;
+
+    private final double interval;
+    private final int L;
+    private final int nstates;
+
+    private final BlockingQueue<String> queue;
+    private final Thread writerThread;
+    private volatile IOException writeError;
+
+    private long dropped;
+
+    // State at the start of the current block
+    private double tStart;
+    private double [] integralStart;
+    private int [][][] countsStart;
+
+    /**
+     * Open file for writing, and start the writer thread.
+     *
+     * @param interval Length of each block, in simulation time units.
+     * @param stats Statistics the records are derived from.  Blocks start
+     *        from its current total time.
+     */
+    public ObservableStream(
+        String file, double interval, DensityStatistics stats, int L,
+        int nstates
+    ) throws IOException {
+        this(
+            new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8)),
+            QUEUE_SIZE, interval, stats, L, nstates);
+    }
+
+    /**
+     * Write to writer through a queue of queueSize records, for testing.
+     */
+    ObservableStream(
+        final Writer writer, int queueSize, double interval,
+        DensityStatistics stats, int L, int nstates
+    ) {
+        this.interval = interval;
+        this.L = L;
+        this.nstates = nstates;
+
+        queue = new ArrayBlockingQueue<String>(queueSize);
+
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                writeRecords(writer);
+            }
+        }, "ObservableStream");
+
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        startBlock(stats);
+    }
+
+    private void writeRecords(Writer writer) {
+        try {
+            while (true) {
+                String line = queue.take();
+
+                if (line == END) {
+                    break;
+                }
+
+                writer.write(line);
+                writer.write('\n');
+
+                // Flush whenever we catch up, so the file can be followed
+                if (queue.isEmpty()) {
+                    writer.flush();
+                }
+            }
+        } catch (IOException e) {
+            writeError = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                if (writeError == null) {
+                    writeError = e;
+                }
+            }
+        }
+    }
+
+    private void startBlock(DensityStatistics stats) {
+        tStart = stats.getTotalTime();
+
+        integralStart = new double[nstates];
+
+        for (int c = 0; c < nstates; c++) {
+            integralStart[c] = stats.getSpeciesIntegral(c);
+        }
+
+        countsStart = copyCounts(stats.getCounts());
+    }
+
+    private static int [][][] copyCounts(int [][][] counts) {
+        int [][][] copy = new int[counts.length][][];
+
+        for (int spec = 0; spec < counts.length; spec++) {
+            if (counts[spec] == null) {
+                continue;
+            }
+
+            copy[spec] = new int[counts[spec].length][];
+
+            for (int i = 0; i < counts[spec].length; i++) {
+                copy[spec][i] = counts[spec][i].clone();
+            }
+        }
+
+        return copy;
+    }
+
+    /**
+     * The recorded time (DensityStatistics.getTotalTime()) at which the
+     * current block ends.
+     */
+    public double getNextTime() {
+        return tStart + interval;
+    }
+
+    /**
+     * End the current block, queue its record, and start a new block.
+     * Does nothing if no time has passed in the current block.
+     */
+    public void sample(DensityStatistics stats) {
+        double t = stats.getTotalTime();
+        double dt = t - tStart;
+
+        if (dt <= 0) {
+            return;
+        }
+
+        Record record = new Record();
+
+        record.t = t;
+        record.dt = dt;
+        record.density = new double[nstates];
+        record.speciesCount = new int[nstates];
+
+        for (int c = 0; c < nstates; c++) {
+            double integral = stats.getSpeciesIntegral(c);
+
+            record.density[c] = (integral - integralStart[c]) / (dt * L);
+            record.speciesCount[c] = stats.getSpeciesCount(c);
+        }
+
+        record.counts = copyCounts(stats.getCounts());
+
+        for (int spec = 0; spec < record.counts.length; spec++) {
+            if (record.counts[spec] == null) {
+                continue;
+            }
+
+            for (int i = 0; i < record.counts[spec].length; i++) {
+                for (int j = 0; j < record.counts[spec][i].length; j++) {
+                    record.counts[spec][i][j] -= countsStart[spec][i][j];
+                }
+            }
+        }
+
+        Gson gson = new Gson();
+
+        if (!queue.offer(gson.toJson(record))) {
+            dropped++;
+        }
+
+        startBlock(stats);
+    }
+
+    /**
+     * The number of records dropped because the writer fell behind.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Write out any remaining records, and the number dropped if any, and
+     * close the file.
+     */
+    public void close() throws IOException {
+        try {
+            if (dropped > 0) {
+                finish("{\"dropped\": " + dropped + "}");
+            }
+
+            finish(END);
+
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    /**
+     * Queue line, waiting for room, unless the writer has stopped.
+     */
+    private void finish(String line) throws InterruptedException {
+        // The writer may have stopped on an error, leaving the queue full
+        while (
+            writerThread.isAlive()
+            &&
+            !queue.offer(line, 100, TimeUnit.MILLISECONDS)
+        ) {
+        }
+    }
+}
@@ -1,9 +1,58 @@
 package openepsim;
 
-import org.apache.commons.math3.random.MersenneTwister;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 
 public class OpenEPSimulation {
-    private MersenneTwister random;
+    private RandomSource random;
+
+    // Streams observables during recorded runs, if set
+    private ObservableStream stream;
+
+    // Records every transition, if set
+    private TrajectoryWriter trajectory;
+
+    // Time of the start of the current run, for the trajectory
+    private double runStart;
+
+    // The options of the current simulate()
+    private SimOptions options;
+
+    // Checkpointing: the statistics of the current simulate(), and the
+    // time (from the start of the run, including tSkip) of the next
+    // checkpoint.  checkpointFile is null when not checkpointing.
+    private String checkpointFile;
+    private double checkpointInterval;
+    private DensityStatistics checkpointStats;
+    private double nextCheckpoint;
+
+    // Scheduled rate changes of the current simulate(), and the index of
+    // the next to apply.  rateChanges is null when the rates are fixed.
+    private SimOptions.RateChange [] rateChanges;
+    private int nextRateChange;
+
+    // What is due at the stop nextStop() last returned
+    private boolean sampleDue;
+    private boolean batchDue;
+    private boolean checkpointDue;
+    private boolean rateChangeDue;
+
+    // Whether the statistics have reached the requested precision
+    private boolean precise;
+
+    // Whether simulate() continued from a checkpoint
+    private boolean resumed;
+
+    // The time skipped before recording by the last simulate()
+    private double skipTime;
+
+    // Rejection sampling: number of candidate and accepted events
+    private long candidates;
+    private long accepted;
+
+    // Instrumentation, or null when disabled
+    private SimCounters counters;
 
     /**
      *  Construct with random seed value (0 to not set a seed).
@@ -11,11 +60,15 @@ public class OpenEPSimulation {
      *  @param seed Random seed.  Pass 0 to not set a seed.
      */
     public OpenEPSimulation(long seed) {
-        if (seed == 0) {
-            random = new MersenneTwister();
-        } else {
-            random = new MersenneTwister(seed);
-        }
+        this(new MersenneTwisterSource(seed));
+    }
+
+    /**
+     *  Construct with a given random number generator, see
+     *  RandomSource.create().
+     */
+    public OpenEPSimulation(RandomSource random) {
+        this.random = random;
     }
 
     /**
@@ -28,77 +81,298 @@ public class OpenEPSimulation {
     public void run(
         LatticeConfiguration config, Transitions transitions, double tEnd
     ) {
-        double t = 0;
+        runUnrecorded(config, transitions, 0, tEnd, false);
+    }
 
-        while (true) {
-            double exitRate = transitions.getExitRate();
+    /**
+     * Run, recording statistics, until simulated time exceeds tEnd.
+     */
+    public void run(
+        LatticeConfiguration config, Transitions transitions,
+        double tEnd, DensityStatistics stats
+    ) {
+        stats.start(config);
 
-            double dt = -Math.log(random.nextDouble()) / exitRate;
+        runRecorded(config, transitions, 0, tEnd, stats, false);
+    }
 
-            t += dt;
+    /**
+     * Set a stream to write observables to during runs recording
+     * statistics, or null for none.
+     */
+    public void setObservableStream(ObservableStream stream) {
+        this.stream = stream;
+    }
 
-            if (t > tEnd) {
-                break;
-            }
+    /**
+     * Set a writer to record every transition to, or null for none.
+     *
+     * @param runStart Time of the start of the next run.  Events are
+     *        recorded at time runStart + t, where t is measured from the
+     *        start of the run.
+     */
+    public void setTrajectory(TrajectoryWriter trajectory, double runStart) {
+        this.trajectory = trajectory;
+        this.runStart = runStart;
+    }
 
-            transitions.doTransition(random.nextDouble() * exitRate);
+    /**
+     * Record the transition just performed at time t to the trajectory,
+     * if any.
+     */
+    private void record(Transitions transitions, double t) {
+        if (trajectory == null) {
+            return;
+        }
+
+        try {
+            trajectory.event(
+                runStart + t,
+                transitions.getLastPosition(),
+                transitions.getLastWindow(),
+                transitions.getLastConfiguration()
+            );
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
     /**
-     * Run, recording statistics, until simulated time exceeds tEnd.
+     * The time (measured like t, from the start of the current run) of
+     * the next point the run loop must stop at: the next sample of the
+     * observable stream, the end of the current batch of the statistics,
+     * the next checkpoint, the next rate change, or tEnd.  Sets the flags
+     * saying which are due then.
+     *
+     * Waiting times are drawn afresh after each stop, which is exact as
+     * they are exponentially distributed.
      */
-    public void run(
-        LatticeConfiguration config, Transitions transitions,
+    private double nextStop(double t, double tEnd, DensityStatistics stats) {
+        double tSample = Double.POSITIVE_INFINITY;
+        double tBatch = Double.POSITIVE_INFINITY;
+        double tCheckpoint = Double.POSITIVE_INFINITY;
+        double tRateChange = Double.POSITIVE_INFINITY;
+
+        if (stream != null && stats != null) {
+            tSample = t + stream.getNextTime() - stats.getTotalTime();
+        }
+
+        if (stats != null && stats.getBatchLength() > 0) {
+            tBatch = t + stats.getNextBatchTime() - stats.getTotalTime();
+        }
+
+        if (checkpointFile != null) {
+            tCheckpoint = nextCheckpoint - runStart;
+        }
+
+        if (rateChanges != null && nextRateChange < rateChanges.length) {
+            // Not before t, for a change due before this run started
+            tRateChange
+                = Math.max(t, rateChanges[nextRateChange].time - runStart);
+        }
+
+        double tStop = Math.min(
+            Math.min(Math.min(tEnd, tSample), Math.min(tBatch, tCheckpoint)),
+            tRateChange);
+
+        sampleDue = tSample == tStop;
+        batchDue = tBatch == tStop;
+        checkpointDue = tCheckpoint == tStop;
+        rateChangeDue = tRateChange == tStop;
+
+        return tStop;
+    }
+
+    /**
+     * Replace the rates of the spec change applies to.
+     */
+    private void applyRateChange(
+        Transitions transitions, SimOptions.RateChange change) {
+        transitions.setRates(
+            change.spec,
+            change.getTable(
+                options.nstates, options.transitions[change.spec].window));
+    }
+
+    /**
+     * Handle a stop at time t, returning the time of the next stop.  Sets
+     * precise if the run can end early.
+     */
+    private double stop(
+        LatticeConfiguration config, Transitions transitions, double t,
         double tEnd, DensityStatistics stats
     ) {
-        double t = 0;
+        if (rateChangeDue) {
+            // Along with any others at the same time
+            double time = rateChanges[nextRateChange].time;
+
+            while (
+                nextRateChange < rateChanges.length
+                &&
+                rateChanges[nextRateChange].time == time
+            ) {
+                applyRateChange(transitions, rateChanges[nextRateChange++]);
+            }
+        }
+
+        if (sampleDue) {
+            stream.sample(stats);
+        }
+
+        if (batchDue) {
+            stats.endBatch();
+
+            if (
+                options != null
+                &&
+                (options.densityTolerance > 0 || options.rateTolerance > 0)
+                &&
+                stats.isPrecise(
+                    options.densityTolerance, options.rateTolerance)
+            ) {
+                precise = true;
+            }
+        }
+
+        if (checkpointDue) {
+            nextCheckpoint += checkpointInterval;
+
+            checkpoint(config, transitions, t, stats);
+        }
+
+        return nextStop(t, tEnd, stats);
+    }
+
+    /**
+     * Write a checkpoint of the run at time t.
+     */
+    private void checkpoint(
+        LatticeConfiguration config, Transitions transitions, double t,
+        DensityStatistics stats
+    ) {
+        Checkpoint checkpoint = new Checkpoint();
+
+        checkpoint.recording = stats != null;
+        checkpoint.t = t;
+        checkpoint.nextCheckpoint = nextCheckpoint;
+        checkpoint.exitRate = transitions.getExitRate();
+        checkpoint.candidates = candidates;
+        checkpoint.accepted = accepted;
+        checkpoint.nextRateChange = nextRateChange;
+        checkpoint.config = config;
+        checkpoint.random = random;
+
+        try {
+            checkpoint.write(checkpointFile, options, checkpointStats);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Run without recording statistics from time t until simulated time
+     * exceeds tEnd, printing each configuration and time in verbose mode.
+     */
+    private void runUnrecorded(
+        LatticeConfiguration config, Transitions transitions, double t,
+        double tEnd, boolean verbose
+    ) {
+        double tStop = nextStop(t, tEnd, null);
 
         while (true) {
             double exitRate = transitions.getExitRate();
 
-            double dt = -Math.log(random.nextDouble()) / exitRate;
+            double dt = random.nextExponential() / exitRate;
+
+            if (t + dt >= tStop) {
+                t = tStop;
 
-            if (t + dt >= tEnd) {
-                stats.update(config, tEnd - t);
+                if (t >= tEnd) {
+                    return;
+                }
 
-                return;
+                tStop = stop(config, transitions, t, tEnd, null);
+
+                continue;
             }
-            
-            stats.update(config, dt);
 
             t += dt;
 
-            transitions.doTransition(random.nextDouble() * exitRate, stats);
+            if (!transitions.doTransition(random.nextDouble() * exitRate)) {
+                continue;
+            }
+
+            record(transitions, t);
+
+            if (verbose) {
+                System.out.println(config.toString() + " : " + t);
+            }
         }
     }
 
     /**
-     * Run in verbose mode, without recording statistics,
-     * until simulated time exceeds tEnd
+     * Run, recording statistics, from time t until simulated time exceeds
+     * tEnd, printing each configuration in verbose mode.  stats.start()
+     * must have been called.
      */
-    public void runVerbose(
-        LatticeConfiguration config, Transitions transitions, double tEnd
+    private void runRecorded(
+        LatticeConfiguration config, Transitions transitions, double t,
+        double tEnd, DensityStatistics stats, boolean verbose
     ) {
-        double t = 0;
+        double tStop = nextStop(t, tEnd, stats);
 
         while (true) {
             double exitRate = transitions.getExitRate();
 
-            double dt = -Math.log(random.nextDouble()) / exitRate;
+            double dt = random.nextExponential() / exitRate;
+
+            if (t + dt >= tStop) {
+                stats.advance(tStop - t);
+
+                t = tStop;
+
+                if (t >= tEnd) {
+                    return;
+                }
+
+                tStop = stop(config, transitions, t, tEnd, stats);
+
+                if (precise) {
+                    return;
+                }
+
+                continue;
+            }
+
+            stats.advance(dt);
 
             t += dt;
 
-            if (t > tEnd) {
-                break;
+            if (
+                !transitions.doTransition(
+                    random.nextDouble() * exitRate, stats)
+            ) {
+                continue;
             }
 
-            transitions.doTransition(random.nextDouble() * exitRate);
+            record(transitions, t);
 
-            System.out.println(config.toString() + " : " + t);
+            if (verbose) {
+                System.out.println(config.toString());
+            }
         }
     }
 
+    /**
+     * Run in verbose mode, without recording statistics,
+     * until simulated time exceeds tEnd
+     */
+    public void runVerbose(
+        LatticeConfiguration config, Transitions transitions, double tEnd
+    ) {
+        runUnrecorded(config, transitions, 0, tEnd, true);
+    }
+
     /**
      * Run in verbose mode, recording statistics, until simulated time exceeds
      * tEnd.
@@ -107,27 +381,239 @@ public class OpenEPSimulation {
         LatticeConfiguration config, Transitions transitions, double tEnd,
         DensityStatistics stats
     ) {
-        double t = 0;
+        stats.start(config);
+
+        runRecorded(config, transitions, 0, tEnd, stats, true);
+    }
+
+    /**
+     * Run using rejection sampling until simulated time exceeds tEnd,
+     * recording statistics if stats is not null.
+     *
+     * Candidate events occur at the constant rate
+     * transitions.getBoundingRate(), and are accepted with probability
+     * (actual rate) / (maximum rate), see Transitions.tryTransition().
+     *
+     * @param verbose Print out the configuration after each accepted
+     *        event.
+     */
+    public void runRejection(
+        LatticeConfiguration config, Transitions transitions, double tEnd,
+        DensityStatistics stats, boolean verbose
+    ) {
+        if (stats != null) {
+            stats.start(config);
+        }
+
+        runRejection(config, transitions, 0, tEnd, stats, verbose);
+    }
+
+    /**
+     * runRejection() from time t.  If stats is not null, stats.start()
+     * must have been called.
+     */
+    private void runRejection(
+        LatticeConfiguration config, Transitions transitions, double t,
+        double tEnd, DensityStatistics stats, boolean verbose
+    ) {
+        double boundingRate = transitions.getBoundingRate();
+
+        double tStop = nextStop(t, tEnd, stats);
 
         while (true) {
-            double exitRate = transitions.getExitRate();
+            double dt = random.nextExponential() / boundingRate;
+
+            if (t + dt >= tStop) {
+                if (stats != null) {
+                    stats.advance(tStop - t);
+                }
+
+                t = tStop;
 
-            double dt = -Math.log(random.nextDouble()) / exitRate;
+                if (t >= tEnd) {
+                    return;
+                }
 
-            if (t + dt >= tEnd) {
-                stats.update(config, tEnd - t);
+                tStop = stop(config, transitions, t, tEnd, stats);
 
-                return;
+                if (precise) {
+                    return;
+                }
+
+                // Which may have changed with the rates
+                boundingRate = transitions.getBoundingRate();
+
+                continue;
             }
- 
-            stats.update(config, dt);
 
             t += dt;
 
-            transitions.doTransition(random.nextDouble() * exitRate, stats);
+            if (stats != null) {
+                stats.advance(dt);
+            }
+
+            candidates++;
+
+            double r = random.nextDouble() * boundingRate;
+
+            if (transitions.tryTransition(r, stats)) {
+                accepted++;
+
+                record(transitions, t);
+
+                if (verbose) {
+                    System.out.println(config.toString() + " : " + t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the work done by simulate() in counters (null to not count).
+     */
+    public void setCounters(SimCounters counters) {
+        this.counters = counters;
+    }
+
+    public SimCounters getCounters() {
+        return counters;
+    }
+
+    /**
+     * The number of observable stream records dropped because the
+     * writer fell behind.
+     */
+    public long getSamplesDropped() {
+        return stream != null ? stream.getDropped() : 0;
+    }
+
+    /**
+     * Fraction of candidate events accepted by runRejection() while
+     * recording statistics in the last simulate() (the tSkip part is left
+     * out, as the acceptance there depends on the initial state).  A low
+     * value means rejection sampling is a poor fit for the model.
+     */
+    public double getAcceptanceRatio() {
+        return candidates > 0 ? (double) accepted / candidates : 0;
+    }
+
+    /**
+     * Run without recording statistics until the density and current
+     * have relaxed (see WarmupDetector), or for tSkip at most, returning
+     * the time run for.
+     *
+     * The run is divided into blocks of options.warmupInterval, giving
+     * the block averages of the density of occupied (non-zero) sites and
+     * of the net current: the rate of the counted transitions weighted
+     * by their currentWeights (e.g. +1 in and -1 out at a boundary).
+     * Counted transitions without currentWeights are left out, as with
+     * every weight 1 they would measure the activity rather than the
+     * current.  One accumulator records all the blocks, and each block
+     * is the difference of its totals at the block's ends.
+     */
+    private double runWarmup(
+        LatticeConfiguration config, Transitions transitions,
+        SimOptions options, double tSkip, boolean verbose
+    ) {
+        WarmupDetector detector
+            = new WarmupDetector(2, options.warmupTolerance);
+
+        double [][][] weights = new double[options.transitions.length][][];
+
+        for (int spec = 0; spec < weights.length; spec++) {
+            if (options.transitions[spec].count) {
+                weights[spec] = options.transitions[spec].getCurrentWeights(
+                    options.nstates);
+            }
+        }
+
+        DensityStatistics blocks = new DensityStatistics(
+            options.L, options.nstates, options.transitions);
+
+        blocks.start(config);
+
+        double [] start = warmupTotals(blocks, options.nstates, weights);
+
+        double t = 0;
+
+        while (t < tSkip && !detector.isRelaxed()) {
+            double dt = Math.min(options.warmupInterval, tSkip - t);
+
+            runStart = t;
+
+            if (options.useRejection()) {
+                runRejection(config, transitions, 0, dt, blocks, verbose);
+            } else {
+                runRecorded(config, transitions, 0, dt, blocks, verbose);
+            }
+
+            double [] end = warmupTotals(blocks, options.nstates, weights);
+
+            detector.addBlock(new double [] {
+                (end[0] - start[0]) / (dt * options.L),
+                (end[1] - start[1]) / dt
+            });
 
-            System.out.println(config.toString());
+            start = end;
+
+            t = Math.min(t + dt, tSkip);
         }
+
+        return t;
+    }
+
+    /**
+     * The totals recorded in stats for runWarmup(): the time integral of
+     * the number of occupied sites, and the integrated current of the
+     * counted transitions with weights (null for none).
+     */
+    private static double [] warmupTotals(
+        DensityStatistics stats, int nstates, double [][][] weights
+    ) {
+        double [] totals = new double[2];
+
+        for (int c = 1; c < nstates; c++) {
+            totals[0] += stats.getSpeciesIntegral(c);
+        }
+
+        int [][][] counts = stats.getCounts();
+
+        for (int spec = 0; spec < counts.length; spec++) {
+            if (weights[spec] == null) {
+                continue;
+            }
+
+            for (int i = 0; i < counts[spec].length; i++) {
+                for (int j = 0; j < counts[spec][i].length; j++) {
+                    totals[1] += weights[spec][i][j] * counts[spec][i][j];
+                }
+            }
+        }
+
+        return totals;
+    }
+
+    /**
+     * The time skipped before statistics were recorded by the last
+     * simulate(): tSkip, unless chosen by warm-up detection.
+     */
+    public double getSkipTime() {
+        return skipTime;
+    }
+
+    /**
+     * Whether the last simulate() ended before tMax because the
+     * statistics reached the requested precision.
+     */
+    public boolean isPrecise() {
+        return precise;
+    }
+
+    /**
+     * Whether the last simulate() continued from a checkpoint.
+     */
+    public boolean isResumed() {
+        return resumed;
     }
 
     public LatticeConfiguration simulate(
@@ -141,41 +627,262 @@ public class OpenEPSimulation {
             tSkip = tMax;
         }
 
+        if (options.domains > 1) {
+            return simulateDomains(options, stats);
+        }
+
+        if (options.correlationDistance > 0) {
+            stats.setCorrelations(
+                options.correlationSpecies, options.correlationDistance,
+                options.periodic);
+        }
+
+        if (options.currentWindow > 0) {
+            stats.setCurrentWindow(options.currentWindow);
+        }
+
+        // Time from the start of the current part of the run
         double t = 0;
+        boolean recording = false;
 
-        LatticeConfiguration config = new LatticeConfiguration(
-            options.L,
-            options.nstates,
-            options.initialState
-        );
+        LatticeConfiguration config;
+        Checkpoint checkpoint = null;
 
-        config.setMaxWindow(options.getMaxWindow());
+        resumed = false;
+        precise = false;
 
-        Transitions transitions = new Transitions(config, options.transitions);
+        if (options.resume && new File(options.checkpointFile).exists()) {
+            try {
+                checkpoint
+                    = Checkpoint.read(options.checkpointFile, options, stats);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
 
-        if (options.verbose == 0) {
-            // Don't print anything during the run
+            resumed = true;
 
-            // Don't record statistics for the first part
-            run(config, transitions, tSkip);
+            config = checkpoint.config;
+            random = checkpoint.random;
+            candidates = checkpoint.candidates;
+            accepted = checkpoint.accepted;
 
-            // Now start recording stats
-            run(config, transitions, tMax - tSkip, stats);
+            t = checkpoint.t;
+            recording = checkpoint.recording;
         } else {
-            // Verbose mode: print out configuration at each time increment
+            config = new LatticeConfiguration(
+                options.L,
+                options.nstates,
+                options.initialState,
+                LatticeConfiguration.isPackedByDefault(options.nstates),
+                options.periodic
+            );
+        }
+
+        config.setMaxWindow(options.getMaxWindow());
+
+        Transitions transitions = new Transitions(
+            config, options.transitions, options.useTree());
 
-            System.out.println(config.toString());
+        this.options = options;
 
-            // Don't record statistics for the first part
-            runVerbose(config, transitions, tSkip);
+        rateChanges = options.rateChanges;
+        nextRateChange = 0;
 
-            // Now start recording stats
-            runVerbose(config, transitions, tMax - tSkip, stats);
+        transitions.setCounters(counters);
+
+        if (checkpoint != null) {
+            // The rates as they were when the checkpoint was written
+            for (int k = 0; k < checkpoint.nextRateChange; k++) {
+                applyRateChange(transitions, rateChanges[k]);
+            }
+
+            nextRateChange = checkpoint.nextRateChange;
+
+            transitions.setExitRate(checkpoint.exitRate);
+        }
+
+        stream = null;
+        trajectory = null;
+
+        checkpointFile = null;
+
+        if (options.checkpointInterval > 0) {
+            checkpointFile = options.checkpointFile;
+            checkpointInterval = options.checkpointInterval;
+            checkpointStats = stats;
+
+            nextCheckpoint = checkpoint != null
+                ? checkpoint.nextCheckpoint : checkpointInterval;
+        }
+
+        Throwable failure = null;
+
+        try {
+            if (options.trajectoryFile != null) {
+                try {
+                    trajectory = new TrajectoryWriter(
+                        options.trajectoryFile, config, options.nstates,
+                        options.getMaxWindow());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            boolean verbose = options.verbose > 0;
+
+            if (verbose && !resumed) {
+                // Verbose mode: print out configuration at each time increment
+                System.out.println(config.toString());
+            }
+
+            long phaseStart = System.nanoTime();
+
+            if (!recording) {
+                // Don't record statistics for the first part
+                runStart = 0;
+
+                if (options.warmupInterval > 0) {
+                    tSkip = runWarmup(
+                        config, transitions, options, tSkip, verbose);
+                } else if (options.useRejection()) {
+                    runRejection(config, transitions, t, tSkip, null, verbose);
+                } else {
+                    runUnrecorded(config, transitions, t, tSkip, verbose);
+                }
+
+                // The acceptance ratio and counters describe the recorded
+                // part only
+                candidates = 0;
+                accepted = 0;
+
+                if (counters != null) {
+                    long now = System.nanoTime();
+
+                    counters.unrecordedNanos += now - phaseStart;
+                    phaseStart = now;
+
+                    counters.resetCounts();
+                }
+
+                // Now start recording stats
+                t = 0;
+                stats.start(config);
+
+                if (options.batchInterval > 0) {
+                    stats.setBatchLength(options.batchInterval);
+                }
+            }
+
+            skipTime = tSkip;
+
+            // Observables are only sampled while recording
+            if (options.sampleInterval > 0) {
+                try {
+                    stream = new ObservableStream(
+                        options.sampleFile, options.sampleInterval, stats,
+                        options.L, options.nstates);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            runStart = tSkip;
+
+            if (options.useRejection()) {
+                runRejection(
+                    config, transitions, t, tMax - tSkip, stats, verbose);
+            } else {
+                runRecorded(
+                    config, transitions, t, tMax - tSkip, stats, verbose);
+            }
+
+            if (counters != null) {
+                counters.recordedNanos += System.nanoTime() - phaseStart;
+            }
+
+            if (stream != null) {
+                // The final, possibly partial, block
+                stream.sample(stats);
+            }
+        } catch (Throwable e) {
+            failure = e;
+
+            throw e;
+        } finally {
+            checkpointFile = null;
+            rateChanges = null;
+
+            closeOutputs(failure);
         }
 
         return config;
     }
 
+    /**
+     * Close the trajectory and sample stream of a run, if open, however
+     * it ended.  If the run failed (failure is not null), errors closing
+     * them are added to failure rather than thrown.
+     */
+    private void closeOutputs(Throwable failure) {
+        IOException error = null;
+
+        try {
+            if (trajectory != null) {
+                trajectory.close();
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+
+        try {
+            if (stream != null) {
+                stream.close();
+            }
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            } else {
+                error.addSuppressed(e);
+            }
+        }
+
+        trajectory = null;
+        stream = null;
+
+        if (error != null) {
+            if (failure == null) {
+                throw new UncheckedIOException(error);
+            }
+
+            failure.addSuppressed(error);
+        }
+    }
+
+    /**
+     * simulate() for options.domains greater than 1: simulate the lattice
+     * in parallel, see DomainSimulation.
+     */
+    private LatticeConfiguration simulateDomains(
+        SimOptions options, DensityStatistics stats
+    ) {
+        DomainSimulation domains = new DomainSimulation(
+            options, random.nextLong());
+
+        domains.setCounters(counters);
+
+        try {
+            domains.simulate(stats);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new IllegalStateException("Interrupted", e);
+        }
+
+        skipTime = Math.min(options.tSkip, options.tMax);
+
+        return domains.getConfiguration();
+    }
+
     /**
      * main() implementing very simple interface.
      *
@@ -189,17 +896,55 @@ public class OpenEPSimulation {
 
         SimOptions options = SimOptions.fromJSON(SimUtil.getStdIn());
 
-        OpenEPSimulation sim = new OpenEPSimulation(options.seed);
+        System.out.println(runToJSON(options, startTime));
+    }
+
+    /**
+     * Run the simulation specified by options, and return the run
+     * options and results as a JSON string (the output of main()).
+     *
+     * @param startTime Wall clock time (from System.currentTimeMillis())
+     *        the reported runtime is measured from.
+     */
+    public static String runToJSON(SimOptions options, long startTime)
+        throws Exception {
+        if (options.replicas > 1) {
+            return runReplicasToJSON(options, startTime);
+        }
+
+        if (options.clones > 0) {
+            return runCloningToJSON(options, startTime);
+        }
+
+        OpenEPSimulation sim = new OpenEPSimulation(
+            RandomSource.create(options.generator, options.seed));
 
         DensityStatistics stats
         =
         new DensityStatistics(options.L, options.nstates, options.transitions);
 
-        LatticeConfiguration config = sim.simulate(options, stats);
+        SimCounters counters = null;
+
+        if (options.instrument) {
+            counters = new SimCounters();
+            counters.register("run");
+
+            sim.setCounters(counters);
+        }
+
+        LatticeConfiguration config;
+
+        try {
+            config = sim.simulate(options, stats);
+        } finally {
+            if (counters != null) {
+                counters.unregister();
+            }
+        }
 
         final long endTime = System.currentTimeMillis();
 
-        // Print out run options and results
+        // Run options and results
 
         String outString =
             "{\n\"options\": "
@@ -214,12 +959,132 @@ public class OpenEPSimulation {
             +
             config.toJson()
             +
+            (
+                options.useRejection()
+                ?
+                ", \n\"acceptanceRatio\": " + sim.getAcceptanceRatio()
+                :
+                ""
+            )
+            +
+            (
+                options.sampleInterval > 0
+                ?
+                ", \n\"samplesDropped\": " + sim.getSamplesDropped()
+                :
+                ""
+            )
+            +
+            (
+                options.densityTolerance > 0 || options.rateTolerance > 0
+                ?
+                ", \n\"precise\": " + sim.isPrecise()
+                :
+                ""
+            )
+            +
+            (
+                options.warmupInterval > 0
+                ?
+                ", \n\"skipTime\": " + sim.getSkipTime()
+                :
+                ""
+            )
+            +
+            (
+                counters != null
+                ?
+                ", \n\"counters\": " + counters.toJson()
+                :
+                ""
+            )
+            +
+            ", \n\"runtime\": "
+            +
+            (endTime - startTime)
+            +
+            "\n}";
+
+        return outString;
+    }
+
+    /**
+     * runToJSON() for options.replicas greater than 1: run the replicas
+     * in parallel, and return the merged results.
+     */
+    private static String runReplicasToJSON(SimOptions options, long startTime)
+        throws Exception {
+        ReplicaRunner runner = new ReplicaRunner(options);
+
+        runner.run();
+
+        final long endTime = System.currentTimeMillis();
+
+        String outString =
+            "{\n\"options\": "
+            +
+            options.toString()
+            +
+            ", \n\"results\": "
+            +
+            runner.getMergedStatistics().summary()
+            +
+            ", \n\"replicaResults\": "
+            +
+            runner.summary()
+            +
+            ", \n\"finalStates\": "
+            +
+            runner.finalStatesJson()
+            +
+            (
+                options.instrument
+                ?
+                ", \n\"counters\": " + runner.getMergedCounters().toJson()
+                :
+                ""
+            )
+            +
+            ", \n\"runtime\": "
+            +
+            (endTime - startTime)
+            +
+            "\n}";
+
+        return outString;
+    }
+
+    /**
+     * runToJSON() for options.clones greater than 0: run the cloning
+     * algorithm, and return its estimates.
+     */
+    private static String runCloningToJSON(SimOptions options, long startTime)
+        throws Exception {
+        CloningSimulation cloning = new CloningSimulation(options);
+
+        cloning.simulate();
+
+        final long endTime = System.currentTimeMillis();
+
+        String outString =
+            "{\n\"options\": "
+            +
+            options.toString()
+            +
+            ", \n\"results\": "
+            +
+            cloning.summary()
+            +
+            ", \n\"finalState\": "
+            +
+            cloning.getConfiguration(0).toJson()
+            +
             ", \n\"runtime\": "
             +
             (endTime - startTime)
             +
             "\n}";
 
-        System.out.println(outString);
+        return outString;
     }
 }
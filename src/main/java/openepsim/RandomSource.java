@@ -0,0 +1,79 @@
+package openepsim;
+
+import java.io.Serializable;
+
+import org.apache.commons.math3.random.MersenneTwister;
+
+/**
+ * A source of random numbers for the simulation loop.  Each event needs
+ * an exponentially distributed waiting time and a uniform value to
+ * select the transition, so implementations can provide a faster
+ * exponential variate than -log(uniform).
+ *
+ * Sources are Serializable so that their state can be saved in a
+ * checkpoint.
+ */
+public interface RandomSource extends Serializable {
+    /**
+     * Uniformly distributed in [0, 1).
+     */
+    double nextDouble();
+
+    /**
+     * 64 uniformly distributed random bits.
+     */
+    long nextLong();
+
+    /**
+     * Exponentially distributed with mean 1.
+     */
+    double nextExponential();
+
+    /**
+     * Create the generator named generator (SimOptions.GENERATOR_MT,
+     * GENERATOR_SPLITMIX or GENERATOR_XOSHIRO), seeded with seed (0 to let
+     * the system choose).
+     */
+    static RandomSource create(String generator, long seed) {
+        if (SimOptions.GENERATOR_MT.equals(generator)) {
+            return new MersenneTwisterSource(seed);
+        }
+
+        if (seed == 0) {
+            seed = new MersenneTwister().nextLong();
+        }
+
+        if (SimOptions.GENERATOR_SPLITMIX.equals(generator)) {
+            return new SplitMixSource(seed);
+        }
+
+        if (SimOptions.GENERATOR_XOSHIRO.equals(generator)) {
+            return new XoshiroSource(seed);
+        }
+
+        throw new IllegalArgumentException("Unknown generator: " + generator);
+    }
+
+    /**
+     * Create independent stream number stream of the generator named
+     * generator, for example for one of a number of replicas.
+     *
+     * For xoshiro the streams are non-overlapping blocks of the sequence
+     * from seed, 2^128 numbers apart (see XoshiroSource.jump()).  For the
+     * others, the stream is seeded with ReplicaRunner.replicaSeed(seed,
+     * stream).
+     */
+    static RandomSource create(String generator, long seed, int stream) {
+        if (SimOptions.GENERATOR_XOSHIRO.equals(generator)) {
+            XoshiroSource source = (XoshiroSource) create(generator, seed);
+
+            for (int k = 0; k < stream; k++) {
+                source.jump();
+            }
+
+            return source;
+        }
+
+        return create(generator, ReplicaRunner.replicaSeed(seed, stream));
+    }
+}
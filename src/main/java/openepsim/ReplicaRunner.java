@@ -0,0 +1,331 @@
+package openepsim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.math3.random.MersenneTwister;
+
+import com.google.gson.Gson;
+
+/**
+ * Run a number of independent replicas of the same simulation on a
+ * thread pool, and merge their statistics.
+ *
+ * Each replica has its own random stream, derived deterministically
+ * from the options seed (see RandomSource.create()), so a run
+ * with a given seed can be repeated exactly regardless of the number of
+ * threads.
+ */
+public class ReplicaRunner {
+    private class ReplicaResults {
+        long seed;
+        int replicas;
+        double [][] densityError;
+        double [][][] rateError;
+    }
+
+    private final SimOptions options;
+    private final long seed;
+
+    private final DensityStatistics [] stats;
+    private final LatticeConfiguration [] configs;
+    private final SimCounters [] counters;
+
+    /**
+     * Construct a runner for options.replicas replicas of the simulation
+     * specified by options.
+     */
+    public ReplicaRunner(SimOptions options) {
+        this.options = options;
+
+        // Choose a seed if none was given, so we can report it
+        long seed = options.seed;
+
+        while (seed == 0) {
+            seed = new MersenneTwister().nextLong();
+        }
+
+        this.seed = seed;
+
+        this.stats = new DensityStatistics[options.replicas];
+        this.configs = new LatticeConfiguration[options.replicas];
+        this.counters = new SimCounters[options.replicas];
+    }
+
+    /**
+     * The seed for replica number replica, derived from seed by the
+     * SplitMix64 mixing function.  Never zero (which would mean "no
+     * seed" to OpenEPSimulation).
+     */
+    public static long replicaSeed(long seed, int replica) {
+        long z = seed + (replica + 1) * 0x9E3779B97F4A7C15L;
+
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+
+        return z != 0 ? z : 1;
+    }
+
+    /**
+     * Run all replicas, returning once they have all finished.
+     */
+    public void run() throws Exception {
+        int threads = options.threads;
+
+        if (threads == 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        ExecutorService executor
+            = Executors.newFixedThreadPool(Math.min(threads, options.replicas));
+
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+
+            for (int k = 0; k < options.replicas; k++) {
+                final int replica = k;
+
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() {
+                        runReplica(replica);
+
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void runReplica(int replica) {
+        OpenEPSimulation sim = new OpenEPSimulation(
+            RandomSource.create(options.generator, seed, replica));
+
+        DensityStatistics replicaStats = new DensityStatistics(
+            options.L, options.nstates, options.transitions);
+
+        if (options.instrument) {
+            counters[replica] = new SimCounters();
+            counters[replica].register("replica");
+
+            sim.setCounters(counters[replica]);
+        }
+
+        try {
+            configs[replica] = sim.simulate(options, replicaStats);
+        } finally {
+            if (counters[replica] != null) {
+                counters[replica].unregister();
+            }
+        }
+
+        stats[replica] = replicaStats;
+    }
+
+    /**
+     * The seed replica seeds were derived from.
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Statistics of replica number replica.
+     */
+    public DensityStatistics getStatistics(int replica) {
+        return stats[replica];
+    }
+
+    /**
+     * Final configuration of replica number replica.
+     */
+    public LatticeConfiguration getConfiguration(int replica) {
+        return configs[replica];
+    }
+
+    /**
+     * Statistics merged over all replicas (see DensityStatistics.merge()).
+     */
+    public DensityStatistics getMergedStatistics() {
+        DensityStatistics merged = new DensityStatistics(
+            options.L, options.nstates, options.transitions);
+
+        if (options.correlationDistance > 0) {
+            merged.setCorrelations(
+                options.correlationSpecies, options.correlationDistance,
+                options.periodic);
+        }
+
+        if (options.currentWindow > 0) {
+            merged.setCurrentWindow(options.currentWindow);
+        }
+
+        for (int k = 0; k < stats.length; k++) {
+            merged.merge(stats[k]);
+        }
+
+        return merged;
+    }
+
+    /**
+     * Counters summed over all replicas, when options.instrument is set
+     * (otherwise all zero).  Phase times are summed too, so they are
+     * total thread time rather than wall clock time.
+     */
+    public SimCounters getMergedCounters() {
+        SimCounters merged = new SimCounters();
+
+        for (SimCounters replicaCounters : counters) {
+            if (replicaCounters != null) {
+                merged.add(replicaCounters);
+            }
+        }
+
+        return merged;
+    }
+
+    /**
+     * Standard error of the mean of values, one per replica.  Zero for a
+     * single replica.
+     */
+    private static double standardError(double [] values) {
+        int n = values.length;
+
+        if (n < 2) {
+            return 0;
+        }
+
+        double mean = 0;
+
+        for (int k = 0; k < n; k++) {
+            mean += values[k];
+        }
+
+        mean /= n;
+
+        double sumSq = 0;
+
+        for (int k = 0; k < n; k++) {
+            double d = values[k] - mean;
+            sumSq += d * d;
+        }
+
+        return Math.sqrt(sumSq / ((n - 1) * (double) n));
+    }
+
+    /**
+     * Standard error of the mean density profile over replicas:
+     * densityError[c][i] for species c at site i.  Zero for a single
+     * replica.
+     */
+    public double [][] getDensityErrors() {
+        int n = stats.length;
+
+        double [][] errors = new double[options.nstates][options.L];
+        double [] values = new double[n];
+
+        for (int c = 0; c < options.nstates; c++) {
+            double [][] profiles = new double[n][];
+
+            for (int k = 0; k < n; k++) {
+                profiles[k] = stats[k].getDensityProfile(c);
+            }
+
+            for (int i = 0; i < options.L; i++) {
+                for (int k = 0; k < n; k++) {
+                    values[k] = profiles[k][i];
+                }
+
+                errors[c][i] = standardError(values);
+            }
+        }
+
+        return errors;
+    }
+
+    /**
+     * Standard error of the mean over replicas of the rate (count per
+     * unit time) of each counted transition, arranged as the counts:
+     * rateError[spec][toC][fromC], with rateError[spec] null for
+     * transitions without count set.  This takes the place of the batch
+     * means errors, which the merged statistics don't have.  Zero for a
+     * single replica.
+     */
+    public double [][][] getRateErrors() {
+        int n = stats.length;
+
+        int [][][] counts = stats[0].getCounts();
+        double [][][] errors = new double[counts.length][][];
+        double [] values = new double[n];
+
+        for (int spec = 0; spec < counts.length; spec++) {
+            if (counts[spec] == null) {
+                continue;
+            }
+
+            int d = counts[spec].length;
+
+            errors[spec] = new double[d][d];
+
+            for (int i = 0; i < d; i++) {
+                for (int j = 0; j < d; j++) {
+                    for (int k = 0; k < n; k++) {
+                        values[k] = stats[k].getTransitionCount(spec, i, j)
+                            / stats[k].getTotalTime();
+                    }
+
+                    errors[spec][i][j] = standardError(values);
+                }
+            }
+        }
+
+        return errors;
+    }
+
+    /**
+     * Return a string summary of the replica run (seed, number of
+     * replicas, and density and rate errors) in JSON format.  The merged
+     * results themselves are given by getMergedStatistics().summary().
+     */
+    public String summary() {
+        ReplicaResults results = new ReplicaResults();
+
+        results.seed = seed;
+        results.replicas = stats.length;
+        results.densityError = getDensityErrors();
+        results.rateError = getRateErrors();
+
+        Gson gson = new Gson();
+
+        return gson.toJson(results);
+    }
+
+    /**
+     * Return the final configurations of all replicas as a JSON list.
+     */
+    public String finalStatesJson() {
+        StringBuilder builder = new StringBuilder("[");
+
+        for (int k = 0; k < configs.length; k++) {
+            if (k > 0) {
+                builder.append(",");
+            }
+
+            builder.append(configs[k].toJson());
+        }
+
+        builder.append("]");
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,241 @@
+package openepsim;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.gson.Gson;
+
+/**
+ * Counters of the work done by a simulation, for sizing jobs and
+ * spotting models that are slow to simulate.  Enabled by the instrument
+ * option, see Transitions.setCounters(); when disabled the simulation
+ * loop only tests for a null reference.
+ *
+ * Timings of the parts of an event (selecting the transition, updating
+ * the lattice and transitions, and recording statistics) cost a call to
+ * System.nanoTime() each, so only one event in TIMING_INTERVAL is timed
+ * and the others are assumed to take the same time on average.
+ *
+ * The counts and event timings are reset when recording starts (after
+ * tSkip), so they describe the recorded part of the run; the phase
+ * times cover both parts.
+ *
+ * What an event and a scanned slot are depends on the engine, so the
+ * counts are only comparable between runs with the same engine:
+ *
+ *   list       events are transitions performed, and slotsScanned the
+ *              allowed slots walked to find them, about half of them
+ *              each
+ *   tree       events as for list, and slotsScanned the levels of the
+ *              sum tree descended, log2(number of slots) each
+ *   rejection  events are accepted candidates (so again transitions
+ *              performed), and slotsScanned the candidates tried,
+ *              rejected ones included: meanSlotsScanned is the inverse
+ *              of the acceptance ratio
+ *
+ * The counters are plain fields updated by the simulation thread, so
+ * values read through JMX while a run is in progress may be slightly
+ * stale.
+ */
+public class SimCounters implements SimCountersMBean {
+    /**
+     * One event in this many is timed.  A power of two.
+     */
+    public static final int TIMING_INTERVAL = 64;
+
+    private static final AtomicInteger registered = new AtomicInteger();
+
+    // Transitions performed
+    long events;
+
+    // Slots visited selecting transitions: allowed slots walked by the
+    // list engine, tree levels descended by the tree engine, candidates
+    // tried (accepted or not) by the rejection engine
+    long slotsScanned;
+
+    // Slots cleared by Transitions.clearDirty() and recalculated by
+    // Transitions.recalculate()
+    long slotsCleared;
+    long slotsRecalculated;
+
+    // Timed events, and their total time in each part
+    long timedEvents;
+    long selectionNanos;
+    long updateNanos;
+    long statisticsNanos;
+
+    // Wall clock time of the unrecorded (tSkip) and recorded parts of
+    // the run
+    long unrecordedNanos;
+    long recordedNanos;
+
+    private transient ObjectName name;
+
+    /**
+     * Count an event, returning whether it should be timed.
+     */
+    boolean startEvent() {
+        if ((++events & (TIMING_INTERVAL - 1)) != 0) {
+            return false;
+        }
+
+        timedEvents++;
+
+        return true;
+    }
+
+    /**
+     * Zero the counts and event timings, keeping the phase times, when
+     * recording starts.
+     */
+    void resetCounts() {
+        events = 0;
+        slotsScanned = 0;
+        slotsCleared = 0;
+        slotsRecalculated = 0;
+        timedEvents = 0;
+        selectionNanos = 0;
+        updateNanos = 0;
+        statisticsNanos = 0;
+    }
+
+    /**
+     * Add the counts of other (e.g. from a replica, or a domain) to
+     * these.
+     */
+    public void add(SimCounters other) {
+        events += other.events;
+        slotsScanned += other.slotsScanned;
+        slotsCleared += other.slotsCleared;
+        slotsRecalculated += other.slotsRecalculated;
+        timedEvents += other.timedEvents;
+        selectionNanos += other.selectionNanos;
+        updateNanos += other.updateNanos;
+        statisticsNanos += other.statisticsNanos;
+        unrecordedNanos += other.unrecordedNanos;
+        recordedNanos += other.recordedNanos;
+    }
+
+    public long getEvents() {
+        return events;
+    }
+
+    public long getSlotsScanned() {
+        return slotsScanned;
+    }
+
+    public long getSlotsCleared() {
+        return slotsCleared;
+    }
+
+    public long getSlotsRecalculated() {
+        return slotsRecalculated;
+    }
+
+    public double getMeanSlotsScanned() {
+        return events > 0 ? (double) slotsScanned / events : 0;
+    }
+
+    public double getSelectionNanosPerEvent() {
+        return timedEvents > 0 ? (double) selectionNanos / timedEvents : 0;
+    }
+
+    public double getUpdateNanosPerEvent() {
+        return timedEvents > 0 ? (double) updateNanos / timedEvents : 0;
+    }
+
+    public double getStatisticsNanosPerEvent() {
+        return timedEvents > 0 ? (double) statisticsNanos / timedEvents : 0;
+    }
+
+    public double getUnrecordedSeconds() {
+        return unrecordedNanos * 1e-9;
+    }
+
+    public double getRecordedSeconds() {
+        return recordedNanos * 1e-9;
+    }
+
+    /**
+     * Events per second of the recorded part of the run.
+     */
+    public double getEventsPerSecond() {
+        return recordedNanos > 0 ? events / (recordedNanos * 1e-9) : 0;
+    }
+
+    /**
+     * Register with the platform MBean server, as
+     * openepsim:type=SimCounters,name=label-N with N unique in this JVM.
+     * Failures are ignored: the counters are still reported in the
+     * output.
+     */
+    public void register(String label) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+            name = new ObjectName(
+                "openepsim:type=SimCounters,name=" + label + "-"
+                + registered.incrementAndGet());
+
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            name = null;
+        }
+    }
+
+    /**
+     * Undo register().
+     */
+    public void unregister() {
+        if (name == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            // Already gone
+        }
+
+        name = null;
+    }
+
+    private class CounterResults {
+        long events;
+        long slotsScanned;
+        long slotsCleared;
+        long slotsRecalculated;
+        double meanSlotsScanned;
+        double selectionNanosPerEvent;
+        double updateNanosPerEvent;
+        double statisticsNanosPerEvent;
+        double unrecordedSeconds;
+        double recordedSeconds;
+        double eventsPerSecond;
+    }
+
+    /**
+     * The counters as a JSON object.
+     */
+    public String toJson() {
+        CounterResults results = new CounterResults();
+
+        results.events = events;
+        results.slotsScanned = slotsScanned;
+        results.slotsCleared = slotsCleared;
+        results.slotsRecalculated = slotsRecalculated;
+        results.meanSlotsScanned = getMeanSlotsScanned();
+        results.selectionNanosPerEvent = getSelectionNanosPerEvent();
+        results.updateNanosPerEvent = getUpdateNanosPerEvent();
+        results.statisticsNanosPerEvent = getStatisticsNanosPerEvent();
+        results.unrecordedSeconds = getUnrecordedSeconds();
+        results.recordedSeconds = getRecordedSeconds();
+        results.eventsPerSecond = getEventsPerSecond();
+
+        return new Gson().toJson(results);
+    }
+}
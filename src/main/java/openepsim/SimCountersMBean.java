@@ -0,0 +1,29 @@
+package openepsim;
+
+/**
+ * JMX management interface of SimCounters: see there for the meaning of
+ * each counter.
+ */
+public interface SimCountersMBean {
+    long getEvents();
+
+    long getSlotsScanned();
+
+    long getSlotsCleared();
+
+    long getSlotsRecalculated();
+
+    double getMeanSlotsScanned();
+
+    double getSelectionNanosPerEvent();
+
+    double getUpdateNanosPerEvent();
+
+    double getStatisticsNanosPerEvent();
+
+    double getUnrecordedSeconds();
+
+    double getRecordedSeconds();
+
+    double getEventsPerSecond();
+}
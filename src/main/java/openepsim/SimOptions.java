@@ -3,9 +3,85 @@ package openepsim;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 
+import org.apache.commons.math3.random.MersenneTwister;
+
 import com.google.gson.Gson;
 
 public class SimOptions {
+    /**
+     * Engine selecting transitions by walking the list of sites with
+     * allowed transitions.  O(number allowed) per transition, kept as the
+     * reference implementation.
+     */
+    public static final String ENGINE_LIST = "list";
+
+    /**
+     * Engine selecting transitions using a sum tree of per-site exit
+     * rates.  O(log L) per transition.
+     */
+    public static final String ENGINE_TREE = "tree";
+
+    /**
+     * Engine using rejection sampling against the maximum exit rate of
+     * each local transition specification.  O(1) per candidate event, but
+     * only efficient if most sites are close to their maximum rate.
+     */
+    public static final String ENGINE_REJECTION = "rejection";
+
+    /**
+     * The commons-math Mersenne Twister, with exponential waiting times
+     * as -log(uniform).
+     */
+    public static final String GENERATOR_MT = "mt";
+
+    /**
+     * The SplitMix64 generator (as java.util.SplittableRandom), with
+     * ziggurat exponential waiting times.
+     */
+    public static final String GENERATOR_SPLITMIX = "splitmix";
+
+    /**
+     * The xoshiro256++ generator, with ziggurat exponential waiting
+     * times.  Replicas and domains use non-overlapping streams.
+     */
+    public static final String GENERATOR_XOSHIRO = "xoshiro";
+
+    /**
+     *  One non-zero entry of a local transition matrix, for giving the
+     *  matrix sparsely.  The local configurations are the states of the
+     *  window sites from left to right: one digit per site (e.g. "10" for
+     *  a particle followed by a hole), or integers separated by spaces or
+     *  commas (e.g. "1 0", needed for nstates > 10).
+     */
+    public class RateRule {
+        public final String from;
+        public final String to;
+        public final double rate;
+
+        private RateRule() {
+            from = null;
+            to = null;
+            rate = 0;
+        }
+    }
+
+    /**
+     *  The contribution of one transition to the integrated current of a
+     *  counted LocalTransitionSpec, with local configurations written as
+     *  for RateRule.
+     */
+    public class CurrentWeight {
+        public final String from;
+        public final String to;
+        public final double weight;
+
+        private CurrentWeight() {
+            from = null;
+            to = null;
+            weight = 0;
+        }
+    }
+
     /**
      *  Represents a local transition specification, essentially a local
      *  transition matrix.
@@ -29,22 +105,144 @@ public class SimOptions {
         /**
          * Count the number of times each transition occurs
          * Note: currently this will be done per LocalTransitionSpec,
-         * i.e. aggregated over all sites specified by from, to
+         * i.e. aggregated over all sites specified by from, to.  The
+         * counts are dense, so nstates^window must be at most
+         * MAX_COUNTED_CONFIGURATIONS.
          */
         public final boolean count;
 
+        /**
+         * The integrated current of a counted spec, for currentWindow and
+         * clones, is the sum of the weights of its transitions.  null to
+         * weight every transition 1, otherwise transitions not listed
+         * have weight 0.
+         */
+        public final CurrentWeight [] currentWeights;
+
         /**
          * The transition rates.  This is the local transition matrix.
          * The exit rates (diagonal elements) don't need to be set.
          */
         public final double [][] rates;
 
+        /**
+         * The transition rates as a list of the non-zero entries of the
+         * local transition matrix, instead of rates.  Much smaller than
+         * rates for large nstates or window, as the dense matrix is never
+         * built.
+         */
+        public final RateRule [] rules;
+
+        /**
+         * Optional per-site rate multipliers, one for each position from,
+         * ..., to in order: all the rates of the transition at a position
+         * are multiplied by its multiplier.  null for uniform rates.
+         */
+        public final double [] multipliers;
+
+        /**
+         * Random disorder, if multipliers is not set: the multiplier of
+         * each position is drawn uniformly from [1 - disorder,
+         * 1 + disorder] using disorderSeed, so it is the same in every run
+         * and replica.  0 for uniform rates.
+         */
+        public final double disorder;
+
+        public final long disorderSeed;
+
+        // Compiled from rates or rules by getTable()
+        private transient TransitionTable table;
+
         private LocalTransitionSpec() {
             window = 0;
             from = 0;
             to = 0;
             count = false;
+            currentWeights = null;
             rates = null;
+            rules = null;
+            multipliers = null;
+            disorder = 0;
+            disorderSeed = 0;
+        }
+
+        /**
+         * The number of local configurations, nstates^window: the size
+         * of the transition matrix.
+         */
+        int getNumConfigurations(int nstates) {
+            return (int) numConfigurations(nstates, window);
+        }
+
+        /**
+         * The transition matrix, compiled from rates or rules.  Compiled
+         * once and shared, as tables are immutable.
+         */
+        TransitionTable getTable(int nstates) {
+            TransitionTable compiled = table;
+
+            if (compiled == null) {
+                compiled = compileRates(rates, rules, nstates, window);
+                table = compiled;
+            }
+
+            return compiled;
+        }
+
+        /**
+         * The current weights as a matrix indexed [toC][fromC], or null
+         * if every transition has weight 1.
+         */
+        double [][] getCurrentWeights(int nstates) {
+            if (currentWeights == null) {
+                return null;
+            }
+
+            int n = getNumConfigurations(nstates);
+
+            double [][] weights = new double[n][n];
+
+            for (CurrentWeight w : currentWeights) {
+                weights[parseConfiguration(w.to, nstates, window)]
+                    [parseConfiguration(w.from, nstates, window)] += w.weight;
+            }
+
+            return weights;
+        }
+
+        /**
+         * The number of positions from, ..., to on a lattice of length L.
+         */
+        int getNumPositions(int L) {
+            int first = from < 0 ? from + L : from - 1;
+            int last = to < 0 ? to + L : to - 1;
+
+            return Math.max(0, last - first + 1);
+        }
+
+        /**
+         * The rate multiplier of each position from, ..., to on a lattice
+         * of length L, from multipliers or generated from disorder, or
+         * null for uniform rates.
+         */
+        double [] getMultipliers(int L) {
+            if (multipliers != null) {
+                return multipliers;
+            }
+
+            if (disorder == 0) {
+                return null;
+            }
+
+            MersenneTwister random = new MersenneTwister(disorderSeed);
+
+            double [] generated = new double[getNumPositions(L)];
+
+            for (int k = 0; k < generated.length; k++) {
+                generated[k] = 1 + disorder * (2 * random.nextDouble() - 1);
+            }
+
+            return generated;
         }
 
         /**
@@ -66,31 +264,255 @@ public class SimOptions {
                 return false;
             }
 
-            // Check the matrix dimensions
-            // TODO check this is a power of the number of states
-            // and is consistent with window
-            if (rates == null) {
-                System.err.println("transitions: rates null");
+            if (
+                window < 1
+                ||
+                numConfigurations(nstates, window) > MAX_CONFIGURATIONS
+            ) {
+                System.err.println("transitions: window invalid");
+                return false;
+            }
+
+            long nconfigs = numConfigurations(nstates, window);
+
+            if (count && nconfigs > MAX_COUNTED_CONFIGURATIONS) {
+                System.err.println(
+                    "transitions: count needs nstates^window at most "
+                    + MAX_COUNTED_CONFIGURATIONS);
+                return false;
+            }
+
+            if ((rates == null) == (rules == null)) {
+                System.err.println("transitions: set one of rates, rules");
                 return false;
             }
 
-            int matrixSize = rates.length;
+            if (!ratesValid(rates, rules, nstates, window)) {
+                System.err.println("transitions: rates invalid");
+                return false;
+            }
 
-            if (rates.length != (int) Math.pow(nstates, window)) {
-                System.err.println("transitions: rates size invalid");
+            if (multipliers != null) {
+                if (multipliers.length != getNumPositions(L)) {
+                    System.err.println(
+                        "transitions: multipliers length invalid");
+                    return false;
+                }
 
+                for (int i = 0; i < multipliers.length; i++) {
+                    if (!(multipliers[i] >= 0)) {
+                        System.err.println("transitions: multipliers invalid");
+                        return false;
+                    }
+                }
+            }
+
+            if (!(disorder >= 0 && disorder <= 1)) {
+                System.err.println("transitions: disorder invalid");
+                return false;
+            }
+
+            if (currentWeights != null) {
+                for (CurrentWeight w : currentWeights) {
+                    if (
+                        w == null
+                        ||
+                        parseConfiguration(w.from, nstates, window) < 0
+                        ||
+                        parseConfiguration(w.to, nstates, window) < 0
+                        ||
+                        Double.isNaN(w.weight) || Double.isInfinite(w.weight)
+                    ) {
+                        System.err.println(
+                            "transitions: currentWeights invalid");
+                        return false;
+                    }
+                }
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     *  A scheduled change to the rates of one local transition
+     *  specification, for example for a quench.  A ramp is a sequence of
+     *  small changes.
+     */
+    public class RateChange {
+        /**
+         * The time (from the start of the run, including tSkip) at which
+         * the new rates apply.
+         */
+        public final double time;
+
+        /**
+         * Index of the spec in transitions (zero indexed).
+         */
+        public final int spec;
+
+        /**
+         * The new transition rates, replacing those of the spec.
+         */
+        public final double [][] rates;
+
+        /**
+         * The new transition rates as a list of entries, instead of
+         * rates.
+         */
+        public final RateRule [] rules;
+
+        private RateChange() {
+            time = 0;
+            spec = 0;
+            rates = null;
+            rules = null;
+        }
+
+        /**
+         * The new transition matrix, for a spec with the given window.
+         */
+        TransitionTable getTable(int nstates, int window) {
+            return compileRates(rates, rules, nstates, window);
+        }
+    }
+
+    /**
+     * Largest number of local configurations of a transition.
+     */
+    static final int MAX_CONFIGURATIONS = Integer.MAX_VALUE - 1;
+
+    /**
+     * Largest number of local configurations of a counted transition: the
+     * counts are a dense matrix over them (4 MB at this size), in memory
+     * and in the output.
+     */
+    static final int MAX_COUNTED_CONFIGURATIONS = 1024;
+
+    /**
+     * nstates^window, or MAX_CONFIGURATIONS + 1 if larger.
+     */
+    static long numConfigurations(int nstates, int window) {
+        long n = 1;
+
+        for (int k = 0; k < window && n <= MAX_CONFIGURATIONS; k++) {
+            n *= nstates;
+        }
+
+        return Math.min(n, MAX_CONFIGURATIONS + 1L);
+    }
+
+    /**
+     * The local configuration written as s (see RateRule), or -1 if s
+     * isn't one of the configurations of window sites.
+     */
+    static int parseConfiguration(String s, int nstates, int window) {
+        if (s == null) {
+            return -1;
+        }
+
+        String [] fields = s.trim().split("[\\s,]+");
+
+        if (fields.length == 1 && window > 1) {
+            // One digit per site
+            fields = fields[0].split("");
+        }
+
+        if (fields.length != window) {
+            return -1;
+        }
+
+        int c = 0;
+
+        for (String field : fields) {
+            int state;
+
+            try {
+                state = Integer.parseInt(field);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+
+            if (state < 0 || state >= nstates) {
+                return -1;
+            }
+
+            c = nstates * c + state;
+        }
+
+        return c;
+    }
+
+    /**
+     * Check a transition matrix given as either rates (dense) or rules.
+     */
+    private static boolean ratesValid(
+        double [][] rates, RateRule [] rules, int nstates, int window
+    ) {
+        if (rates != null) {
+            int matrixSize = (int) numConfigurations(nstates, window);
+
+            if (rates.length != matrixSize) {
                 return false;
             }
 
             for (int i = 0; i < matrixSize; i++) {
                 if (rates[i] == null || rates[i].length != matrixSize) {
-                    System.err.println("transitions: rates[" + i + "] invalid");
                     return false;
                 }
             }
 
             return true;
         }
+
+        if (rules == null) {
+            return false;
+        }
+
+        for (RateRule rule : rules) {
+            if (
+                rule == null
+                ||
+                parseConfiguration(rule.from, nstates, window) < 0
+                ||
+                parseConfiguration(rule.to, nstates, window) < 0
+                ||
+                !(rule.rate >= 0) || Double.isInfinite(rule.rate)
+            ) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Compile a valid transition matrix given as either rates or rules.
+     */
+    private static TransitionTable compileRates(
+        double [][] rates, RateRule [] rules, int nstates, int window
+    ) {
+        if (rates != null) {
+            return new TransitionTable(rates);
+        }
+
+        int [] from = new int[rules.length];
+        int [] to = new int[rules.length];
+        double [] rate = new double[rules.length];
+
+        for (int k = 0; k < rules.length; k++) {
+            from[k] = parseConfiguration(rules[k].from, nstates, window);
+            to[k] = parseConfiguration(rules[k].to, nstates, window);
+            rate[k] = rules[k].rate;
+
+            if (from[k] < 0 || to[k] < 0) {
+                throw new IllegalArgumentException(
+                    "Invalid rule: " + rules[k].from + " -> " + rules[k].to);
+            }
+        }
+
+        return new TransitionTable(
+            (int) numConfigurations(nstates, window), from, to, rate);
     }
 
     /**
@@ -125,6 +547,18 @@ public class SimOptions {
      */
     public final LocalTransitionSpec [] transitions;
 
+    /**
+     *  Periodic boundaries: the lattice is a ring, and windows starting
+     *  near its end wrap around to its start.
+     */
+    public final boolean periodic;
+
+    /**
+     *  Scheduled changes to the rates, in order of time: null or empty
+     *  for fixed rates.
+     */
+    public final RateChange [] rateChanges;
+
     /**
      *  The initial lattice configuration.
      */
@@ -150,15 +584,189 @@ public class SimOptions {
      */
     public final double tSkip;
 
+    /**
+     *  Simulation engine: one of the ENGINE_* values.
+     */
+    public final String engine;
+
+    /**
+     *  Random number generator: one of the GENERATOR_* values.
+     */
+    public final String generator;
+
+    /**
+     *  Number of independent replicas to run.
+     */
+    public final int replicas;
+
+    /**
+     *  Number of threads to run replicas on: 0 to use all available
+     *  processors.
+     */
+    public final int threads;
+
+    /**
+     *  Interval (in simulation time units) between samples of block
+     *  averaged observables written to sampleFile: 0 to not sample.
+     */
+    public final double sampleInterval;
+
+    /**
+     *  File to write sampled observables to, see ObservableStream.
+     */
+    public final String sampleFile;
+
+    /**
+     *  File to record every transition to, see TrajectoryWriter: null to
+     *  not record.
+     */
+    public final String trajectoryFile;
+
+    /**
+     *  File to write checkpoints of the full simulation state to, see
+     *  Checkpoint: null to not checkpoint.
+     */
+    public final String checkpointFile;
+
+    /**
+     *  Interval (in simulation time units, counted from the start of the
+     *  run including tSkip) between checkpoints.
+     */
+    public final double checkpointInterval;
+
+    /**
+     *  Continue from checkpointFile, if it exists, rather than starting
+     *  from initialState.
+     */
+    public final boolean resume;
+
+    /**
+     *  Block length (in simulation time units) for automatic warm-up
+     *  detection, see WarmupDetector: 0 to always skip tSkip.  When set,
+     *  recording starts once the density and current have relaxed, and
+     *  tSkip (which must then be set) is the longest time skipped.  The
+     *  current is that of the counted transitions with currentWeights;
+     *  if there are none, only the density is watched.
+     */
+    public final double warmupInterval;
+
+    /**
+     *  Largest relative drift of the block averages accepted by warm-up
+     *  detection.
+     */
+    public final double warmupTolerance;
+
+    /**
+     *  Batch length (in simulation time units) for batch means estimates
+     *  of the standard errors of the results: 0 to not estimate them.
+     */
+    public final double batchInterval;
+
+    /**
+     *  End the run early once the standard error of every site of every
+     *  density profile is at most this: 0 to not check.
+     */
+    public final double densityTolerance;
+
+    /**
+     *  End the run early once the standard error of the rate of every
+     *  counted transition is at most this: 0 to not check.
+     */
+    public final double rateTolerance;
+
+    /**
+     *  Number of domains to split the lattice into, simulated in parallel
+     *  on threads threads, see DomainSimulation: 0 or 1 to simulate the
+     *  whole lattice serially.
+     */
+    public final int domains;
+
+    /**
+     *  Length (in simulation time units) of the time windows the domains
+     *  are advanced by in turn.  Smaller is more accurate, but costs more
+     *  synchronisation: besides the splitting error, the time-averaged
+     *  density is approximated by the configurations at the window ends,
+     *  and both errors grow with domainWindow.
+     */
+    public final double domainWindow;
+
+    /**
+     *  Largest separation d for which the two-point correlations
+     *  <n_i n_{i+d}> of species correlationSpecies are recorded, see
+     *  DensityStatistics.setCorrelations(): 0 to not record them.
+     */
+    public final int correlationDistance;
+
+    /**
+     *  Species whose two-point correlations are recorded.
+     */
+    public final int correlationSpecies;
+
+    /**
+     *  Length of the time windows over which the integrated current of
+     *  each counted transition is recorded, see
+     *  DensityStatistics.setCurrentWindow(): 0 to not record them.
+     */
+    public final double currentWindow;
+
+    /**
+     *  Population size for the cloning algorithm, see
+     *  CloningSimulation: 0 for an ordinary run.
+     */
+    public final int clones;
+
+    /**
+     *  The bias s of the cloning algorithm: trajectories are weighted by
+     *  exp(s J), with J the integrated current of the counted
+     *  transitions.
+     */
+    public final double cloningBias;
+
+    /**
+     *  Time between resamplings of the clone population.
+     */
+    public final double cloningInterval;
+
+    /**
+     *  Count the work done by the simulation, see SimCounters.
+     */
+    public final boolean instrument;
+
     public SimOptions() {
         L = 0;
         nstates = 0;
+        periodic = false;
         seed = 0;
         verbose = 0;
         tMax = 0;
         tSkip = 0;
+        engine = ENGINE_LIST;
+        generator = GENERATOR_MT;
+        replicas = 1;
+        threads = 0;
+        sampleInterval = 0;
+        sampleFile = null;
+        trajectoryFile = null;
+        checkpointFile = null;
+        checkpointInterval = 0;
+        resume = false;
+        warmupInterval = 0;
+        warmupTolerance = 0.02;
+        batchInterval = 0;
+        densityTolerance = 0;
+        rateTolerance = 0;
+        domains = 0;
+        domainWindow = 1;
+        correlationDistance = 0;
+        correlationSpecies = 1;
+        currentWindow = 0;
+        clones = 0;
+        cloningBias = 0;
+        cloningInterval = 1;
+        instrument = false;
 
         transitions = null;
+        rateChanges = null;
         initialState = new int[0];
     }
 
@@ -201,6 +809,253 @@ public class SimOptions {
                 throw new Exception("Invalid transitions: " + i);
             }
         }
+
+        if (rateChanges != null) {
+            for (int k = 0; k < rateChanges.length; k++) {
+                RateChange change = rateChanges[k];
+
+                if (
+                    change.spec < 0 || change.spec >= transitions.length
+                    ||
+                    (change.rates == null) == (change.rules == null)
+                    ||
+                    !ratesValid(
+                        change.rates, change.rules, nstates,
+                        transitions[change.spec].window)
+                ) {
+                    throw new Exception("Invalid rateChanges: " + k);
+                }
+
+                if (
+                    change.time < 0
+                    ||
+                    (k > 0 && change.time < rateChanges[k - 1].time)
+                ) {
+                    throw new Exception(
+                        "rateChanges must be in order of time, from zero.");
+                }
+            }
+        }
+
+        if (periodic && getMaxWindow() > L) {
+            throw new Exception(
+                "periodic requires every window to be at most L.");
+        }
+
+        if (
+            !ENGINE_LIST.equals(engine)
+            &&
+            !ENGINE_TREE.equals(engine)
+            &&
+            !ENGINE_REJECTION.equals(engine)
+        ) {
+            throw new Exception("Unknown engine: " + engine);
+        }
+
+        if (
+            !GENERATOR_MT.equals(generator)
+            &&
+            !GENERATOR_SPLITMIX.equals(generator)
+            &&
+            !GENERATOR_XOSHIRO.equals(generator)
+        ) {
+            throw new Exception("Unknown generator: " + generator);
+        }
+
+        if (replicas < 1 || threads < 0) {
+            throw new Exception(
+                "replicas must be greater than zero, threads at least zero.");
+        }
+
+        if (replicas > 1 && verbose > 0) {
+            throw new Exception("verbose can't be used with replicas.");
+        }
+
+        if (sampleInterval < 0) {
+            throw new Exception("sampleInterval must be at least zero.");
+        }
+
+        if (sampleInterval > 0 && sampleFile == null) {
+            throw new Exception("sampleInterval requires sampleFile.");
+        }
+
+        if (sampleInterval > 0 && replicas > 1) {
+            throw new Exception("sampleInterval can't be used with replicas.");
+        }
+
+        if (trajectoryFile != null && replicas > 1) {
+            throw new Exception("trajectoryFile can't be used with replicas.");
+        }
+
+        if (checkpointInterval < 0) {
+            throw new Exception("checkpointInterval must be at least zero.");
+        }
+
+        if ((checkpointInterval > 0 || resume) && checkpointFile == null) {
+            throw new Exception(
+                "checkpointInterval, resume require checkpointFile.");
+        }
+
+        if (
+            checkpointFile != null
+            &&
+            (replicas > 1 || sampleInterval > 0 || trajectoryFile != null)
+        ) {
+            throw new Exception(
+                "checkpointFile can't be used with replicas, sampleInterval"
+                + " or trajectoryFile.");
+        }
+
+        if (warmupInterval < 0 || warmupTolerance < 0) {
+            throw new Exception(
+                "warmupInterval, warmupTolerance must be at least zero.");
+        }
+
+        if (batchInterval < 0 || densityTolerance < 0 || rateTolerance < 0) {
+            throw new Exception(
+                "batchInterval, densityTolerance, rateTolerance must be at"
+                + " least zero.");
+        }
+
+        if ((densityTolerance > 0 || rateTolerance > 0) && batchInterval == 0) {
+            throw new Exception(
+                "densityTolerance, rateTolerance require batchInterval.");
+        }
+
+        if (domains < 0 || domainWindow <= 0) {
+            throw new Exception(
+                "domains must be at least zero, domainWindow greater than"
+                + " zero.");
+        }
+
+        if (domains > 1) {
+            if (
+                replicas > 1 || verbose > 0 || useRejection() || periodic
+                ||
+                trajectoryFile != null || checkpointFile != null
+                ||
+                sampleInterval > 0 || batchInterval > 0 || warmupInterval > 0
+            ) {
+                throw new Exception(
+                    "domains can't be used with replicas, verbose, the"
+                    + " rejection engine, periodic, trajectoryFile,"
+                    + " checkpointFile, sampleInterval, batchInterval or"
+                    + " warmupInterval.");
+            }
+
+            if (L / (2 * domains) < getMaxWindow()) {
+                throw new Exception(
+                    "L too small for " + domains + " domains: each half"
+                    + " domain must be at least as long as the largest"
+                    + " window.");
+            }
+        }
+
+        if (correlationDistance < 0 || correlationDistance >= L) {
+            throw new Exception(
+                "correlationDistance must be at least zero, and less than L.");
+        }
+
+        if (
+            correlationDistance > 0
+            &&
+            (correlationSpecies < 0 || correlationSpecies >= nstates)
+        ) {
+            throw new Exception(
+                "correlationSpecies must be one of the nstates states.");
+        }
+
+        if (rateChanges != null && rateChanges.length > 0 && domains > 1) {
+            throw new Exception("rateChanges can't be used with domains.");
+        }
+
+        if (correlationDistance > 0 && domains > 1) {
+            throw new Exception(
+                "correlationDistance can't be used with domains.");
+        }
+
+        if (!(currentWindow >= 0) || Double.isInfinite(currentWindow)) {
+            throw new Exception("currentWindow must be at least zero.");
+        }
+
+        if (currentWindow > 0 && domains > 1) {
+            throw new Exception("currentWindow can't be used with domains.");
+        }
+
+        checkCloningValid();
+
+        if (warmupInterval > 0 && checkpointFile != null) {
+            throw new Exception(
+                "warmupInterval can't be used with checkpointFile.");
+        }
+
+        if (warmupInterval > 0 && tSkip <= 0) {
+            throw new Exception(
+                "warmupInterval requires tSkip, the longest time to skip.");
+        }
+    }
+
+    /**
+     * Checks of the options for the cloning algorithm.
+     */
+    private void checkCloningValid() throws Exception {
+        if (clones < 0 || clones == 1) {
+            throw new Exception("clones must be 0, or at least 2.");
+        }
+
+        if (clones == 0) {
+            return;
+        }
+
+        if (!(cloningInterval > 0) || Double.isInfinite(cloningInterval)) {
+            throw new Exception("cloningInterval must be positive.");
+        }
+
+        if (Double.isNaN(cloningBias) || Double.isInfinite(cloningBias)) {
+            throw new Exception("cloningBias invalid.");
+        }
+
+        boolean counted = false;
+
+        for (LocalTransitionSpec spec : transitions) {
+            counted |= spec.count;
+        }
+
+        if (!counted) {
+            throw new Exception(
+                "clones requires a transition with count set.");
+        }
+
+        if (
+            replicas > 1 || domains > 1 || useRejection()
+            ||
+            sampleInterval > 0 || trajectoryFile != null
+            ||
+            checkpointFile != null || batchInterval > 0 || warmupInterval > 0
+            ||
+            (rateChanges != null && rateChanges.length > 0)
+            ||
+            correlationDistance > 0 || currentWindow > 0
+        ) {
+            throw new Exception(
+                "clones can't be used with replicas, domains, the rejection"
+                + " engine, or the options for files, batches, warm-up,"
+                + " rate changes, correlations and currents.");
+        }
+    }
+
+    /**
+     * Whether transitions should be selected using a sum tree.
+     */
+    public boolean useTree() {
+        return ENGINE_TREE.equals(engine);
+    }
+
+    /**
+     * Whether to simulate using rejection sampling.
+     */
+    public boolean useRejection() {
+        return ENGINE_REJECTION.equals(engine);
     }
 
     public String toString() {
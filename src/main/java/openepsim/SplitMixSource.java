@@ -0,0 +1,35 @@
+package openepsim;
+
+/**
+ * RandomSource using the SplitMix64 generator (the algorithm of
+ * java.util.SplittableRandom, which is not Serializable), with ziggurat
+ * exponential variates.
+ */
+class SplitMixSource implements RandomSource {
+    private static final long serialVersionUID = 1L;
+
+    private static final long GAMMA = 0x9E3779B97F4A7C15L;
+
+    private long state;
+
+    SplitMixSource(long seed) {
+        state = seed;
+    }
+
+    public long nextLong() {
+        long z = (state += GAMMA);
+
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+
+        return z ^ (z >>> 31);
+    }
+
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    public double nextExponential() {
+        return ZigguratExponential.next(this);
+    }
+}
@@ -0,0 +1,149 @@
+package openepsim;
+
+/**
+ * A complete binary sum tree over a fixed number of non-negative values.
+ *
+ * Each internal node holds the sum of its two children, so the total is
+ * available in O(1), and updating a value or selecting a value with
+ * probability proportional to its size is O(log n).
+ *
+ * Internal nodes are recomputed from their children on every update
+ * (rather than adjusted by a difference), so rounding errors do not
+ * accumulate over a long run.
+ */
+class SumTree {
+    // Heap layout: node k has children 2k and 2k + 1, the root is node 1,
+    // and the leaves are nodes leaves, ..., 2 * leaves - 1.
+    private final double [] tree;
+    private final int leaves;
+    private final int size;
+
+    // Left over part of r after the last call to find()
+    private double residual;
+
+    /**
+     * Construct a tree holding n values, all initially zero.
+     */
+    SumTree(int n) {
+        int m = 1;
+
+        while (m < n) {
+            m *= 2;
+        }
+
+        this.size = n;
+        this.leaves = m;
+        this.tree = new double[2 * m];
+    }
+
+    /**
+     * A copy of other.
+     */
+    SumTree(SumTree other) {
+        this.size = other.size;
+        this.leaves = other.leaves;
+        this.tree = other.tree.clone();
+    }
+
+    /**
+     * Overwrite the values with those of other, a tree of the same size.
+     */
+    void copyFrom(SumTree other) {
+        System.arraycopy(other.tree, 0, tree, 0, tree.length);
+    }
+
+    /**
+     * The number of values held.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * The number of levels find() descends.
+     */
+    int depth() {
+        return Integer.numberOfTrailingZeros(leaves);
+    }
+
+    /**
+     * Get value i.
+     */
+    double get(int i) {
+        return tree[leaves + i];
+    }
+
+    /**
+     * Set value i, and update the partial sums above it.
+     */
+    void set(int i, double value) {
+        int k = leaves + i;
+
+        tree[k] = value;
+
+        for (k >>= 1; k > 0; k >>= 1) {
+            tree[k] = tree[2 * k] + tree[2 * k + 1];
+        }
+    }
+
+    /**
+     * Set value i without updating the partial sums.  Call rebuild()
+     * once all values have been set.
+     */
+    void setLeaf(int i, double value) {
+        tree[leaves + i] = value;
+    }
+
+    /**
+     * Recompute all partial sums from the values, in O(n).
+     */
+    void rebuild() {
+        for (int k = leaves - 1; k > 0; k--) {
+            tree[k] = tree[2 * k] + tree[2 * k + 1];
+        }
+    }
+
+    /**
+     * The sum of all values.
+     */
+    double getTotal() {
+        return tree[1];
+    }
+
+    /**
+     * Find the first value i such that the sum of values 0, ..., i is
+     * greater than r.  The part of r falling within value i is available
+     * from getResidual() afterwards.
+     *
+     * If rounding puts r at or beyond the total, the last non-zero value
+     * is returned instead of a zero one.
+     *
+     * @param r a value in range [0, getTotal()).
+     */
+    int find(double r) {
+        int k = 1;
+
+        while (k < leaves) {
+            double left = tree[2 * k];
+
+            if (r < left || tree[2 * k + 1] <= 0) {
+                k = 2 * k;
+            } else {
+                r -= left;
+                k = 2 * k + 1;
+            }
+        }
+
+        residual = r;
+
+        return k - leaves;
+    }
+
+    /**
+     * The part of r falling within the value returned by the last call to
+     * find().
+     */
+    double getResidual() {
+        return residual;
+    }
+}
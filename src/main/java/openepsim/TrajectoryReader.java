@@ -0,0 +1,171 @@
+package openepsim;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Read a trajectory written by TrajectoryWriter, reconstructing the
+ * lattice configuration as the events are replayed.
+ */
+public class TrajectoryReader {
+    private final DataInputStream in;
+
+    private final int nstates;
+    private final LatticeConfiguration config;
+
+    // The next event, read ahead so advanceTo() can stop before it
+    private boolean hasNext;
+    private double nextTime;
+    private int nextPosition;
+    private int nextWindow;
+    private int nextC;
+
+    private double time;
+
+    /**
+     * Open file, and read the header and initial configuration.
+     */
+    public TrajectoryReader(String file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(file), 1 << 16));
+
+        if (in.readInt() != TrajectoryWriter.MAGIC) {
+            throw new IOException(file + ": not a trajectory file");
+        }
+
+        int version = in.readInt();
+
+        if (version != TrajectoryWriter.VERSION) {
+            throw new IOException(
+                file + ": unsupported trajectory version " + version);
+        }
+
+        int L = in.readInt();
+        nstates = in.readInt();
+        int maxWindow = in.readInt();
+        boolean periodic = in.readInt() != 0;
+
+        int [] initialState = new int[L];
+
+        for (int i = 0; i < L; i++) {
+            initialState[i] = in.readInt();
+        }
+
+        config = new LatticeConfiguration(
+            L, nstates, initialState,
+            LatticeConfiguration.isPackedByDefault(nstates), periodic);
+        config.setMaxWindow(maxWindow);
+
+        readNext();
+    }
+
+    private void readNext() throws IOException {
+        try {
+            nextTime = in.readDouble();
+            nextPosition = in.readInt();
+            nextWindow = in.readInt();
+            nextC = in.readInt();
+
+            hasNext = true;
+        } catch (EOFException e) {
+            hasNext = false;
+        }
+    }
+
+    /**
+     * Apply the next event, returning false if there are none left.
+     */
+    public boolean next() throws IOException {
+        if (!hasNext) {
+            return false;
+        }
+
+        config.setConfiguration(nextC, nextPosition, nextWindow);
+        time = nextTime;
+
+        readNext();
+
+        return true;
+    }
+
+    /**
+     * Apply all events up to and including time t, so that
+     * getConfiguration() is the configuration at time t.  Times must be
+     * visited in increasing order.
+     */
+    public void advanceTo(double t) throws IOException {
+        while (hasNext && nextTime <= t) {
+            next();
+        }
+    }
+
+    /**
+     * The time of the last event applied (0 before any).
+     */
+    public double getTime() {
+        return time;
+    }
+
+    /**
+     * The configuration after the events applied so far.  This is
+     * updated in place as further events are applied.
+     */
+    public LatticeConfiguration getConfiguration() {
+        return config;
+    }
+
+    public int getNumStates() {
+        return nstates;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Print configurations from a trajectory file.
+     *
+     * With just the file name, print the configuration after each event
+     * with its time (the format of verbose mode).  Given times, print the
+     * configuration at each time as a line of JSON.
+     *
+     * Usage: TrajectoryReader file [time ...]
+     */
+    public static void main(String [] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: TrajectoryReader file [time ...]");
+            System.exit(1);
+        }
+
+        TrajectoryReader reader = new TrajectoryReader(args[0]);
+
+        try {
+            if (args.length == 1) {
+                System.out.println(reader.getConfiguration().toString());
+
+                while (reader.next()) {
+                    System.out.println(
+                        reader.getConfiguration().toString()
+                        + " : " + reader.getTime());
+                }
+
+                return;
+            }
+
+            for (int k = 1; k < args.length; k++) {
+                double t = Double.parseDouble(args[k]);
+
+                reader.advanceTo(t);
+
+                System.out.println(
+                    "{\"t\": " + t + ", \"configuration\": "
+                    + reader.getConfiguration().toJson() + "}");
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package openepsim;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Write a simulation trajectory as a compact binary event log: the
+ * initial configuration, then one fixed size record per transition.
+ * Much cheaper than printing the whole lattice after every event, and
+ * TrajectoryReader can reconstruct the configuration at any time.
+ *
+ * Format (big-endian):
+ *
+ * <pre>
+ * header: int MAGIC, int VERSION, int L, int nstates, int maxWindow,
+ *         int periodic (0 or 1), int[L] initial configuration
+ * record: double time, int position, int window, int c
+ * </pre>
+ *
+ * where each record sets sites position, ..., position + window - 1 to
+ * local configuration c (as LatticeConfiguration.setConfiguration(),
+ * wrapping around the end of a periodic lattice).  Positions are zero
+ * indexed.
+ */
+public class TrajectoryWriter {
+    public static final int MAGIC = 0x4f455054; // "OEPT"
+    public static final int VERSION = 2;
+
+    public static final int RECORD_SIZE = 8 + 4 + 4 + 4;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+
+    private long events;
+
+    /**
+     * Create file, and write the header.
+     *
+     * @param config The initial configuration.
+     * @param maxWindow The maximum window of any transition.
+     */
+    public TrajectoryWriter(
+        String file, LatticeConfiguration config, int nstates, int maxWindow
+    ) throws IOException {
+        channel = FileChannel.open(
+            Paths.get(file),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING
+        );
+
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        int L = config.getLength();
+
+        writeInt(MAGIC);
+        writeInt(VERSION);
+        writeInt(L);
+        writeInt(nstates);
+        writeInt(maxWindow);
+        writeInt(config.isPeriodic() ? 1 : 0);
+
+        for (int i = 0; i < L; i++) {
+            writeInt(config.getConfigurationInt(i));
+        }
+    }
+
+    private void writeInt(int value) throws IOException {
+        if (buffer.remaining() < 4) {
+            flush();
+        }
+
+        buffer.putInt(value);
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        buffer.clear();
+    }
+
+    /**
+     * Record a transition at time t setting sites position, ..., position
+     * + window - 1 to local configuration c.
+     */
+    public void event(double t, int position, int window, int c)
+        throws IOException {
+        if (buffer.remaining() < RECORD_SIZE) {
+            flush();
+        }
+
+        buffer.putDouble(t);
+        buffer.putInt(position);
+        buffer.putInt(window);
+        buffer.putInt(c);
+
+        events++;
+    }
+
+    /**
+     * The number of events recorded.
+     */
+    public long getEvents() {
+        return events;
+    }
+
+    /**
+     * Write out any buffered records and close the file.
+     */
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+}
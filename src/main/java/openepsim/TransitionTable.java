@@ -0,0 +1,230 @@
+package openepsim;
+
+import java.util.Arrays;
+
+/**
+ * The local transition matrix of a LocalTransitionSpec compiled into a
+ * sparse table: for each source (from) local configuration, the target
+ * configurations with non-zero rate, those rates, and their total.
+ *
+ * Transition matrices are mostly zeros (of the nstates^window targets
+ * from each configuration, typically only a few are allowed), so
+ * choosing a target only visits the allowed ones.
+ *
+ * The targets of configuration c are targets[start[c]], ...,
+ * targets[start[c + 1] - 1], in increasing order, with rates in the
+ * same positions of rates.
+ */
+class TransitionTable {
+    private final int [] start;
+    private final int [] targets;
+    private final double [] rates;
+
+    private final double [] exitRates;
+    private final double maxRate;
+
+    /**
+     * Compile a dense transition matrix, indexed rates[to][from].  Only
+     * positive rates off the diagonal are kept, as for the sparse
+     * constructor.
+     */
+    TransitionTable(double [][] matrix) {
+        int n = matrix.length;
+
+        start = new int[n + 1];
+
+        for (int c = 0; c < n; c++) {
+            int count = 0;
+
+            for (int to = 0; to < n; to++) {
+                if (to != c && matrix[to][c] > 0) {
+                    count++;
+                }
+            }
+
+            start[c + 1] = start[c] + count;
+        }
+
+        targets = new int[start[n]];
+        rates = new double[start[n]];
+        exitRates = new double[n];
+
+        double max = 0;
+
+        for (int c = 0; c < n; c++) {
+            int k = start[c];
+
+            for (int to = 0; to < n; to++) {
+                double rate = matrix[to][c];
+
+                if (to != c && rate > 0) {
+                    targets[k] = to;
+                    rates[k] = rate;
+                    exitRates[c] += rate;
+
+                    k++;
+                }
+            }
+
+            max = Math.max(max, exitRates[c]);
+        }
+
+        maxRate = max;
+    }
+
+    /**
+     * Compile a sparse transition matrix between n local configurations,
+     * given as entries from[k] -> to[k] at rate[k] in any order.  Rates of
+     * repeated entries are added, and entries with from[k] == to[k] or a
+     * non-positive total are dropped.  Memory and time are O(n + entries),
+     * so the dense n x n matrix is never needed.
+     */
+    TransitionTable(int n, int [] from, int [] to, double [] rate) {
+        int m = from.length;
+
+        // Counting sort of the entries by source configuration
+        int [] first = new int[n + 1];
+
+        for (int k = 0; k < m; k++) {
+            first[from[k] + 1]++;
+        }
+
+        for (int c = 0; c < n; c++) {
+            first[c + 1] += first[c];
+        }
+
+        int [] order = new int[m];
+        int [] next = Arrays.copyOf(first, n);
+
+        for (int k = 0; k < m; k++) {
+            order[next[from[k]]++] = k;
+        }
+
+        start = new int[n + 1];
+        exitRates = new double[n];
+
+        int [] allTargets = new int[m];
+        double [] allRates = new double[m];
+
+        int size = 0;
+        double max = 0;
+
+        for (int c = 0; c < n; c++) {
+            start[c] = size;
+
+            // Sort the entries from c by target: insertion sort, as there
+            // are only a few
+            for (int p = first[c] + 1; p < first[c + 1]; p++) {
+                int k = order[p];
+                int q = p;
+
+                while (q > first[c] && to[order[q - 1]] > to[k]) {
+                    order[q] = order[q - 1];
+                    q--;
+                }
+
+                order[q] = k;
+            }
+
+            for (int p = first[c]; p < first[c + 1]; p++) {
+                int k = order[p];
+
+                if (to[k] == c) {
+                    continue;
+                }
+
+                if (size > start[c] && allTargets[size - 1] == to[k]) {
+                    allRates[size - 1] += rate[k];
+                } else {
+                    allTargets[size] = to[k];
+                    allRates[size] = rate[k];
+                    size++;
+                }
+            }
+
+            // Drop the entries which don't add up to a positive rate
+            int kept = start[c];
+
+            for (int q = start[c]; q < size; q++) {
+                if (allRates[q] > 0) {
+                    allTargets[kept] = allTargets[q];
+                    allRates[kept] = allRates[q];
+                    exitRates[c] += allRates[q];
+                    kept++;
+                }
+            }
+
+            size = kept;
+            max = Math.max(max, exitRates[c]);
+        }
+
+        start[n] = size;
+
+        targets = Arrays.copyOf(allTargets, size);
+        rates = Arrays.copyOf(allRates, size);
+        maxRate = max;
+    }
+
+    /**
+     * The number of local configurations.
+     */
+    int size() {
+        return exitRates.length;
+    }
+
+    /**
+     * Total rate of leaving configuration c.
+     */
+    double getExitRate(int c) {
+        return exitRates[c];
+    }
+
+    /**
+     * The largest exit rate from any configuration.
+     */
+    double getMaxRate() {
+        return maxRate;
+    }
+
+    /**
+     * The entries for configuration c are getStart(c), ...,
+     * getStart(c + 1) - 1.
+     */
+    int getStart(int c) {
+        return start[c];
+    }
+
+    int getTarget(int k) {
+        return targets[k];
+    }
+
+    double getRate(int k) {
+        return rates[k];
+    }
+
+    /**
+     * Choose the target configuration from configuration fromC,
+     * according to r in range [0, getExitRate(fromC)).  Returns -1 if
+     * fromC has no targets.
+     */
+    int selectTarget(int fromC, double r) {
+        int end = start[fromC + 1] - 1;
+
+        if (end < start[fromC]) {
+            return -1;
+        }
+
+        double rateSum = 0;
+
+        for (int k = start[fromC]; k < end; k++) {
+            rateSum += rates[k];
+
+            if (r < rateSum) {
+                return targets[k];
+            }
+        }
+
+        // The last entry, also reached through rounding
+        return targets[end];
+    }
+}
@@ -1,13 +1,18 @@
 package openepsim;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import com.google.gson.Gson;
 
 public class Transitions {
+    /**
+     * A single allowed transition.  Only used to report the current
+     * transitions for testing/debugging: the transitions themselves
+     * are stored per site, see below.
+     */
     private class Transition {
-        // Linked list, the transient is just to exclude this from the
-        // gson toJson() output
-        transient Transition next;
-
         double rate;
         int c;
         int position;
@@ -37,25 +42,124 @@ public class Transitions {
 
     private LatticeConfiguration config;
 
+    // Periodic lattice: windows wrap around the end, so the slots
+    // depending on a site can also wrap
+    private final boolean periodic;
+    private final int length;
+
     private SimOptions.LocalTransitionSpec [] specs;
     private int froms[];
     private int tos[];
 
-    private Transition transitions;
-    private Transition spares;
+    // The transitions are stored in one slot per (spec, position): slots
+    // offsets[i], ..., offsets[i + 1] - 1 are for spec i at positions
+    // froms[i], ..., tos[i].  Each slot records the local configuration
+    // at that position and its total exit rate.  The target
+    // configuration is chosen within the slot once the slot has been
+    // selected.
+    private int [] offsets;
+    private int [] slotFromC;
+    private double [] slotRates;
+
+    // The transition matrix of each spec, compiled into a sparse table
+    private TransitionTable [] tables;
+
+    // Per-site rate multipliers: the rates of spec i at position j are
+    // multiplied by scales[i][j - froms[i]], or not at all if scales[i]
+    // is null
+    private double [][] scales;
+
+    // The specs, in order, that may have slots depending on the sites
+    // changed by a transition at a position in bucket b (positions
+    // b * BUCKET_SIZE, ..., (b + 1) * BUCKET_SIZE - 1), so that
+    // clearDirty() and recalculate() only visit specs near the change
+    private static final int BUCKET_SIZE = 64;
+    private int [][] bucketSpecs;
 
     private double exitRate;
 
+    // Rejection sampling: bounds[i] is the sum over specs 0, ..., i of
+    // (number of sites) * (maximum exit rate), and maxRates[i] the maximum
+    // exit rate from any local configuration of spec i.
+    private double [] maxRates;
+    private double [] bounds;
+
+    // Left over part of r after selectSlot()
+    private double residual;
+
+    // The last transition performed
+    private int lastSpec;
+    private int lastPosition;
+    private int lastWindow;
+    private int lastFromC;
+    private int lastC;
+
+    // Tree mode: the slot rates are also held in a sum tree
+    private final boolean useTree;
+    private SumTree tree;
+
+    // List mode: the slots of positive rate, linked in slot order, so
+    // that selection only walks the allowed transitions.  next[s] and
+    // prev[s] are the neighbours of slot s in the list, which is
+    // circular through slot number nslots, the head.
+    private int [] next;
+    private int [] prev;
+
+    // Instrumentation, or null when disabled
+    private SimCounters counters;
+
     /**
      * Construct a Transitions object, which will calculate the
      * allowed transitions for the given LatticeConfiguration according
      * to the list of LocalTransitionSpec objects.
+     *
+     * Transitions are selected by walking the list of allowed slots (the
+     * reference implementation, see the three argument constructor).
      */
     public Transitions(
         LatticeConfiguration config,
         SimOptions.LocalTransitionSpec [] specs
+    ) {
+        this(config, specs, false);
+    }
+
+    /**
+     * Construct a Transitions object, choosing how transitions are
+     * selected.
+     *
+     * @param useTree If true, select transitions using a sum tree over
+     *        (spec, position) slots, costing O(log L) per transition.
+     *        If false, walk the list of slots with allowed transitions
+     *        (positive rate), costing O(number of allowed slots) per
+     *        transition.
+     */
+    public Transitions(
+        LatticeConfiguration config,
+        SimOptions.LocalTransitionSpec [] specs,
+        boolean useTree
+    ) {
+        this(config, specs, useTree, 0, config.getLength() - 1);
+    }
+
+    /**
+     * Construct a Transitions object for the transitions at positions
+     * first, ..., last only (zero indexed), for example for one domain of
+     * a lattice simulated in parallel (see DomainSimulation).  The
+     * position of a transition is the first site of its window, so
+     * transitions may read and change sites up to last + window - 1.
+     */
+    public Transitions(
+        LatticeConfiguration config,
+        SimOptions.LocalTransitionSpec [] specs,
+        boolean useTree,
+        int first,
+        int last
     ) {
         this.config = config;
+        this.useTree = useTree;
+
+        this.periodic = config.isPeriodic();
+        this.length = config.getLength();
 
         this.specs = specs;
 
@@ -83,55 +187,339 @@ public class Transitions {
             } else {
                 tos[i] -= 1;
             }
+
+            froms[i] = Math.max(froms[i], first);
+            tos[i] = Math.min(tos[i], last);
+        }
+
+        tables = new TransitionTable[specs.length];
+        scales = new double[specs.length][];
+        offsets = new int[specs.length + 1];
+
+        for (int i = 0; i < specs.length; i++) {
+            tables[i] = specs[i].getTable(config.getNumStates());
+
+            int n = Math.max(0, tos[i] - froms[i] + 1);
+
+            offsets[i + 1] = offsets[i] + n;
+
+            double [] multipliers = specs[i].getMultipliers(L);
+
+            if (multipliers != null) {
+                // Indexed from the first position of the whole spec
+                int from = specs[i].from < 0
+                    ? specs[i].from + L : specs[i].from - 1;
+
+                scales[i] = new double[n];
+
+                System.arraycopy(
+                    multipliers, froms[i] - from, scales[i], 0, n);
+            }
+        }
+
+        maxRates = new double[specs.length];
+        bounds = new double[specs.length];
+
+        for (int i = 0; i < specs.length; i++) {
+            maxRates[i] = tables[i].getMaxRate() * maxScale(i);
+
+            bounds[i] = (i > 0 ? bounds[i - 1] : 0)
+                + (offsets[i + 1] - offsets[i]) * maxRates[i];
+        }
+
+        int nslots = offsets[specs.length];
+
+        slotFromC = new int[nslots];
+        slotRates = new double[nslots];
+
+        buildBuckets();
+
+        if (useTree) {
+            tree = new SumTree(nslots);
+        } else {
+            next = new int[nslots + 1];
+            prev = new int[nslots + 1];
         }
 
         // Now calculate the initial transitions
+        rebuild();
+    }
+
+    /**
+     * A copy of other for config, a copy of other's lattice
+     * configuration (see LatticeConfiguration(LatticeConfiguration)),
+     * for example to branch a simulation.  The structure fixed by the
+     * specs (ranges, slot layout, multipliers and buckets) is shared, and
+     * the slots, and sum tree, are copied in bulk: no transition is
+     * recalculated.  Counters are not copied.
+     */
+    public Transitions(Transitions other, LatticeConfiguration config) {
+        this.config = config;
+        this.useTree = other.useTree;
+
+        this.periodic = other.periodic;
+        this.length = other.length;
+
+        this.specs = other.specs;
+        this.froms = other.froms;
+        this.tos = other.tos;
+        this.offsets = other.offsets;
+        this.scales = other.scales;
+        this.bucketSpecs = other.bucketSpecs;
+
+        // Changed by setRates()
+        this.tables = other.tables.clone();
+        this.maxRates = other.maxRates.clone();
+        this.bounds = other.bounds.clone();
+
+        this.slotFromC = other.slotFromC.clone();
+        this.slotRates = other.slotRates.clone();
+        this.tree = other.tree != null ? new SumTree(other.tree) : null;
+        this.next = other.next != null ? other.next.clone() : null;
+        this.prev = other.prev != null ? other.prev.clone() : null;
+
+        copyLast(other);
+    }
+
+    /**
+     * Overwrite the transitions with those of other, built from the same
+     * specs for a lattice of the same shape.  Copy the lattice
+     * configuration too (see LatticeConfiguration.copyFrom()), as the
+     * transitions must match it.
+     */
+    public void copyFrom(Transitions other) {
+        if (
+            other.specs != specs || other.useTree != useTree
+            ||
+            other.slotRates.length != slotRates.length
+        ) {
+            throw new IllegalArgumentException(
+                "Can't copy transitions of different specs");
+        }
+
+        System.arraycopy(other.tables, 0, tables, 0, tables.length);
+        System.arraycopy(other.maxRates, 0, maxRates, 0, maxRates.length);
+        System.arraycopy(other.bounds, 0, bounds, 0, bounds.length);
+
+        System.arraycopy(
+            other.slotFromC, 0, slotFromC, 0, slotFromC.length);
+        System.arraycopy(
+            other.slotRates, 0, slotRates, 0, slotRates.length);
+
+        if (tree != null) {
+            tree.copyFrom(other.tree);
+        } else {
+            System.arraycopy(other.next, 0, next, 0, next.length);
+            System.arraycopy(other.prev, 0, prev, 0, prev.length);
+        }
+
+        copyLast(other);
+    }
+
+    /**
+     * Copy the exit rate and the last transition of other.
+     */
+    private void copyLast(Transitions other) {
+        exitRate = other.exitRate;
+        residual = other.residual;
+
+        lastSpec = other.lastSpec;
+        lastPosition = other.lastPosition;
+        lastWindow = other.lastWindow;
+        lastFromC = other.lastFromC;
+        lastC = other.lastC;
+    }
+
+    /**
+     * Recalculate every transition from the lattice configuration, for
+     * example after the whole configuration has been replaced.  O(number
+     * of slots).
+     */
+    void rebuild() {
+        exitRate = 0;
+
         for (int i = 0; i < specs.length; i++) {
-            SimOptions.LocalTransitionSpec spec = specs[i];
+            int window = specs[i].window;
 
             for (int j = froms[i]; j <= tos[i]; j++) {
-                int c = config.getConfigurationInt(j, spec.window);
+                int s = offsets[i] + j - froms[i];
+                int c = config.getConfigurationInt(j, window);
+                double rate = slotRate(i, j, c);
 
-                for (int n = 0; n < spec.rates.length; n++) {
-                    double rate = spec.rates[n][c];
+                slotFromC[s] = c;
+                slotRates[s] = rate;
 
-                    if (rate > 0) {
-                        exitRate += rate;
+                exitRate += rate;
+            }
+        }
 
-                        addTransition(rate, n, j, spec.window, i, c);
-                    }
+        if (useTree) {
+            for (int s = 0; s < slotRates.length; s++) {
+                tree.setLeaf(s, slotRates[s]);
+            }
+
+            tree.rebuild();
+        } else {
+            // Link the allowed slots in order
+            int last = slotRates.length;
+
+            for (int s = 0; s < slotRates.length; s++) {
+                if (slotRates[s] > 0) {
+                    next[last] = s;
+                    prev[s] = last;
+                    last = s;
                 }
             }
+
+            next[last] = slotRates.length;
+            prev[slotRates.length] = last;
         }
     }
 
     /**
-     * Add a Transition object to the list.
+     * Set the rate of slot s, keeping the list of allowed slots (list
+     * mode) in step.  The exit rate and sum tree are left to the caller.
      */
-    private void addTransition(double rate, int c, int position, int window,
-            int ispec, int fromC) {
-        Transition toAdd;
+    private void setSlotRate(int s, double rate) {
+        if (next != null) {
+            boolean allowed = slotRates[s] > 0;
+
+            if (allowed && !(rate > 0)) {
+                next[prev[s]] = next[s];
+                prev[next[s]] = prev[s];
+            } else if (!allowed && rate > 0) {
+                // After the last allowed slot before s: costs the gap
+                // between them, short unless few transitions are allowed
+                int p = s - 1;
+
+                while (p >= 0 && !(slotRates[p] > 0)) {
+                    p--;
+                }
 
-        if (spares == null) {
-            toAdd = new Transition(
-                rate, c, position, window, ispec, fromC
-            );
-        } else {
-            toAdd = spares;
-            spares = toAdd.next;
-            // toAdd.next is reset below
+                if (p < 0) {
+                    p = slotRates.length;
+                }
+
+                next[s] = next[p];
+                prev[s] = p;
+                prev[next[p]] = s;
+                next[p] = s;
+            }
+        }
+
+        slotRates[s] = rate;
+    }
+
+    /**
+     * The largest rate multiplier of spec i.
+     */
+    private double maxScale(int i) {
+        if (scales[i] == null) {
+            return 1;
+        }
+
+        double max = 0;
+
+        for (double scale : scales[i]) {
+            max = Math.max(max, scale);
+        }
+
+        return max;
+    }
+
+    /**
+     * The exit rate of spec i at position j, from local configuration c.
+     */
+    private double slotRate(int i, int j, int c) {
+        double rate = tables[i].getExitRate(c);
+
+        if (scales[i] != null) {
+            rate *= scales[i][j - froms[i]];
+        }
 
-            toAdd.rate = rate;
-            toAdd.c = c;
-            toAdd.position = position;
-            toAdd.window = window;
-            toAdd.ispec = ispec;
-            toAdd.fromC = fromC;
+        return rate;
+    }
+
+    /**
+     * Choose the target of spec i at position j from local configuration
+     * fromC, using residual.  The slot must have a positive rate.
+     */
+    private int selectTarget(int i, int j, int fromC) {
+        double r = residual;
+
+        if (scales[i] != null) {
+            r /= scales[i][j - froms[i]];
         }
 
-        // Add it to the front: quicker and the order doesn't matter
-        toAdd.next = transitions;
-        transitions = toAdd;
+        return tables[i].selectTarget(fromC, r);
+    }
+
+    /**
+     * Build bucketSpecs.  A transition at position p changes sites up to
+     * p + maxWindow - 1, so the slots depending on it are at positions
+     * p - window + 1, ..., p + maxWindow - 1 for a spec with the given
+     * window.
+     */
+    private void buildBuckets() {
+        int maxWindow = 1;
+
+        for (int i = 0; i < specs.length; i++) {
+            maxWindow = Math.max(maxWindow, specs[i].window);
+        }
+
+        int nbuckets = (length + BUCKET_SIZE - 1) / BUCKET_SIZE;
+
+        bucketSpecs = new int[nbuckets][];
+
+        int [] list = new int[specs.length];
+
+        for (int b = 0; b < nbuckets; b++) {
+            int n = 0;
+
+            for (int i = 0; i < specs.length; i++) {
+                int lo = b * BUCKET_SIZE - specs[i].window + 1;
+                int hi = (b + 1) * BUCKET_SIZE - 1 + maxWindow - 1;
+
+                if (
+                    overlaps(lo, hi, froms[i], tos[i])
+                    ||
+                    (periodic && overlaps(lo + length, hi + length,
+                        froms[i], tos[i]))
+                    ||
+                    (periodic && overlaps(lo - length, hi - length,
+                        froms[i], tos[i]))
+                ) {
+                    list[n++] = i;
+                }
+            }
+
+            bucketSpecs[b] = Arrays.copyOf(list, n);
+        }
+    }
+
+    private static boolean overlaps(int lo, int hi, int from, int to) {
+        return from <= to && lo <= to && from <= hi;
+    }
+
+    /**
+     * Find the spec a slot belongs to.
+     */
+    private int slotSpec(int s) {
+        int lo = 0;
+        int hi = specs.length - 1;
+
+        // Last spec with offsets[i] <= s
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+
+            if (offsets[mid] <= s) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        return lo;
     }
 
     /**
@@ -140,154 +528,547 @@ public class Transitions {
      *
      *  Call clearDirty() before this.
      */
-    private void recalculate(int position, int window) {
-        for (int i = 0; i < specs.length; i++) {
-            SimOptions.LocalTransitionSpec spec = specs[i];
+    void recalculate(int position, int window) {
+        for (int i : bucketSpecs[position / BUCKET_SIZE]) {
+            int jstart = position - specs[i].window + 1;
+            int jend = position + window - 1;
+
+            if (periodic) {
+                // Split a range wrapping around the end of the lattice
+                jend = Math.min(jend, jstart + length - 1);
+
+                if (jstart < 0) {
+                    recalculateSlots(i, jstart + length, length - 1);
+                    jstart = 0;
+                } else if (jend >= length) {
+                    recalculateSlots(i, 0, jend - length);
+                    jend = length - 1;
+                }
+            }
 
-            int jstart = Math.max(froms[i], position - spec.window + 1);
-            int jend = Math.min(tos[i], position + window - 1);
+            recalculateSlots(i, jstart, jend);
+        }
+    }
 
-            for (int j = jstart; j <= jend; j++) {
-                int c = config.getConfigurationInt(j, spec.window);
+    /**
+     * Recalculate the slots of spec i at positions jstart, ..., jend
+     * (clamped to the spec's range).
+     */
+    private void recalculateSlots(int i, int jstart, int jend) {
+        int specWindow = specs[i].window;
 
-                for (int n = 0; n < spec.rates.length; n++) {
-                    double rate = spec.rates[n][c];
+        jstart = Math.max(froms[i], jstart);
+        jend = Math.min(tos[i], jend);
 
-                    if (rate > 0) {
-                        exitRate += rate;
+        if (counters != null && jend >= jstart) {
+            counters.slotsRecalculated += jend - jstart + 1;
+        }
 
-                        addTransition(rate, n, j, spec.window, i, c);
-                    }
-                }
+        for (int j = jstart; j <= jend; j++) {
+            int s = offsets[i] + j - froms[i];
+            int c = config.getConfigurationInt(j, specWindow);
+            double rate = slotRate(i, j, c);
+
+            slotFromC[s] = c;
+            setSlotRate(s, rate);
+
+            exitRate += rate;
+
+            if (useTree) {
+                tree.set(s, rate);
             }
         }
     }
 
+    /**
+     * Replace the transition rates of spec ispec, for example for a
+     * scheduled change of rates part way through a run.  Only the slots of
+     * that spec are recalculated, as the lattice configuration is
+     * unchanged.
+     *
+     * @param rates The new transition matrix, the same size as the old.
+     */
+    public void setRates(int ispec, double [][] rates) {
+        setRates(ispec, new TransitionTable(rates));
+    }
+
+    /**
+     * As setRates(int, double [][]), with the new transition matrix
+     * already compiled.
+     */
+    void setRates(int ispec, TransitionTable table) {
+        tables[ispec] = table;
+        maxRates[ispec] = table.getMaxRate() * maxScale(ispec);
+
+        for (int i = ispec; i < specs.length; i++) {
+            bounds[i] = (i > 0 ? bounds[i - 1] : 0)
+                + (offsets[i + 1] - offsets[i]) * maxRates[i];
+        }
+
+        for (int s = offsets[ispec]; s < offsets[ispec + 1]; s++) {
+            int j = froms[ispec] + s - offsets[ispec];
+            double rate = slotRate(ispec, j, slotFromC[s]);
+
+            exitRate += rate - slotRates[s];
+            setSlotRate(s, rate);
+
+            if (useTree) {
+                tree.set(s, rate);
+            }
+        }
+    }
+
+    /**
+     * Index of the spec (in SimOptions.transitions) of the last
+     * transition performed.
+     */
+    public int getLastSpec() {
+        return lastSpec;
+    }
+
+    /**
+     * Position of the last transition performed.
+     */
+    public int getLastPosition() {
+        return lastPosition;
+    }
+
+    /**
+     * Window of the last transition performed.
+     */
+    public int getLastWindow() {
+        return lastWindow;
+    }
+
+    /**
+     * The local configuration the last transition left.
+     */
+    public int getLastFromConfiguration() {
+        return lastFromC;
+    }
+
+    /**
+     * The local configuration the last transition stepped into.
+     */
+    public int getLastConfiguration() {
+        return lastC;
+    }
+
     /**
      * Get the total exit rate.
      */
     public double getExitRate() {
+        if (useTree) {
+            return tree.getTotal();
+        }
+
         return exitRate;
     }
 
+    /**
+     * Count the work done in counters from now on (null to stop).
+     */
+    void setCounters(SimCounters counters) {
+        this.counters = counters;
+    }
+
+    /**
+     * Restore the total exit rate saved in a checkpoint.  The total is
+     * kept up to date incrementally, so recomputing it from the slots
+     * would round differently from the run that was saved.
+     */
+    void setExitRate(double exitRate) {
+        this.exitRate = exitRate;
+    }
+
+    /**
+     * Find the slot selected by r, leaving the part of r falling within
+     * that slot in residual.  Rounding never selects a slot of rate
+     * zero: -1 is returned if there is none of positive rate.
+     *
+     * Without the tree, this is a linear walk over the list of slots
+     * with allowed transitions, in slot order, so it costs O(number of
+     * allowed slots).  It finds the same slot as the tree, but by a
+     * separate path, so the tree can be checked against it.
+     */
+    private int selectSlot(double r) {
+        if (useTree) {
+            int s = tree.find(r);
+
+            residual = tree.getResidual();
+
+            if (counters != null) {
+                counters.slotsScanned += tree.depth();
+            }
+
+            // find() only takes a branch of total zero when both are, so
+            // a leaf of zero (or padding) means the whole tree is zero
+            return s < slotRates.length && slotRates[s] > 0 ? s : -1;
+        }
+
+        // Find the first allowed slot such that the partial sum of rates
+        // is greater than r, or the last through rounding
+        int head = slotRates.length;
+        int s = next[head];
+
+        if (s == head) {
+            return -1;
+        }
+
+        double rateSum = slotRates[s];
+        long scanned = 1;
+
+        while (r >= rateSum && next[s] != head) {
+            s = next[s];
+            rateSum += slotRates[s];
+            scanned++;
+        }
+
+        if (counters != null) {
+            counters.slotsScanned += scanned;
+        }
+
+        residual = r - (rateSum - slotRates[s]);
+
+        return s;
+    }
+
     /**
      *  Randomly select then perform a transition according to r:
      *  update the lattice configuration, then recalculate affected
      *  transitions.
      *
      *  @param r a random double value in range [0, this.getExitRate()).
+     *  @return true if a transition was performed: false only if no
+     *          slot has any (the exit rate left over is rounding), in
+     *          which case getLastSpec() etc. are unchanged.
      */
-    public void doTransition(double r) {
-        // Find the first transition such that the partial sum
-        // of rates is greater than r
-        Transition curr = transitions;
-        double rateSum = curr.rate;
+    public boolean doTransition(double r) {
+        return doTransition(r, null);
+    }
 
-        while (r >= rateSum) {
-            curr = curr.next;
-            rateSum += curr.rate;
+    /**
+     *  Like the above but record statistics (if stats is not null).
+     */
+    public boolean doTransition(double r, DensityStatistics stats) {
+        boolean timed = counters != null && counters.startEvent();
+        long t0 = timed ? System.nanoTime() : 0;
+
+        int s = selectSlot(r);
+
+        if (s < 0) {
+            return false;
         }
 
-        config.setConfiguration(curr.c, curr.position, curr.window);
+        int ispec = slotSpec(s);
+
+        SimOptions.LocalTransitionSpec spec = specs[ispec];
+
+        int position = froms[ispec] + s - offsets[ispec];
+        int fromC = slotFromC[s];
+        int c = selectTarget(ispec, position, fromC);
 
-        // Remove affected transitions
-        clearDirty(curr.position, curr.window);
+        // A slot of positive rate has a target
+        assert c >= 0;
 
-        // Then recalculate them
-        recalculate(curr.position, curr.window);
+        long t1 = timed ? System.nanoTime() : 0;
+
+        update(ispec, position, fromC, c, stats, timed);
+
+        if (timed) {
+            counters.selectionNanos += t1 - t0;
+            counters.updateNanos += System.nanoTime() - t1;
+        }
+
+        return true;
     }
 
     /**
-     *  Like the above but record statistics.
+     * Perform the transition of spec ispec at position from fromC to c,
+     * recording it in stats (if not null), and update the affected
+     * slots.  If timed, the time taken by stats is moved from the update
+     * time to the statistics time.
      */
-    public void doTransition(double r, DensityStatistics stats) {
-        // Find the first transition such that the partial sum
-        // of rates is greater than r
-        Transition curr = transitions;
-        double rateSum = curr.rate;
+    private void update(
+        int ispec, int position, int fromC, int c, DensityStatistics stats,
+        boolean timed
+    ) {
+        int window = specs[ispec].window;
 
-        while (r >= rateSum) {
-            curr = curr.next;
-            rateSum += curr.rate;
-        }
+        config.setConfiguration(c, position, window);
+
+        lastSpec = ispec;
+        lastPosition = position;
+        lastWindow = window;
+        lastFromC = fromC;
+        lastC = c;
+
+        if (stats != null) {
+            long t0 = timed ? System.nanoTime() : 0;
 
-        config.setConfiguration(curr.c, curr.position, curr.window);
+            stats.countTransition(ispec, c, fromC);
+            stats.updateSites(config, position, window);
 
-        stats.countTransition(curr.ispec, curr.c, curr.fromC);
+            if (timed) {
+                long dt = System.nanoTime() - t0;
+
+                counters.statisticsNanos += dt;
+                counters.updateNanos -= dt;
+            }
+        }
 
         // Remove affected transitions and recalculate
-        int currPosition = curr.position;
-        int currWindow = curr.window;
+        clearDirty(position, window);
+        recalculate(position, window);
+    }
+
+    /**
+     * Get the bounding rate for rejection sampling: the total exit rate
+     * if every site were in its fastest local configuration.  This is
+     * always at least getExitRate().
+     */
+    public double getBoundingRate() {
+        return bounds.length > 0 ? bounds[bounds.length - 1] : 0;
+    }
+
+    /**
+     *  Rejection sampling: pick a candidate (spec, site) with probability
+     *  proportional to the spec's maximum exit rate, and accept it with
+     *  probability (exit rate) / (maximum exit rate).  Costs
+     *  O(log(number of specs)), independent of L.
+     *
+     *  @param r a random double value in range [0, getBoundingRate()).
+     *  @return the accepted slot, or -1 if rejected.  The part of r
+     *          used to choose the target is left in residual.
+     */
+    private int selectCandidate(double r) {
+        // First spec with bounds[i] > r
+        int lo = 0;
+        int hi = bounds.length - 1;
+
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+
+            if (bounds[mid] > r) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
 
-        clearDirty(currPosition, currWindow);
-        recalculate(currPosition, currWindow);
+        int ispec = lo;
+        int nsites = offsets[ispec + 1] - offsets[ispec];
+        double maxRate = maxRates[ispec];
+
+        // A spec with no allowed transitions (all its rates or multipliers
+        // zero) has no share of the bound, so is only found for r at the
+        // end of the range, through rounding
+        if (maxRate <= 0 || nsites == 0) {
+            return -1;
+        }
+
+        // Split what is left of r into a site, and a uniform value in
+        // [0, maxRate) used to accept or reject, then choose the target
+        double y = (r - (ispec > 0 ? bounds[ispec - 1] : 0)) / maxRate;
+        int k = Math.min((int) y, nsites - 1);
+        double u = (y - k) * maxRate;
+
+        int s = offsets[ispec] + k;
+
+        if (u >= slotRates[s]) {
+            return -1;
+        }
+
+        residual = u;
+
+        return s;
+    }
+
+    /**
+     * Rejection sampling: perform the transition selected by r, if the
+     * candidate is accepted (see selectCandidate()).
+     *
+     * @param r a random double value in range [0, getBoundingRate()).
+     * @param stats Statistics to record the transition in, or null.
+     * @return true if a transition was performed.
+     */
+    public boolean tryTransition(double r, DensityStatistics stats) {
+        if (counters != null) {
+            counters.slotsScanned++;
+        }
+
+        int s = selectCandidate(r);
+
+        if (s < 0) {
+            return false;
+        }
+
+        boolean timed = counters != null && counters.startEvent();
+        long t0 = timed ? System.nanoTime() : 0;
+
+        int ispec = slotSpec(s);
+        int position = froms[ispec] + s - offsets[ispec];
+        int fromC = slotFromC[s];
+        int c = selectTarget(ispec, position, fromC);
+
+        // Only slots of positive rate are accepted, and these have a
+        // target
+        assert c >= 0;
+
+        long t1 = timed ? System.nanoTime() : 0;
+
+        update(ispec, position, fromC, c, stats, timed);
+
+        if (timed) {
+            counters.selectionNanos += t1 - t0;
+            counters.updateNanos += System.nanoTime() - t1;
+        }
+
+        return true;
     }
 
     /**
      *  Clear transitions depending on sites
      *      position, ..., position + window -1
+     *
+     *  Only the slots overlapping those sites are visited.
      */
-    private void clearDirty(int position, int window) {
-        int i1 = position;
-        int i2 = position + window - 1;
-
-        // Clear out start of the list
-        while (transitions != null) {
-            if (
-                transitions.position > i2
-                ||
-                transitions.position + transitions.window - 1 < i1
-            ) {
-                break;
+    void clearDirty(int position, int window) {
+        for (int i : bucketSpecs[position / BUCKET_SIZE]) {
+            int jstart = position - specs[i].window + 1;
+            int jend = position + window - 1;
+
+            if (periodic) {
+                // As in recalculate()
+                jend = Math.min(jend, jstart + length - 1);
+
+                if (jstart < 0) {
+                    clearSlots(i, jstart + length, length - 1);
+                    jstart = 0;
+                } else if (jend >= length) {
+                    clearSlots(i, 0, jend - length);
+                    jend = length - 1;
+                }
             }
 
-            exitRate -= transitions.rate;
+            clearSlots(i, jstart, jend);
+        }
+    }
 
-            // Remove and keep old object as spare
-            Transition toRemove = transitions;
-            transitions = transitions.next;
-            toRemove.next = spares;
-            spares = toRemove;
+    /**
+     * Clear the slots of spec i at positions jstart, ..., jend (clamped
+     * to the spec's range).
+     */
+    private void clearSlots(int i, int jstart, int jend) {
+        jstart = Math.max(froms[i], jstart);
+        jend = Math.min(tos[i], jend);
+
+        if (counters != null && jend >= jstart) {
+            counters.slotsCleared += jend - jstart + 1;
         }
 
-        if (transitions == null) {
-            return;
+        for (int j = jstart; j <= jend; j++) {
+            int s = offsets[i] + j - froms[i];
+
+            exitRate -= slotRates[s];
+            setSlotRate(s, 0);
         }
+    }
 
-        Transition lastGood = transitions;
+    /**
+     * Check the stored transitions against a full recalculation from the
+     * lattice configuration, and that getExitRate() matches the sum of
+     * all transition rates to within relative tolerance tol.
+     *
+     * This method is meant for testing.
+     */
+    boolean checkInvariants(double tol) {
+        double total = 0;
 
-        while (lastGood.next != null) {
-            Transition curr = lastGood.next;
+        for (int i = 0; i < specs.length; i++) {
+            int window = specs[i].window;
 
-            if (curr.position > i2 || curr.position + curr.window - 1 < i1) {
-                lastGood = curr;
-            } else {
-                exitRate -= curr.rate;
+            for (int j = froms[i]; j <= tos[i]; j++) {
+                int s = offsets[i] + j - froms[i];
+                int c = config.getConfigurationInt(j, window);
+                double rate = slotRate(i, j, c);
 
-                // Remove and keep old object as spare
-                Transition toRemove = lastGood.next;
-                lastGood.next = curr.next;
-                toRemove.next = spares;
-                spares = toRemove;
+                if (slotFromC[s] != c || slotRates[s] != rate) {
+                    return false;
+                }
+
+                if (useTree && tree.get(s) != rate) {
+                    return false;
+                }
+
+                total += rate;
             }
         }
+
+        if (next != null) {
+            // The list holds exactly the allowed slots, in order
+            int p = slotRates.length;
+
+            for (int s = 0; s < slotRates.length; s++) {
+                if (slotRates[s] > 0) {
+                    if (next[p] != s || prev[s] != p) {
+                        return false;
+                    }
+
+                    p = s;
+                }
+            }
+
+            if (
+                next[p] != slotRates.length || prev[slotRates.length] != p
+            ) {
+                return false;
+            }
+        }
+
+        return Math.abs(getExitRate() - total) <= tol * total;
+    }
+
+    /**
+     * Build the current list of allowed transitions.
+     */
+    private List<Transition> currentTransitions() {
+        List<Transition> list = new ArrayList<Transition>();
+
+        for (int i = 0; i < specs.length; i++) {
+            TransitionTable table = tables[i];
+
+            for (int j = froms[i]; j <= tos[i]; j++) {
+                int c = slotFromC[offsets[i] + j - froms[i]];
+                double scale = scales[i] != null ? scales[i][j - froms[i]] : 1;
+
+                int end = table.getStart(c + 1);
+
+                for (int k = table.getStart(c); k < end; k++) {
+                    list.add(new Transition(
+                        table.getRate(k) * scale, table.getTarget(k), j,
+                        specs[i].window, i, c));
+                }
+            }
+        }
+
+        return list;
     }
 
     /**
      * For debugging: dump the list of transitions.
      */
     void dump() {
-        Transition curr = transitions;
+        List<Transition> list = currentTransitions();
 
-        if (curr == null) {
+        if (list.isEmpty()) {
             System.out.println("<null>");
 
             return;
         }
 
-        while (curr != null) {
+        for (Transition curr : list) {
             System.out.println(curr);
-            curr = curr.next;
         }
     }
 
@@ -298,26 +1079,12 @@ public class Transitions {
      *  This method is meant for testing/debugging.
      */
     String [] transitionsJSON() {
-        // Count the number of transitions
-        Transition curr = transitions;
-        int numTransitions = 0;
-
-        while (curr != null) {
-            numTransitions++;
-
-            curr = curr.next;
-        }
+        List<Transition> list = currentTransitions();
 
-        String [] jsonTransitions = new String[numTransitions];
+        String [] jsonTransitions = new String[list.size()];
 
-        curr = transitions;
-        int i = 0;
-
-        while (curr != null) {
-            jsonTransitions[i] = curr.toString();
-
-            curr = curr.next;
-            i++;
+        for (int i = 0; i < jsonTransitions.length; i++) {
+            jsonTransitions[i] = list.get(i).toString();
         }
 
         return jsonTransitions;
@@ -330,10 +1097,14 @@ public class Transitions {
      * by transitionsJson().
      */
     void forceTransition(String transitionSpec) {
-        Transition curr = transitions;
+        Transition curr = null;
+
+        for (Transition t : currentTransitions()) {
+            if (transitionSpec.equals(t.toString())) {
+                curr = t;
 
-        while (curr != null && !transitionSpec.equals(curr.toString())) {
-            curr = curr.next;
+                break;
+            }
         }
 
         // Only if we found a matching transition
@@ -0,0 +1,151 @@
+package openepsim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decide when a run has relaxed to its stationary state, from block
+ * averages of some observables (e.g. total density and current) over
+ * successive blocks of equal length.
+ *
+ * After each block, the MSER (marginal standard error rule) truncation
+ * point d of each observable is found: the number of initial blocks to
+ * drop minimising the squared standard error of the mean of the rest,
+ *
+ * <pre>
+ * sum_{i > d} (x_i - mean_d)^2 / (n - d)^2.
+ * </pre>
+ *
+ * The run is judged to have relaxed once, for every observable, d is in
+ * the first half of the blocks, and the means of the two halves of the
+ * blocks after d differ by at most tolerance times their overall mean,
+ * or by less than two standard errors (estimated from the variance of
+ * the blocks, taken as independent) so that any drift is hidden by the
+ * noise.
+ */
+public class WarmupDetector {
+    /**
+     * Minimum number of blocks before a decision is made.
+     */
+    public static final int MIN_BLOCKS = 10;
+
+    private final double tolerance;
+    private final int nobservables;
+
+    private final List<double []> blocks = new ArrayList<double []>();
+
+    /**
+     * @param nobservables The number of observables per block.
+     * @param tolerance Largest relative drift accepted.
+     */
+    public WarmupDetector(int nobservables, double tolerance) {
+        this.nobservables = nobservables;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Add the averages of the observables over the next block.
+     */
+    public void addBlock(double [] averages) {
+        blocks.add(averages.clone());
+    }
+
+    public int getNumBlocks() {
+        return blocks.size();
+    }
+
+    /**
+     * The MSER truncation point of observable k: the number of initial
+     * blocks to drop, at most n - 2.
+     */
+    int truncation(int k) {
+        int n = blocks.size();
+
+        // Sums over blocks d, ..., n - 1
+        double sum = 0;
+        double sumSq = 0;
+
+        int best = n - 1;
+        double bestValue = Double.POSITIVE_INFINITY;
+
+        for (int d = n - 1; d >= 0; d--) {
+            double x = blocks.get(d)[k];
+
+            sum += x;
+            sumSq += x * x;
+
+            int m = n - d;
+
+            if (m < 2) {
+                continue;
+            }
+
+            double sse = Math.max(0, sumSq - sum * sum / m);
+            double value = sse / ((double) m * m);
+
+            // Prefer the smaller truncation on ties
+            if (value <= bestValue) {
+                bestValue = value;
+                best = d;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Whether the observables have stopped drifting.
+     */
+    public boolean isRelaxed() {
+        int n = blocks.size();
+
+        if (n < MIN_BLOCKS) {
+            return false;
+        }
+
+        for (int k = 0; k < nobservables; k++) {
+            int d = truncation(k);
+
+            if (d > n / 2) {
+                return false;
+            }
+
+            int half = (n - d) / 2;
+
+            double first = 0;
+            double second = 0;
+
+            for (int i = d; i < d + half; i++) {
+                first += blocks.get(i)[k];
+            }
+
+            for (int i = n - half; i < n; i++) {
+                second += blocks.get(i)[k];
+            }
+
+            first /= half;
+            second /= half;
+
+            double mean = (first + second) / 2;
+
+            double variance = 0;
+
+            for (int i = d; i < n; i++) {
+                double dx = blocks.get(i)[k] - mean;
+
+                variance += dx * dx;
+            }
+
+            variance /= n - d - 1;
+
+            double drift = Math.abs(second - first);
+            double error = Math.sqrt(2 * variance / half);
+
+            if (drift > tolerance * Math.abs(mean) && drift > 2 * error) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,85 @@
+package openepsim;
+
+/**
+ * RandomSource using the xoshiro256++ generator of Blackman and Vigna,
+ * with ziggurat exponential variates.  Its period of 2^256 - 1 can be
+ * split into independent streams with jump().
+ */
+class XoshiroSource implements RandomSource {
+    private static final long serialVersionUID = 1L;
+
+    private static final long [] JUMP = {
+        0x180ec6d33cfd0abaL, 0xd5a61266f0c9392cL,
+        0xa9582618e03fc9aaL, 0x39abdc4529b1661cL
+    };
+
+    private long s0;
+    private long s1;
+    private long s2;
+    private long s3;
+
+    /**
+     * Seed the state from the SplitMix64 sequence starting at seed, as
+     * recommended by the authors (so the state is never all zero).
+     */
+    XoshiroSource(long seed) {
+        SplitMixSource seeder = new SplitMixSource(seed);
+
+        s0 = seeder.nextLong();
+        s1 = seeder.nextLong();
+        s2 = seeder.nextLong();
+        s3 = seeder.nextLong();
+    }
+
+    public long nextLong() {
+        long result = Long.rotateLeft(s0 + s3, 23) + s0;
+        long t = s1 << 17;
+
+        s2 ^= s0;
+        s3 ^= s1;
+        s1 ^= s2;
+        s0 ^= s3;
+
+        s2 ^= t;
+        s3 = Long.rotateLeft(s3, 45);
+
+        return result;
+    }
+
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    public double nextExponential() {
+        return ZigguratExponential.next(this);
+    }
+
+    /**
+     * Advance the state by 2^128 steps, equivalent to that many calls to
+     * nextLong().
+     */
+    void jump() {
+        long t0 = 0;
+        long t1 = 0;
+        long t2 = 0;
+        long t3 = 0;
+
+        for (long jump : JUMP) {
+            for (int b = 0; b < 64; b++) {
+                if ((jump & (1L << b)) != 0) {
+                    t0 ^= s0;
+                    t1 ^= s1;
+                    t2 ^= s2;
+                    t3 ^= s3;
+                }
+
+                nextLong();
+            }
+        }
+
+        s0 = t0;
+        s1 = t1;
+        s2 = t2;
+        s3 = t3;
+    }
+}
@@ -0,0 +1,83 @@
+package openepsim;
+
+/**
+ * Exponential variates with mean 1 by the ziggurat method of Marsaglia
+ * and Tsang (J. Stat. Software 5, 2000), with 256 layers.
+ *
+ * Nearly all variates cost one random long, a table lookup, a compare
+ * and a multiply; a logarithm or exponential is only needed in about 1%
+ * of cases.  The layer index and the 32 bit magnitude are taken from
+ * separate bits of the random long.
+ */
+final class ZigguratExponential {
+    // Start of the tail, and the area of each layer
+    private static final double R = 7.697117470131487;
+    private static final double V = 3.949659822581572e-3;
+
+    private static final double M = 4294967296.0;
+
+    private static final long [] K = new long[256];
+    private static final double [] W = new double[256];
+    private static final double [] F = new double[256];
+
+    static {
+        double d = R;
+        double t = d;
+        double q = V / Math.exp(-d);
+
+        K[0] = (long) ((d / q) * M);
+        K[1] = 0;
+
+        W[0] = q / M;
+        W[255] = d / M;
+
+        F[0] = 1;
+        F[255] = Math.exp(-d);
+
+        for (int i = 254; i >= 1; i--) {
+            d = -Math.log(V / d + Math.exp(-d));
+
+            K[i + 1] = (long) ((d / t) * M);
+            t = d;
+
+            F[i] = Math.exp(-d);
+            W[i] = d / M;
+        }
+    }
+
+    private ZigguratExponential() {
+    }
+
+    /**
+     * An exponential variate with mean 1, using random.
+     */
+    static double next(RandomSource random) {
+        while (true) {
+            long bits = random.nextLong();
+
+            int i = (int) (bits & 255);
+            long j = bits >>> 32;
+
+            // Inside the rectangle of layer i: the usual case
+            if (j < K[i]) {
+                return j * W[i];
+            }
+
+            if (i == 0) {
+                // The tail, itself exponential beyond R
+                return R - Math.log(1 - random.nextDouble());
+            }
+
+            double x = j * W[i];
+
+            // Within the wedge of layer i: accept if under the curve
+            if (
+                F[i] + random.nextDouble() * (F[i - 1] - F[i])
+                <
+                Math.exp(-x)
+            ) {
+                return x;
+            }
+        }
+    }
+}
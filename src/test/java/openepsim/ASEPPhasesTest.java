@@ -64,6 +64,17 @@ public class ASEPPhasesTest {
             optionFile, expectedDensity, expectedCurrent, tolerance);
     }
 
+    @Test
+    public void checkLDPhaseRejection() throws Exception{
+        String optionFile = "asepLD-rejection-options.json";
+        double expectedDensity = 0.250;
+        double expectedCurrent = 0.169;
+        double tolerance = 0.01;
+
+        checkSimulationOutput(
+            optionFile, expectedDensity, expectedCurrent, tolerance);
+    }
+
     @Test
     public void checkHDPhase() throws Exception{
         String optionFile = "asepHD-options.json";
@@ -85,4 +96,45 @@ public class ASEPPhasesTest {
         checkSimulationOutput(
             optionFile, expectedDensity, expectedCurrent, tolerance);
     }
+
+    /**
+     * On a ring the density and correlations are flat, and the counted
+     * bulk transitions give the current summed over all L bonds.
+     */
+    @Test
+    public void checkRing() throws Exception {
+        SimOptions options = loadTestOptions("asepRing-options.json");
+
+        OpenEPSimulation sim = new OpenEPSimulation(options.seed);
+
+        DensityStatistics stats
+        =
+        new DensityStatistics(options.L, options.nstates, options.transitions);
+
+        sim.simulate(options, stats);
+
+        double simCurrent = (
+            stats.getTransitionCount(0, 1, 2)
+            -
+            stats.getTransitionCount(0, 2, 1)
+        ) / stats.getTotalTime() / options.L;
+
+        assertEquals(0.1714, simCurrent, 0.01);
+
+        double [] densities = stats.getDensityProfile(1);
+
+        for (int i = 0; i < densities.length; i++) {
+            assertEquals(0.4, densities[i], 0.03);
+        }
+
+        for (int d = 1; d <= options.correlationDistance; d++) {
+            double [] correlation = stats.getCorrelation(d);
+
+            assertEquals(options.L, correlation.length);
+
+            for (int i = 0; i < correlation.length; i++) {
+                assertEquals(0.1551, correlation[i], 0.03);
+            }
+        }
+    }
 }
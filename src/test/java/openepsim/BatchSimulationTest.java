@@ -0,0 +1,218 @@
+package openepsim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class BatchSimulationTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private JsonObject baseOptions() {
+        return TestOptions.json("asep-test-options.json",
+            "seed", 5, "tMax", 100);
+    }
+
+    /**
+     * Build a batch sweeping the left boundary rates of the ASEP test
+     * options.
+     */
+    private String sweepBatch() {
+        return sweepBatch(baseOptions());
+    }
+
+    private String sweepBatch(JsonObject base) {
+        return "{\"base\": " + base
+            + ", \"sweep\": ["
+            + "{\"transition\": 0, \"to\": 1, \"from\": 0,"
+            + " \"values\": [0.1, 0.2, 0.3]},"
+            + "{\"transition\": 0, \"to\": 0, \"from\": 1,"
+            + " \"values\": [0.4, 0.5]}"
+            + "], \"threads\": 2}";
+    }
+
+    @Test
+    public void sweepOptions() throws Exception {
+        BatchSimulation batch = new BatchSimulation(sweepBatch());
+
+        assertEquals(6, batch.getNumPoints());
+
+        // Last sweep item varies fastest
+        SimOptions options = batch.getOptions(3);
+
+        assertEquals(0.2, options.transitions[0].rates[1][0], 0);
+        assertEquals(0.5, options.transitions[0].rates[0][1], 0);
+
+        // Other entries are unchanged
+        assertEquals(0.22, options.transitions[2].rates[0][1], 0);
+    }
+
+    @Test
+    public void runPointOutput() throws Exception {
+        BatchSimulation batch = new BatchSimulation(sweepBatch());
+
+        String line = batch.runPoint(5);
+
+        assertTrue(line.indexOf('\n') < 0);
+
+        JsonObject result = new JsonParser().parse(line).getAsJsonObject();
+
+        assertEquals(5, result.get("point").getAsInt());
+
+        JsonArray sweep = result.getAsJsonArray("sweep");
+        assertEquals(0.3, sweep.get(0).getAsDouble(), 0);
+        assertEquals(0.5, sweep.get(1).getAsDouble(), 0);
+
+        assertEquals(100, result.getAsJsonObject("results")
+            .get("tTotal").getAsDouble(), 1e-9);
+    }
+
+    @Test
+    public void invalidPointReportsError() throws Exception {
+        BatchSimulation batch = new BatchSimulation(
+            "{\"runs\": [{\"L\": 0, \"nstates\": 2}]}");
+
+        JsonObject result = new JsonParser().parse(batch.runPoint(0))
+            .getAsJsonObject();
+
+        assertTrue(result.has("error"));
+    }
+
+    /**
+     * Run batch, returning the lines written to stdout.
+     */
+    private String [] runBatch(BatchSimulation batch) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+
+        System.setOut(new PrintStream(bytes, true, "UTF-8"));
+
+        try {
+            batch.run();
+        } finally {
+            System.setOut(stdout);
+        }
+
+        return bytes.toString("UTF-8").split("\n");
+    }
+
+    /**
+     * Sweep points running at the same time each write their own sample,
+     * trajectory and checkpoint files.
+     */
+    @Test
+    public void sweepPointsWriteOwnFiles() throws Exception {
+        File samples = new File(folder.getRoot(), "samples.ndjson");
+        File trajectory = new File(folder.getRoot(), "trajectory.bin");
+        File checkpoint = new File(folder.getRoot(), "checkpoint.bin");
+
+        JsonObject base = baseOptions();
+        base.addProperty("sampleFile", samples.getPath());
+        base.addProperty("sampleInterval", 10);
+        base.addProperty("trajectoryFile", trajectory.getPath());
+
+        BatchSimulation batch = new BatchSimulation(sweepBatch(base));
+
+        assertEquals(
+            samples.getPath() + ".point3", batch.getOptions(3).sampleFile);
+
+        for (String line : runBatch(batch)) {
+            JsonObject result = new JsonParser().parse(line).getAsJsonObject();
+            int k = result.get("point").getAsInt();
+
+            assertTrue(!result.has("error"));
+
+            // One sample per interval of the run
+            assertEquals(10, Files.readAllLines(
+                new File(samples.getPath() + ".point" + k).toPath()).size());
+
+            TrajectoryReader reader = new TrajectoryReader(
+                trajectory.getPath() + ".point" + k);
+            reader.close();
+        }
+
+        base = baseOptions();
+        base.addProperty("checkpointFile", checkpoint.getPath());
+        base.addProperty("checkpointInterval", 30);
+
+        batch = new BatchSimulation(sweepBatch(base));
+
+        String [] lines = runBatch(batch);
+
+        assertEquals(batch.getNumPoints(), lines.length);
+
+        for (int k = 0; k < batch.getNumPoints(); k++) {
+            SimOptions options = batch.getOptions(k);
+
+            assertTrue(new File(options.checkpointFile).exists());
+
+            // Each checkpoint is of its own point
+            Checkpoint saved = Checkpoint.read(options.checkpointFile,
+                options, new DensityStatistics(
+                    options.L, options.nstates, options.transitions));
+
+            assertEquals(90, saved.t, 1e-9);
+        }
+    }
+
+    @Test
+    public void verboseRejected() throws Exception {
+        JsonObject base = baseOptions();
+        base.addProperty("verbose", 1);
+
+        BatchSimulation batch = new BatchSimulation(sweepBatch(base));
+
+        JsonObject result = new JsonParser().parse(batch.runPoint(0))
+            .getAsJsonObject();
+
+        assertTrue(result.has("error"));
+    }
+
+    /**
+     * Sweeps set entries of rates, so a transition given by rules is
+     * reported as such.
+     */
+    @Test
+    public void sweepRulesRejected() throws Exception {
+        BatchSimulation batch = new BatchSimulation(
+            sweepBatch(TestOptions.json("asep-rules-test-options.json")));
+
+        JsonObject result = new JsonParser().parse(batch.runPoint(0))
+            .getAsJsonObject();
+
+        assertTrue(result.get("error").getAsString().contains("rules"));
+    }
+
+    /**
+     * Points run at the same time, so "runs" points naming the same file
+     * are rejected, while differently named ones are accepted.
+     */
+    @Test
+    public void runsSharingFilesRejected() throws Exception {
+        String run = TestOptions.json("asep-test-options.json",
+            "sampleInterval", 10, "sampleFile", "a.ndjson").toString();
+
+        new BatchSimulation("{\"runs\": [" + run + ", "
+            + run.replace("a.ndjson", "b.ndjson") + "]}");
+
+        try {
+            new BatchSimulation("{\"runs\": [" + run + ", " + run + "]}");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("a.ndjson"));
+            return;
+        }
+
+        assertTrue(false);
+    }
+}
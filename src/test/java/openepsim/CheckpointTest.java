@@ -0,0 +1,102 @@
+package openepsim;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+public class CheckpointTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SimOptions loadOptions(
+        String engine, double tMax, double tSkip, File checkpoint,
+        boolean resume
+    ) throws Exception {
+        // Bulk rate changes either side of the last checkpoints
+        JsonElement rateChanges = new JsonParser().parse(
+            "[{\"time\": 200, \"spec\": 1, \"rates\":"
+            + " [[0, 0, 0, 0], [0, 0, 1, 0], [0, 0.6, 0, 0], [0, 0, 0, 0]]},"
+            + " {\"time\": 550, \"spec\": 1, \"rates\":"
+            + " [[0, 0, 0, 0], [0, 0, 0.5, 0], [0, 0.6, 0, 0], [0, 0, 0, 0]]}]"
+        );
+
+        return TestOptions.load("asep-test-options.json",
+            "seed", 29, "engine", engine, "tMax", tMax, "tSkip", tSkip,
+            "checkpointFile", checkpoint.getPath(), "checkpointInterval", 150,
+            "batchInterval", 40, "resume", resume,
+            "rateChanges", rateChanges);
+    }
+
+    /**
+     * Run to tStop (killing the run after the last checkpoint before
+     * then), resume to tMax, and check the result is identical to an
+     * uninterrupted run.
+     */
+    private void checkResume(String engine, double tSkip, double tStop)
+        throws Exception {
+        double tMax = 1000;
+
+        File full = new File(folder.getRoot(), engine + tSkip + "-full.bin");
+        File part = new File(folder.getRoot(), engine + tSkip + "-part.bin");
+
+        SimOptions options = loadOptions(engine, tMax, tSkip, full, false);
+
+        DensityStatistics stats = new DensityStatistics(
+            options.L, options.nstates, options.transitions);
+
+        LatticeConfiguration config
+            = new OpenEPSimulation(options.seed).simulate(options, stats);
+
+        SimOptions partOptions
+            = loadOptions(engine, tStop, tSkip, part, false);
+
+        new OpenEPSimulation(options.seed).simulate(
+            partOptions,
+            new DensityStatistics(
+                options.L, options.nstates, options.transitions)
+        );
+
+        SimOptions resumeOptions = loadOptions(engine, tMax, tSkip, part, true);
+
+        DensityStatistics resumedStats = new DensityStatistics(
+            options.L, options.nstates, options.transitions);
+
+        // A different seed: the random state comes from the checkpoint
+        OpenEPSimulation sim = new OpenEPSimulation(1);
+
+        LatticeConfiguration resumedConfig
+            = sim.simulate(resumeOptions, resumedStats);
+
+        assertTrue(sim.isResumed());
+        assertArrayEquals(config.toArray(), resumedConfig.toArray());
+        assertEquals(stats.summary(), resumedStats.summary());
+    }
+
+    @Test
+    public void resumeRecorded() throws Exception {
+        checkResume(SimOptions.ENGINE_LIST, 100, 500);
+    }
+
+    @Test
+    public void resumeSkipped() throws Exception {
+        checkResume(SimOptions.ENGINE_LIST, 400, 350);
+    }
+
+    @Test
+    public void resumeTree() throws Exception {
+        checkResume(SimOptions.ENGINE_TREE, 100, 700);
+    }
+
+    @Test
+    public void resumeRejection() throws Exception {
+        checkResume(SimOptions.ENGINE_REJECTION, 100, 500);
+    }
+}
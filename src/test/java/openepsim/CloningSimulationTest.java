@@ -0,0 +1,74 @@
+package openepsim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+public class CloningSimulationTest {
+    private CloningSimulation run(SimOptions options) throws Exception {
+        CloningSimulation cloning = new CloningSimulation(options);
+
+        cloning.simulate();
+
+        return cloning;
+    }
+
+    /**
+     * For a single site filled at rate a and emptied at rate b, psi(s) of
+     * the number of fillings is the largest eigenvalue of the tilted
+     * generator {{-a, b}, {a e^s, -b}}.
+     */
+    @Test
+    public void singleSiteMatchesExact() throws Exception {
+        double a = 1;
+        double b = 2;
+
+        for (double s : new double [] {-1, 0.5}) {
+            CloningSimulation cloning = run(TestOptions.load(
+                "cloning-test-options.json", "cloningBias", s));
+
+            double root = Math.sqrt(
+                (a - b) * (a - b) + 4 * a * b * Math.exp(s));
+            double psi = (-(a + b) + root) / 2;
+
+            // psi'(s)
+            double current = a * b * Math.exp(s) / root;
+
+            assertEquals(psi, cloning.getScgf(), 0.02);
+            assertEquals(current, cloning.getCurrent(), 0.03);
+        }
+    }
+
+    /**
+     * Without bias nothing is weighted: psi(0) = 0 exactly, and the
+     * current is the unbiased one, ab / (a + b).
+     */
+    @Test
+    public void unbiased() throws Exception {
+        CloningSimulation cloning = run(TestOptions.load(
+            "cloning-test-options.json", "cloningBias", 0));
+
+        assertEquals(0, cloning.getScgf(), 1e-12);
+        assertEquals(2.0 / 3, cloning.getCurrent(), 0.01);
+    }
+
+    /**
+     * The run doesn't depend on the number of threads.
+     */
+    @Test
+    public void repeatable() throws Exception {
+        JsonObject json = TestOptions.json("asep-test-options.json",
+            "seed", 3, "tMax", 50, "clones", 20, "cloningBias", 0.2);
+
+        json.addProperty("threads", 1);
+        String serial = run(TestOptions.build(json)).summary();
+
+        json.addProperty("threads", 3);
+        String parallel = run(TestOptions.build(json)).summary();
+
+        assertEquals(serial, parallel);
+        assertTrue(serial.contains("scgf"));
+    }
+}
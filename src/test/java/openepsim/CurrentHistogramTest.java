@@ -0,0 +1,148 @@
+package openepsim;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+import org.apache.commons.math3.random.MersenneTwister;
+
+public class CurrentHistogramTest {
+    /**
+     * Cumulants of a sample, computed directly.
+     */
+    private double [] cumulants(double [] x) {
+        double mean = 0;
+
+        for (double v : x) {
+            mean += v;
+        }
+
+        mean /= x.length;
+
+        double [] mu = new double[5];
+
+        for (double v : x) {
+            for (int p = 2; p <= 4; p++) {
+                mu[p] += Math.pow(v - mean, p) / x.length;
+            }
+        }
+
+        return new double [] {mean, mu[2], mu[3], mu[4] - 3 * mu[2] * mu[2]};
+    }
+
+    private long sum(long [] counts) {
+        long total = 0;
+
+        for (long c : counts) {
+            total += c;
+        }
+
+        return total;
+    }
+
+    @Test
+    public void smallRangeKeepsUnitBins() {
+        CurrentHistogram histogram = new CurrentHistogram();
+
+        double [] values = {3, 5, 5, 4, 7, 5};
+
+        for (double v : values) {
+            histogram.add(v);
+        }
+
+        CurrentHistogram.Results results = histogram.getResults(2);
+
+        assertEquals(6, results.windows);
+        assertEquals(1, results.binWidth, 0);
+        assertEquals(3, results.binStart, 0);
+        assertArrayEquals(new long [] {1, 1, 3, 0, 1}, results.histogram);
+
+        assertArrayEquals(cumulants(values), results.cumulants, 1e-12);
+        assertEquals(29.0 / 6 / 2, results.scaledCumulants[0], 1e-12);
+    }
+
+    /**
+     * A range wider than the bins is covered by coarser bins, with
+     * exact moments.
+     */
+    @Test
+    public void widensToFit() {
+        CurrentHistogram histogram = new CurrentHistogram();
+        MersenneTwister random = new MersenneTwister(3);
+
+        double [] values = new double[10000];
+
+        for (int k = 0; k < values.length; k++) {
+            values[k] = Math.floor(1000 + 300 * random.nextGaussian());
+            histogram.add(values[k]);
+        }
+
+        CurrentHistogram.Results results = histogram.getResults(1);
+
+        assertEquals(values.length, sum(results.histogram));
+        assertEquals(true, results.histogram.length <= CurrentHistogram.BINS);
+        assertEquals(true, results.binWidth > 1);
+
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+
+        for (double v : values) {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+
+        assertEquals(true, results.binStart <= min);
+        assertEquals(true, min < results.binStart + results.binWidth);
+        assertEquals(
+            true,
+            max < results.binStart
+                + results.histogram.length * results.binWidth);
+
+        double [] expected = cumulants(values);
+
+        for (int k = 0; k < 4; k++) {
+            assertEquals(
+                expected[k], results.cumulants[k],
+                1e-9 * Math.pow(300, k + 1));
+        }
+    }
+
+    /**
+     * Merging matches recording all the values in one histogram.
+     */
+    @Test
+    public void mergeMatchesCombined() {
+        CurrentHistogram a = new CurrentHistogram();
+        CurrentHistogram b = new CurrentHistogram();
+        CurrentHistogram combined = new CurrentHistogram();
+
+        MersenneTwister random = new MersenneTwister(8);
+
+        for (int k = 0; k < 1000; k++) {
+            double v = random.nextInt(50) - 20;
+
+            a.add(v);
+            combined.add(v);
+        }
+
+        for (int k = 0; k < 1000; k++) {
+            double v = random.nextInt(500) + 100;
+
+            b.add(v);
+            combined.add(v);
+        }
+
+        CurrentHistogram merged = new CurrentHistogram();
+        merged.merge(a);
+        merged.merge(b);
+
+        CurrentHistogram.Results expected = combined.getResults(1);
+        CurrentHistogram.Results results = merged.getResults(1);
+
+        assertEquals(2000, results.windows);
+        assertEquals(expected.binWidth, results.binWidth, 0);
+        assertEquals(expected.binStart, results.binStart, 0);
+        assertArrayEquals(expected.histogram, results.histogram);
+        assertArrayEquals(expected.cumulants, results.cumulants, 1e-6);
+    }
+}
@@ -0,0 +1,226 @@
+package openepsim;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import org.apache.commons.math3.random.MersenneTwister;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class DensityStatisticsTest {
+    private SimOptions loadTestOptions(String testName) throws Exception {
+        return SimOptions.fromJSON(getClass().getResourceAsStream(testName));
+    }
+
+    @Test
+    public void incrementalMatchesFullUpdate() throws Exception {
+        compareIncremental("asep-test-options.json", 100000);
+        compareIncremental("leftperm-test-options.json", 100000);
+        compareIncremental("asepRing-options.json", 100000);
+    }
+
+    /**
+     * Run the Gillespie loop by hand, recording statistics (including
+     * two-point correlations) both with the full update() each step, and
+     * incrementally.
+     */
+    private void compareIncremental(String optionsFile, int steps)
+        throws Exception {
+        SimOptions options = loadTestOptions(optionsFile);
+
+        LatticeConfiguration config = new LatticeConfiguration(
+            options.L, options.nstates, options.initialState,
+            LatticeConfiguration.isPackedByDefault(options.nstates),
+            options.periodic);
+        config.setMaxWindow(options.getMaxWindow());
+
+        Transitions transitions = new Transitions(config, options.transitions);
+
+        DensityStatistics full = new DensityStatistics(
+            options.L, options.nstates, options.transitions);
+        DensityStatistics incremental = new DensityStatistics(
+            options.L, options.nstates, options.transitions);
+
+        int maxSeparation = 4;
+
+        full.setCorrelations(1, maxSeparation, options.periodic);
+        incremental.setCorrelations(1, maxSeparation, options.periodic);
+
+        MersenneTwister random = new MersenneTwister(99);
+
+        incremental.start(config);
+
+        for (int i = 0; i < steps; i++) {
+            double exitRate = transitions.getExitRate();
+            double dt = -Math.log(random.nextDouble()) / exitRate;
+
+            full.update(config, dt);
+            incremental.advance(dt);
+
+            transitions.doTransition(
+                random.nextDouble() * exitRate, incremental);
+        }
+
+        assertEquals(full.getTotalTime(), incremental.getTotalTime(), 1e-9);
+
+        for (int c = 0; c < options.nstates; c++) {
+            assertArrayEquals(
+                full.getDensityProfile(c),
+                incremental.getDensityProfile(c),
+                1e-9
+            );
+        }
+
+        for (int d = 1; d <= maxSeparation; d++) {
+            assertArrayEquals(
+                full.getCorrelation(d), incremental.getCorrelation(d), 1e-9);
+        }
+
+        JsonObject fullResults
+            = new JsonParser().parse(full.summary()).getAsJsonObject();
+        JsonObject incrementalResults
+            = new JsonParser().parse(incremental.summary()).getAsJsonObject();
+
+        double [][] fullSpecies = toArray(fullResults, "speciesDensity");
+        double [][] incrementalSpecies
+            = toArray(incrementalResults, "speciesDensity");
+
+        for (int c = 0; c < options.nstates; c++) {
+            assertArrayEquals(fullSpecies[c], incrementalSpecies[c], 1e-9);
+        }
+    }
+
+    private double [][] toArray(JsonObject results, String key) {
+        return new Gson().fromJson(
+            results.get(key), double[][].class);
+    }
+
+    /**
+     * Batch means standard errors, for batches with known densities.
+     */
+    @Test
+    public void batchMeansError() throws Exception {
+        SimOptions options = loadTestOptions("asep-test-options.json");
+
+        DensityStatistics stats = new DensityStatistics(
+            options.L, options.nstates, options.transitions);
+
+        LatticeConfiguration empty = new LatticeConfiguration(
+            options.L, options.nstates, new int [0]);
+        LatticeConfiguration full = new LatticeConfiguration(
+            options.L, options.nstates, new int [] {1});
+
+        stats.setBatchLength(2);
+
+        // Batch averages of site 0 are 0.5, 1, 0, 0.5
+        double [][] steps = {{1, 1}, {0, 2}, {2, 0}, {1, 1}};
+
+        for (int b = 0; b < steps.length; b++) {
+            stats.update(empty, steps[b][0]);
+            stats.update(full, steps[b][1]);
+            stats.endBatch();
+        }
+
+        assertEquals(4, stats.getNumBatches());
+
+        // Sample variance 1/6, over 4 batches
+        double error = Math.sqrt(1.0 / 6 / 4);
+
+        assertEquals(error, stats.getDensityError(1)[0], 1e-12);
+        assertEquals(error, stats.getDensityError(0)[0], 1e-12);
+        assertEquals(0, stats.getDensityError(1)[1], 1e-12);
+    }
+
+    /**
+     * With a density tolerance, the run ends early once the standard
+     * errors are small enough.
+     */
+    @Test
+    public void endsWhenPrecise() throws Exception {
+        SimOptions options = TestOptions.load("asep-test-options.json",
+            "seed", 37, "tMax", 1e7, "batchInterval", 100,
+            "densityTolerance", 0.02);
+
+        OpenEPSimulation sim = new OpenEPSimulation(options.seed);
+
+        DensityStatistics stats = new DensityStatistics(
+            options.L, options.nstates, options.transitions);
+
+        sim.simulate(options, stats);
+
+        assertTrue(sim.isPrecise());
+        assertTrue(stats.getTotalTime() < options.tMax);
+        assertTrue(stats.getNumBatches() >= DensityStatistics.MIN_BATCHES);
+        assertEquals(
+            stats.getNumBatches() * 100.0, stats.getTotalTime(), 1e-6);
+
+        for (int c = 0; c < options.nstates; c++) {
+            double [] error = stats.getDensityError(c);
+
+            for (int i = 0; i < options.L; i++) {
+                assertTrue(error[i] <= 0.02);
+            }
+        }
+    }
+
+    /**
+     * Counted transitions are added to the current of the window they
+     * fall in, with the spec's weights.
+     */
+    @Test
+    public void currentWindows() throws Exception {
+        JsonObject json = TestOptions.json("asep-test-options.json");
+
+        // Left boundary: injection 0 -> 1 counts +1, extraction -1
+        json.getAsJsonArray("transitions").get(0).getAsJsonObject().add(
+            "currentWeights", new JsonParser().parse(
+                "[{\"from\": \"0\", \"to\": \"1\", \"weight\": 1},"
+                + " {\"from\": \"1\", \"to\": \"0\", \"weight\": -1}]"));
+
+        SimOptions options = TestOptions.build(json);
+
+        DensityStatistics stats = new DensityStatistics(
+            options.L, options.nstates, options.transitions);
+
+        stats.setCurrentWindow(1);
+
+        // Window [0, 1): in, in, out; [1, 2): nothing; [2, 3): out
+        stats.advance(0.2);
+        stats.countTransition(0, 1, 0);
+        stats.countTransition(0, 1, 0);
+        stats.countTransition(2, 1, 0);
+        stats.advance(0.3);
+        stats.countTransition(0, 0, 1);
+        stats.advance(1.6);
+        stats.countTransition(0, 0, 1);
+        stats.advance(1.0);
+
+        // Unfinished window [3, 4)
+        stats.countTransition(0, 1, 0);
+
+        CurrentHistogram.Results left
+            = stats.getCurrentHistogram(0).getResults(1);
+        CurrentHistogram.Results right
+            = stats.getCurrentHistogram(2).getResults(1);
+
+        assertEquals(3, left.windows);
+        assertEquals(-1, left.binStart, 0);
+        assertArrayEquals(new long [] {1, 1, 1}, left.histogram);
+        assertEquals(0, left.mean, 1e-12);
+        assertEquals(2.0 / 3, left.variance, 1e-12);
+
+        assertEquals(3, right.windows);
+        assertEquals(1.0 / 3, right.mean, 1e-12);
+
+        assertEquals(null, stats.getCurrentHistogram(1));
+
+        JsonObject results
+            = new JsonParser().parse(stats.summary()).getAsJsonObject();
+
+        assertTrue(results.getAsJsonArray("current").get(1).isJsonNull());
+    }
+}
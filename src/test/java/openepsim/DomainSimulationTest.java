@@ -0,0 +1,90 @@
+package openepsim;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+public class DomainSimulationTest {
+    private SimOptions loadOptions(
+        String testName, int domains, int threads, long seed, double tMax
+    ) throws Exception {
+        return TestOptions.load(testName,
+            "domains", domains, "threads", threads, "seed", seed,
+            "tMax", tMax, "tSkip", 2000, "domainWindow", 0.5,
+            "engine", SimOptions.ENGINE_TREE);
+    }
+
+    private DensityStatistics simulate(SimOptions options) {
+        DensityStatistics stats = new DensityStatistics(
+            options.L, options.nstates, options.transitions);
+
+        new OpenEPSimulation(options.seed).simulate(options, stats);
+
+        return stats;
+    }
+
+    private static double mean(double [] values, int from, int to) {
+        double sum = 0;
+
+        for (int i = from; i < to; i++) {
+            sum += values[i];
+        }
+
+        return sum / (to - from);
+    }
+
+    /**
+     * Net rate of particles entering at the left boundary.
+     */
+    private static double current(DensityStatistics stats) {
+        return (
+            stats.getTransitionCount(0, 1, 0)
+            - stats.getTransitionCount(0, 0, 1)
+        ) / stats.getTotalTime();
+    }
+
+    @Test
+    public void repeatableAcrossThreadCounts() throws Exception {
+        DensityStatistics one
+            = simulate(loadOptions("asepLD-options.json", 4, 1, 5, 3000));
+        DensityStatistics three
+            = simulate(loadOptions("asepLD-options.json", 4, 3, 5, 3000));
+
+        assertEquals(one.summary(), three.summary());
+    }
+
+    /**
+     * The density and current agree with the serial simulation, in the
+     * bulk and at the boundaries.
+     */
+    @Test
+    public void equivalentToSerial() throws Exception {
+        double tMax = 40000;
+
+        SimOptions serialOptions
+            = loadOptions("asepLD-options.json", 0, 1, 7, tMax);
+        SimOptions domainOptions
+            = loadOptions("asepLD-options.json", 4, 2, 7, tMax);
+
+        DensityStatistics serial = simulate(serialOptions);
+        DensityStatistics domains = simulate(domainOptions);
+
+        double [] serialProfile = serial.getDensityProfile(1);
+        double [] domainProfile = domains.getDensityProfile(1);
+
+        int L = serialOptions.L;
+
+        assertEquals(serial.getTotalTime(), domains.getTotalTime(), 1e-6);
+
+        assertEquals(
+            mean(serialProfile, 0, L), mean(domainProfile, 0, L), 0.01);
+
+        assertEquals(
+            mean(serialProfile, 0, 10), mean(domainProfile, 0, 10), 0.02);
+        assertEquals(
+            mean(serialProfile, L - 10, L), mean(domainProfile, L - 10, L),
+            0.02);
+
+        assertEquals(current(serial), current(domains), 0.005);
+    }
+}
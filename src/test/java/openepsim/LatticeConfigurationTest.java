@@ -0,0 +1,134 @@
+package openepsim;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import org.apache.commons.math3.random.MersenneTwister;
+
+public class LatticeConfigurationTest {
+    @Test
+    public void packedSelectedAutomatically() {
+        int [] empty = new int[0];
+
+        assertTrue(new LatticeConfiguration(10, 2, empty).isPacked());
+        assertTrue(new LatticeConfiguration(10, 16, empty).isPacked());
+        assertFalse(new LatticeConfiguration(10, 3, empty).isPacked());
+        assertFalse(new LatticeConfiguration(10, 32, empty).isPacked());
+    }
+
+    @Test
+    public void packedMatchesUnpacked() {
+        for (int nstates = 2; nstates <= 9; nstates++) {
+            for (int window = 1; window <= 4; window++) {
+                comparePacked(nstates, window, 20000);
+            }
+        }
+    }
+
+    /**
+     * Apply the same random changes to packed and unpacked
+     * configurations, checking they read back the same.
+     */
+    private void comparePacked(int nstates, int window, int steps) {
+        int L = 203;
+
+        MersenneTwister random = new MersenneTwister(nstates * 10 + window);
+
+        int [] initialState = new int[L];
+
+        for (int i = 0; i < L; i++) {
+            initialState[i] = random.nextInt(nstates);
+        }
+
+        LatticeConfiguration packed
+            = new LatticeConfiguration(L, nstates, initialState, true);
+        LatticeConfiguration unpacked
+            = new LatticeConfiguration(L, nstates, initialState, false);
+
+        packed.setMaxWindow(window);
+        unpacked.setMaxWindow(window);
+
+        assertArrayEquals(initialState, packed.toArray());
+
+        int d = (int) Math.pow(nstates, window);
+
+        for (int step = 0; step < steps; step++) {
+            int i = random.nextInt(L - window + 1);
+            int c = random.nextInt(d);
+
+            packed.setConfiguration(c, i, window);
+            unpacked.setConfiguration(c, i, window);
+
+            assertEquals(c, packed.getConfigurationInt(i, window));
+
+            int j = random.nextInt(L - window + 1);
+
+            assertEquals(
+                unpacked.getConfigurationInt(j, window),
+                packed.getConfigurationInt(j, window)
+            );
+        }
+
+        assertArrayEquals(unpacked.toArray(), packed.toArray());
+        assertEquals(unpacked.toString(), packed.toString());
+    }
+
+    @Test
+    public void periodicWindowsWrap() {
+        for (int nstates = 2; nstates <= 5; nstates++) {
+            for (int window = 1; window <= 4; window++) {
+                checkPeriodic(nstates, window, true);
+                checkPeriodic(nstates, window, false);
+            }
+        }
+    }
+
+    /**
+     * Apply random changes to a short periodic lattice, at any position,
+     * checking windows read back as if the index were taken modulo L.
+     */
+    private void checkPeriodic(int nstates, int window, boolean packed) {
+        int L = 5;
+
+        MersenneTwister random = new MersenneTwister(nstates * 10 + window);
+
+        int [] sites = new int[L];
+
+        for (int i = 0; i < L; i++) {
+            sites[i] = random.nextInt(nstates);
+        }
+
+        LatticeConfiguration config
+            = new LatticeConfiguration(L, nstates, sites, packed, true);
+        config.setMaxWindow(window);
+
+        int d = (int) Math.pow(nstates, window);
+
+        for (int step = 0; step < 2000; step++) {
+            int i = random.nextInt(L);
+            int c = random.nextInt(d);
+
+            config.setConfiguration(c, i, window);
+
+            for (int j = window - 1; j >= 0; j--) {
+                sites[(i + j) % L] = c % nstates;
+                c /= nstates;
+            }
+
+            for (int k = 0; k < L; k++) {
+                int expected = 0;
+
+                for (int j = 0; j < window; j++) {
+                    expected = nstates * expected + sites[(k + j) % L];
+                }
+
+                assertEquals(expected, config.getConfigurationInt(k, window));
+            }
+        }
+
+        assertArrayEquals(sites, config.toArray());
+    }
+}
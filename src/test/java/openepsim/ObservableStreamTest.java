@@ -0,0 +1,187 @@
+package openepsim;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class ObservableStreamTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void blocksSumToTotals() throws Exception {
+        File file = folder.newFile("samples.ndjson");
+
+        SimOptions options = TestOptions.load("asep-test-options.json",
+            "seed", 11, "tMax", 1050, "tSkip", 50, "sampleInterval", 300,
+            "sampleFile", file.getPath());
+
+        OpenEPSimulation sim = new OpenEPSimulation(options.seed);
+
+        DensityStatistics stats = new DensityStatistics(
+            options.L, options.nstates, options.transitions);
+
+        sim.simulate(options, stats);
+
+        List<String> lines
+            = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+
+        // Three full blocks, then a partial one
+        assertEquals(4, lines.size());
+
+        double time = 0;
+        double density = 0;
+        int count = 0;
+
+        for (String line : lines) {
+            JsonObject record = new JsonParser().parse(line).getAsJsonObject();
+
+            double dt = record.get("dt").getAsDouble();
+
+            time += dt;
+            density += dt * record.getAsJsonArray("density")
+                .get(1).getAsDouble();
+            count += record.getAsJsonArray("counts").get(0)
+                .getAsJsonArray().get(1).getAsJsonArray().get(0).getAsInt();
+
+            assertEquals(time, record.get("t").getAsDouble(), 1e-9);
+        }
+
+        assertEquals(stats.getTotalTime(), time, 1e-9);
+        assertEquals(stats.getTransitionCount(0, 1, 0), count);
+
+        double [] profile = stats.getDensityProfile(1);
+        double mean = 0;
+
+        for (int i = 0; i < profile.length; i++) {
+            mean += profile[i] / profile.length;
+        }
+
+        assertEquals(mean, density / time, 1e-9);
+    }
+
+    /**
+     * Records dropped while the writer is held up are counted, and the
+     * count written as the last line.
+     */
+    @Test
+    public void droppedRecordsReported() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final StringWriter output = new StringWriter();
+
+        // Holds up the writer thread until released
+        StringWriter writer = new StringWriter() {
+            @Override
+            public void write(String line) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                output.write(line);
+            }
+
+            @Override
+            public void write(int c) {
+                output.write(c);
+            }
+        };
+
+        SimOptions options = SimOptions.fromJSON(
+            getClass().getResourceAsStream("asep-test-options.json"));
+
+        LatticeConfiguration config = new LatticeConfiguration(
+            options.L, options.nstates, options.initialState);
+
+        DensityStatistics stats = new DensityStatistics(
+            options.L, options.nstates, options.transitions);
+        stats.start(config);
+
+        ObservableStream stream = new ObservableStream(
+            writer, 1, 1, stats, options.L, options.nstates);
+
+        int samples = 6;
+
+        for (int k = 0; k < samples; k++) {
+            stats.advance(1);
+            stream.sample(stats);
+        }
+
+        // At most one record written, and one queued
+        assertTrue(stream.getDropped() >= samples - 2);
+
+        release.countDown();
+        stream.close();
+
+        String [] lines = output.toString().split("\n");
+
+        assertEquals(samples - stream.getDropped() + 1, lines.length);
+        assertEquals(stream.getDropped(), new JsonParser()
+            .parse(lines[lines.length - 1]).getAsJsonObject()
+            .get("dropped").getAsLong());
+    }
+
+    /**
+     * A run failing part way still closes the sample stream and the
+     * trajectory, so what was written before the failure is on disk.
+     */
+    @Test
+    public void failedRunClosesOutputs() throws Exception {
+        File samples = folder.newFile("samples.ndjson");
+        File trajectory = folder.newFile("trajectory.bin");
+
+        SimOptions options = TestOptions.load("asep-test-options.json",
+            "seed", 13, "tMax", 1000, "sampleInterval", 50,
+            "sampleFile", samples.getPath(),
+            "trajectoryFile", trajectory.getPath());
+
+        final double failAt = 300;
+
+        DensityStatistics stats = new DensityStatistics(
+            options.L, options.nstates, options.transitions) {
+            @Override
+            public void advance(double dt) {
+                if (getTotalTime() + dt > failAt) {
+                    throw new IllegalStateException("Failed");
+                }
+
+                super.advance(dt);
+            }
+        };
+
+        try {
+            new OpenEPSimulation(options.seed).simulate(options, stats);
+        } catch (IllegalStateException e) {
+            assertEquals("Failed", e.getMessage());
+        }
+
+        // A record per sampleInterval before the failure
+        List<String> lines = Files.readAllLines(
+            samples.toPath(), StandardCharsets.UTF_8);
+
+        assertEquals((int) (failAt / 50), lines.size());
+
+        TrajectoryReader reader = new TrajectoryReader(trajectory.getPath());
+
+        while (reader.next()) {
+        }
+
+        reader.close();
+
+        assertTrue(reader.getTime() > failAt - 10);
+        assertTrue(reader.getTime() <= failAt);
+    }
+}
@@ -0,0 +1,137 @@
+package openepsim;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class RandomSourceTest {
+    private static final String [] GENERATORS = {
+        SimOptions.GENERATOR_MT,
+        SimOptions.GENERATOR_SPLITMIX,
+        SimOptions.GENERATOR_XOSHIRO
+    };
+
+    /**
+     * Mean, variance and tail probabilities of the exponential variates,
+     * including the ziggurat tail beyond R.
+     */
+    @Test
+    public void exponentialDistribution() {
+        int n = 2000000;
+        double [] thresholds = {0.1, 1, 3, 8};
+
+        for (String generator : GENERATORS) {
+            RandomSource random = RandomSource.create(generator, 5);
+
+            double sum = 0;
+            double sum2 = 0;
+            int [] above = new int[thresholds.length];
+
+            for (int k = 0; k < n; k++) {
+                double x = random.nextExponential();
+
+                assertTrue(x >= 0);
+
+                sum += x;
+                sum2 += x * x;
+
+                for (int i = 0; i < thresholds.length; i++) {
+                    if (x > thresholds[i]) {
+                        above[i]++;
+                    }
+                }
+            }
+
+            double mean = sum / n;
+
+            // Standard errors are 1/sqrt(n) and 2/sqrt(n)
+            assertEquals(generator, 1, mean, 0.004);
+            assertEquals(generator, 1, sum2 / n - mean * mean, 0.008);
+
+            for (int i = 0; i < thresholds.length; i++) {
+                double p = Math.exp(-thresholds[i]);
+
+                assertEquals(
+                    generator + " " + thresholds[i],
+                    p, (double) above[i] / n,
+                    5 * Math.sqrt(p * (1 - p) / n)
+                );
+            }
+        }
+    }
+
+    @Test
+    public void uniformRange() {
+        for (String generator : GENERATORS) {
+            RandomSource random = RandomSource.create(generator, 7);
+
+            double sum = 0;
+            int n = 100000;
+
+            for (int k = 0; k < n; k++) {
+                double u = random.nextDouble();
+
+                assertTrue(u >= 0 && u < 1);
+
+                sum += u;
+            }
+
+            assertEquals(generator, 0.5, sum / n, 0.005);
+        }
+    }
+
+    /**
+     * Streams of the same seed differ, and are repeatable.
+     */
+    @Test
+    public void streams() {
+        for (String generator : GENERATORS) {
+            long a = RandomSource.create(generator, 11, 0).nextLong();
+            long b = RandomSource.create(generator, 11, 1).nextLong();
+
+            assertNotEquals(generator, a, b);
+            assertEquals(
+                generator, b, RandomSource.create(generator, 11, 1).nextLong());
+        }
+    }
+
+    /**
+     * A serialized source continues the same sequence, as when resuming
+     * from a checkpoint.
+     */
+    @Test
+    public void serializationContinuesSequence() throws Exception {
+        for (String generator : GENERATORS) {
+            RandomSource random = RandomSource.create(generator, 13);
+
+            random.nextExponential();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(random);
+            }
+
+            RandomSource copy;
+
+            try (
+                ObjectInputStream in = new ObjectInputStream(
+                    new ByteArrayInputStream(bytes.toByteArray()))
+            ) {
+                copy = (RandomSource) in.readObject();
+            }
+
+            for (int k = 0; k < 100; k++) {
+                assertEquals(
+                    generator, random.nextExponential(),
+                    copy.nextExponential(), 0);
+            }
+        }
+    }
+}
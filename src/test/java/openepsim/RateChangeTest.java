@@ -0,0 +1,88 @@
+package openepsim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import org.apache.commons.math3.random.MersenneTwister;
+
+public class RateChangeTest {
+    private SimOptions loadTestOptions(String testName) throws Exception {
+        return SimOptions.fromJSON(getClass().getResourceAsStream(testName));
+    }
+
+    /**
+     * The slots of a spec whose rates are replaced part way through
+     * match a full recalculation, for each engine.
+     */
+    @Test
+    public void setRatesInvariant() throws Exception {
+        checkSetRates(false);
+        checkSetRates(true);
+    }
+
+    private void checkSetRates(boolean useTree) throws Exception {
+        SimOptions options = loadTestOptions("asep-test-options.json");
+
+        LatticeConfiguration config = new LatticeConfiguration(
+            options.L, options.nstates, options.initialState);
+        config.setMaxWindow(options.getMaxWindow());
+
+        Transitions transitions
+            = new Transitions(config, options.transitions, useTree);
+
+        double bound = transitions.getBoundingRate();
+
+        MersenneTwister random = new MersenneTwister(8);
+
+        double [][] rates = {
+            {0, 0, 0, 0},
+            {0, 0, 2, 0},
+            {0, 0.5, 0, 0},
+            {0, 0, 0, 0}
+        };
+
+        for (int step = 0; step < 1000; step++) {
+            transitions.doTransition(
+                random.nextDouble() * transitions.getExitRate());
+        }
+
+        transitions.setRates(1, rates);
+
+        assertTrue(transitions.checkInvariants(1e-9));
+
+        // The bulk spec covers 14 sites, with maximum rate up from 1 to 2
+        assertEquals(bound + 14, transitions.getBoundingRate(), 1e-12);
+
+        for (int step = 0; step < 1000; step++) {
+            transitions.doTransition(
+                random.nextDouble() * transitions.getExitRate());
+        }
+
+        assertTrue(transitions.checkInvariants(1e-9));
+    }
+
+    /**
+     * The new rates apply from exactly the scheduled time.
+     */
+    @Test
+    public void quench() throws Exception {
+        SimOptions options = loadTestOptions("quench-test-options.json");
+
+        DensityStatistics stats = new DensityStatistics(
+            options.L, options.nstates, options.transitions);
+
+        new OpenEPSimulation(options.seed).simulate(options, stats);
+
+        double [] density = stats.getDensityProfile(1);
+        double mean = 0;
+
+        for (int i = 0; i < options.L; i++) {
+            mean += density[i];
+        }
+
+        mean /= options.L;
+
+        assertEquals(0.49, mean, 0.005);
+    }
+}
@@ -0,0 +1,122 @@
+package openepsim;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class ReplicaRunnerTest {
+    /**
+     * Load test options, with replicas, threads and seed set.
+     */
+    private SimOptions loadReplicaOptions(
+        String testName, int replicas, int threads, long seed
+    ) throws Exception {
+        return TestOptions.load(testName,
+            "replicas", replicas, "threads", threads, "seed", seed);
+    }
+
+    @Test
+    public void repeatableAcrossThreadCounts() throws Exception {
+        ReplicaRunner one = new ReplicaRunner(
+            loadReplicaOptions("asep-test-options.json", 6, 1, 17));
+        ReplicaRunner three = new ReplicaRunner(
+            loadReplicaOptions("asep-test-options.json", 6, 3, 17));
+
+        one.run();
+        three.run();
+
+        assertEquals(
+            one.getMergedStatistics().summary(),
+            three.getMergedStatistics().summary()
+        );
+        assertEquals(one.summary(), three.summary());
+    }
+
+    @Test
+    public void mergedMatchesSeparateRuns() throws Exception {
+        SimOptions options
+            = loadReplicaOptions("asep-test-options.json", 4, 2, 23);
+
+        ReplicaRunner runner = new ReplicaRunner(options);
+        runner.run();
+
+        DensityStatistics merged = runner.getMergedStatistics();
+
+        double totalTime = 0;
+        double [] density = new double[options.L];
+        int count = 0;
+
+        for (int k = 0; k < options.replicas; k++) {
+            OpenEPSimulation sim = new OpenEPSimulation(
+                ReplicaRunner.replicaSeed(options.seed, k));
+
+            DensityStatistics stats = new DensityStatistics(
+                options.L, options.nstates, options.transitions);
+
+            sim.simulate(options, stats);
+
+            double [] profile = stats.getDensityProfile(1);
+
+            for (int i = 0; i < options.L; i++) {
+                density[i] += profile[i] * stats.getTotalTime();
+            }
+
+            totalTime += stats.getTotalTime();
+            count += stats.getTransitionCount(0, 1, 0);
+        }
+
+        for (int i = 0; i < options.L; i++) {
+            density[i] /= totalTime;
+        }
+
+        assertEquals(totalTime, merged.getTotalTime(), 1e-9);
+        assertArrayEquals(density, merged.getDensityProfile(1), 1e-9);
+        assertEquals(count, merged.getTransitionCount(0, 1, 0));
+    }
+
+    /**
+     * The merged statistics have no batch means errors, so the rate
+     * errors are estimated over the replicas.
+     */
+    @Test
+    public void rateErrorsOverReplicas() throws Exception {
+        SimOptions options
+            = loadReplicaOptions("asep-test-options.json", 5, 2, 31);
+
+        ReplicaRunner runner = new ReplicaRunner(options);
+        runner.run();
+
+        double [] rates = new double[options.replicas];
+        double mean = 0;
+
+        for (int k = 0; k < options.replicas; k++) {
+            DensityStatistics stats = runner.getStatistics(k);
+
+            rates[k] = stats.getTransitionCount(2, 0, 1) / stats.getTotalTime();
+            mean += rates[k] / options.replicas;
+        }
+
+        double sumSq = 0;
+
+        for (double rate : rates) {
+            sumSq += (rate - mean) * (rate - mean);
+        }
+
+        double [][][] errors = runner.getRateErrors();
+
+        assertEquals(
+            Math.sqrt(sumSq / (options.replicas - 1) / options.replicas),
+            errors[2][0][1], 1e-12);
+        assertEquals(null, errors[1]);
+
+        JsonObject summary = new JsonParser().parse(runner.summary())
+            .getAsJsonObject();
+
+        assertEquals(errors[2][0][1], summary.getAsJsonArray("rateError")
+            .get(2).getAsJsonArray().get(0).getAsJsonArray().get(1)
+            .getAsDouble(), 0);
+    }
+}
@@ -0,0 +1,133 @@
+package openepsim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import org.apache.commons.math3.random.MersenneTwister;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class SimCountersTest {
+    private SimOptions loadTestOptions(String testName) throws Exception {
+        return SimOptions.fromJSON(getClass().getResourceAsStream(testName));
+    }
+
+    /**
+     * Run steps transitions by hand, counting them.
+     */
+    private SimCounters countSteps(
+        SimOptions options, boolean useTree, int steps) {
+        LatticeConfiguration config = new LatticeConfiguration(
+            options.L, options.nstates, options.initialState);
+        config.setMaxWindow(options.getMaxWindow());
+
+        Transitions transitions
+            = new Transitions(config, options.transitions, useTree);
+
+        SimCounters counters = new SimCounters();
+        transitions.setCounters(counters);
+
+        MersenneTwister random = new MersenneTwister(5);
+
+        for (int i = 0; i < steps; i++) {
+            transitions.doTransition(
+                random.nextDouble() * transitions.getExitRate());
+        }
+
+        return counters;
+    }
+
+    @Test
+    public void countsEvents() throws Exception {
+        SimOptions options = loadTestOptions("asep-test-options.json");
+
+        int steps = 10000;
+
+        SimCounters list = countSteps(options, false, steps);
+
+        assertEquals(steps, list.getEvents());
+        assertEquals(steps / SimCounters.TIMING_INTERVAL, list.timedEvents);
+        assertTrue(list.getSlotsScanned() >= steps);
+        assertTrue(list.getSlotsScanned() <= (long) steps * options.L);
+        assertTrue(list.getSlotsRecalculated() > 0);
+        assertEquals(list.getSlotsCleared(), list.getSlotsRecalculated());
+
+        // Same random numbers, so the same trajectory and updates
+        SimCounters tree = countSteps(options, true, steps);
+
+        assertEquals(steps, tree.getEvents());
+        assertEquals(list.getSlotsRecalculated(), tree.getSlotsRecalculated());
+        assertEquals(0, tree.getSlotsScanned() % steps);
+
+        SimCounters sum = new SimCounters();
+        sum.add(list);
+        sum.add(tree);
+
+        assertEquals(2 * steps, sum.getEvents());
+    }
+
+    /**
+     * Instrumenting a run doesn't change its results, and adds the
+     * counters to the output.
+     */
+    @Test
+    public void instrumentedRunMatches() throws Exception {
+        JsonObject json = TestOptions.json("asep-test-options.json",
+            "seed", 11, "tSkip", 100);
+
+        JsonObject plain = run(json);
+
+        json.addProperty("instrument", true);
+
+        JsonObject instrumented = run(json);
+
+        assertEquals(plain.get("results"), instrumented.get("results"));
+        assertTrue(!plain.has("counters"));
+
+        JsonObject counters = instrumented.getAsJsonObject("counters");
+
+        assertTrue(counters.get("events").getAsLong() > 0);
+        assertTrue(counters.get("recordedSeconds").getAsDouble() > 0);
+    }
+
+    /**
+     * The counters and acceptance ratio leave out the tSkip part, and for
+     * rejection sampling slotsScanned counts the candidates.
+     */
+    @Test
+    public void rejectionCountsRecordedPart() throws Exception {
+        JsonObject json = TestOptions.json("asep-test-options.json",
+            "seed", 3, "engine", "rejection", "instrument", true,
+            "tSkip", 500);
+
+        JsonObject output = run(json);
+        JsonObject counters = output.getAsJsonObject("counters");
+
+        long events = counters.get("events").getAsLong();
+
+        assertTrue(events > 0);
+        assertEquals(
+            1 / output.get("acceptanceRatio").getAsDouble(),
+            counters.get("meanSlotsScanned").getAsDouble(), 1e-9);
+
+        // Nothing recorded
+        json.addProperty("tSkip", 1000);
+
+        output = run(json);
+        counters = output.getAsJsonObject("counters");
+
+        assertEquals(0, counters.get("events").getAsLong());
+        assertEquals(0, counters.get("slotsScanned").getAsLong());
+        assertEquals(0, output.get("acceptanceRatio").getAsDouble(), 0);
+    }
+
+    private JsonObject run(JsonObject json) throws Exception {
+        SimOptions options = TestOptions.build(json);
+
+        return new JsonParser().parse(
+            OpenEPSimulation.runToJSON(options, System.currentTimeMillis())
+        ).getAsJsonObject();
+    }
+}
@@ -0,0 +1,61 @@
+package openepsim;
+
+import java.io.InputStreamReader;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Options for tests: a fixture file (in the openepsim test resources)
+ * with some of its options overridden.
+ */
+final class TestOptions {
+    private TestOptions() {
+    }
+
+    /**
+     * The fixture as JSON, with overrides given as name, value pairs.
+     * Values are numbers, booleans, strings or JSON elements.
+     */
+    static JsonObject json(String fixture, Object... overrides) {
+        JsonObject json = new JsonParser().parse(
+            new InputStreamReader(
+                TestOptions.class.getResourceAsStream(fixture))
+        ).getAsJsonObject();
+
+        for (int k = 0; k < overrides.length; k += 2) {
+            String name = (String) overrides[k];
+            Object value = overrides[k + 1];
+
+            if (value instanceof JsonElement) {
+                json.add(name, (JsonElement) value);
+            } else if (value instanceof Number) {
+                json.addProperty(name, (Number) value);
+            } else if (value instanceof Boolean) {
+                json.addProperty(name, (Boolean) value);
+            } else if (value instanceof String) {
+                json.addProperty(name, (String) value);
+            } else {
+                throw new IllegalArgumentException(name + ": bad value");
+            }
+        }
+
+        return json;
+    }
+
+    /**
+     * The options of the fixture, with overrides as for json().
+     */
+    static SimOptions load(String fixture, Object... overrides)
+        throws Exception {
+        return build(json(fixture, overrides));
+    }
+
+    /**
+     * The options given by json.
+     */
+    static SimOptions build(JsonObject json) throws Exception {
+        return SimOptions.fromJSON(json.toString());
+    }
+}
@@ -0,0 +1,70 @@
+package openepsim;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TrajectoryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Replaying the trajectory gives the final configuration, and the
+     * same density profile as recorded during the run.
+     */
+    @Test
+    public void replayMatchesRun() throws Exception {
+        File file = folder.newFile("trajectory.bin");
+
+        SimOptions options = TestOptions.load("asep-test-options.json",
+            "seed", 5, "tMax", 500, "tSkip", 100,
+            "trajectoryFile", file.getPath());
+
+        OpenEPSimulation sim = new OpenEPSimulation(options.seed);
+
+        DensityStatistics stats = new DensityStatistics(
+            options.L, options.nstates, options.transitions);
+
+        LatticeConfiguration config = sim.simulate(options, stats);
+
+        TrajectoryReader reader = new TrajectoryReader(file.getPath());
+
+        reader.advanceTo(options.tSkip);
+
+        double [] density = new double[options.L];
+        double t = options.tSkip;
+
+        while (true) {
+            double tLast = t;
+            int [] sites = reader.getConfiguration().toArray();
+
+            boolean more = reader.next();
+
+            t = more ? reader.getTime() : options.tMax;
+
+            for (int i = 0; i < options.L; i++) {
+                if (sites[i] == 1) {
+                    density[i] += t - tLast;
+                }
+            }
+
+            if (!more) {
+                break;
+            }
+        }
+
+        reader.close();
+
+        for (int i = 0; i < options.L; i++) {
+            density[i] /= options.tMax - options.tSkip;
+        }
+
+        assertArrayEquals(
+            config.toArray(), reader.getConfiguration().toArray());
+        assertArrayEquals(stats.getDensityProfile(1), density, 1e-9);
+    }
+}
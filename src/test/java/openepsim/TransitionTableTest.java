@@ -0,0 +1,152 @@
+package openepsim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class TransitionTableTest {
+    // The negative rate and the diagonal entry are dropped
+    private static final double [][] RATES = {
+        {0, 0, 0.5, 0},
+        {0, 0, 1, -1},
+        {0, 0.3, 0, 0},
+        {0.2, 0, 0.25, 5}
+    };
+
+    @Test
+    public void keepsPositiveRates() {
+        TransitionTable table = new TransitionTable(RATES);
+
+        assertEquals(4, table.size());
+
+        assertEquals(0.2, table.getExitRate(0), 0);
+        assertEquals(0.3, table.getExitRate(1), 0);
+        assertEquals(1.75, table.getExitRate(2), 0);
+        assertEquals(0, table.getExitRate(3), 0);
+        assertEquals(1.75, table.getMaxRate(), 0);
+
+        // Targets of configuration 2 in order
+        assertEquals(3, table.getStart(3) - table.getStart(2));
+        assertEquals(0, table.getTarget(table.getStart(2)));
+        assertEquals(1, table.getTarget(table.getStart(2) + 1));
+        assertEquals(3, table.getTarget(table.getStart(2) + 2));
+        assertEquals(0.25, table.getRate(table.getStart(2) + 2), 0);
+
+        assertEquals(table.getStart(3), table.getStart(4));
+    }
+
+    @Test
+    public void selectTarget() {
+        TransitionTable table = new TransitionTable(RATES);
+
+        assertEquals(3, table.selectTarget(0, 0.1));
+        assertEquals(0, table.selectTarget(2, 0.49));
+        assertEquals(1, table.selectTarget(2, 0.5));
+        assertEquals(1, table.selectTarget(2, 1.49));
+        assertEquals(3, table.selectTarget(2, 1.5));
+
+        // Rounding past the total picks the last target
+        assertEquals(3, table.selectTarget(2, 1.75));
+
+        // No targets
+        assertEquals(-1, table.selectTarget(3, 0));
+    }
+
+    /**
+     * RATES as sparse entries, in a different order, with one rate split
+     * into two entries, a diagonal entry, and a zero rate.
+     */
+    @Test
+    public void sparseMatchesDense() {
+        int [] from = {2, 1, 3, 2, 0, 2, 2, 0};
+        int [] to = {3, 2, 3, 0, 3, 1, 0, 1};
+        double [] rate = {0.25, 0.3, 5, 0.25, 0.2, 1, 0.25, 0};
+
+        TransitionTable dense = new TransitionTable(RATES);
+        TransitionTable sparse = new TransitionTable(4, from, to, rate);
+
+        assertEquals(dense.size(), sparse.size());
+        assertEquals(dense.getMaxRate(), sparse.getMaxRate(), 0);
+
+        for (int c = 0; c <= dense.size(); c++) {
+            assertEquals(dense.getStart(c), sparse.getStart(c));
+        }
+
+        for (int k = 0; k < dense.getStart(dense.size()); k++) {
+            assertEquals(dense.getTarget(k), sparse.getTarget(k));
+            assertEquals(dense.getRate(k), sparse.getRate(k), 0);
+        }
+    }
+
+    @Test
+    public void parseConfiguration() {
+        assertEquals(2, SimOptions.parseConfiguration("10", 2, 2));
+        assertEquals(2, SimOptions.parseConfiguration("1 0", 2, 2));
+        assertEquals(11, SimOptions.parseConfiguration("11", 12, 1));
+        assertEquals(131, SimOptions.parseConfiguration("10, 11", 12, 2));
+
+        assertEquals(-1, SimOptions.parseConfiguration("12", 2, 2));
+        assertEquals(-1, SimOptions.parseConfiguration("100", 2, 2));
+        assertEquals(-1, SimOptions.parseConfiguration("1x", 2, 2));
+        assertEquals(-1, SimOptions.parseConfiguration(null, 2, 2));
+    }
+
+    /**
+     * Rates given as rules give the same run as the dense matrix.
+     */
+    @Test
+    public void rulesMatchRates() throws Exception {
+        String dense = run("asep-test-options.json");
+        String rules = run("asep-rules-test-options.json");
+
+        assertEquals(dense, rules);
+        assertTrue(dense.contains("counts"));
+    }
+
+    /**
+     * Counts are dense in the local configurations, so counting is
+     * refused for a large window, which rules alone would allow.
+     */
+    @Test
+    public void countLimitsConfigurations() throws Exception {
+        SimOptions.fromJSON(countedWindow(10));
+
+        try {
+            SimOptions.fromJSON(countedWindow(11));
+        } catch (Exception e) {
+            return;
+        }
+
+        assertTrue(false);
+    }
+
+    /**
+     * Options counting a single injection rule of the given window.
+     */
+    private static String countedWindow(int window) {
+        String rest = new String(new char[window - 1]).replace('\0', '0');
+
+        return "{\"L\": 20, \"nstates\": 2, \"tMax\": 1,"
+            + " \"transitions\": [{\"window\": " + window + ","
+            + " \"from\": 1, \"to\": 1, \"count\": true, \"rules\": ["
+            + "{\"from\": \"0" + rest + "\", \"to\": \"1" + rest + "\","
+            + " \"rate\": 1}]}]}";
+    }
+
+    private String run(String optionsFile) throws Exception {
+        SimOptions options = SimOptions.fromJSON(
+            getClass().getResourceAsStream(optionsFile));
+
+        OpenEPSimulation sim = new OpenEPSimulation(17);
+
+        DensityStatistics stats = new DensityStatistics(
+            options.L, options.nstates, options.transitions);
+
+        sim.simulate(options, stats);
+
+        return stats.summary();
+    }
+}
@@ -3,11 +3,16 @@ package openepsim;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 
+import org.apache.commons.math3.random.MersenneTwister;
+
 public class TransitionsTest {
     private SimOptions loadTestOptions(String testName) throws Exception {
         return SimOptions.fromJSON(getClass().getResourceAsStream(testName));
@@ -97,12 +102,536 @@ public class TransitionsTest {
         );
     }
 
+    @Test
+    public void treeAsepInitialTransitions() throws Exception {
+        initialTransitions(
+            "asep-test-options.json", "asep-test-out1.json", true);
+    }
+
+    @Test
+    public void treeAsepDoBulkTransition() throws Exception {
+        String thisTransition = "{\"rate\":1.0,\"c\":1,\"position\":8,\"window\":2,\"ispec\":1,\"fromC\":2}";
+
+        doTransition(
+            "asep-test-options.json",
+            thisTransition,
+            "asep-test-out2.json",
+            true
+        );
+    }
+
+    @Test
+    public void treeLeftpermDoBulkTransition() throws Exception {
+        String thisTransition = "{\"rate\":1.0,\"c\":5,\"position\":7,\"window\":2,\"ispec\":1,\"fromC\":7}";
+
+        doTransition(
+            "leftperm-test-options.json",
+            thisTransition,
+            "leftperm-test-out2.json",
+            true
+        );
+    }
+
+    @Test
+    public void treeMatchesList() throws Exception {
+        checkAgainstList("asep-test-options.json", 10000);
+        checkAgainstList("leftperm-test-options.json", 10000);
+    }
+
+    @Test
+    public void exitRateInvariant() throws Exception {
+        checkInvariants("asep-test-options.json", 2000000, false);
+        checkInvariants("asep-test-options.json", 2000000, true);
+        checkInvariants("leftperm-test-options.json", 2000000, false);
+        checkInvariants("leftperm-test-options.json", 2000000, true);
+        checkInvariants("asepRing-options.json", 2000000, false);
+        checkInvariants("asepRing-options.json", 2000000, true);
+    }
 
+    @Test
+    public void periodicTreeMatchesList() throws Exception {
+        checkAgainstList("asepRing-options.json", 10000);
+    }
+
+    /**
+     * treeMatchesList() only checks the two modes against each other.
+     * Check each against the allowed transitions enumerated directly
+     * from the lattice and the rate matrices.
+     */
+    @Test
+    public void selectionMatchesEnumeration() throws Exception {
+        for (boolean useTree : new boolean [] {false, true}) {
+            checkSelection("asep-test-options.json", useTree);
+            checkSelection("leftperm-test-options.json", useTree);
+            checkSelection("asepRing-options.json", useTree);
+        }
+    }
+
+    /**
+     * The allowed transitions from the state of config, found by brute
+     * force: the rate of each (spec, position, target), keyed as by
+     * transitionKey().
+     */
+    private Map<String, Double> enumerateTransitions(
+        SimOptions options, LatticeConfiguration config) {
+        Map<String, Double> rates = new HashMap<String, Double>();
 
+        int [] lattice = config.toArray();
+        int L = lattice.length;
+
+        for (int i = 0; i < options.transitions.length; i++) {
+            SimOptions.LocalTransitionSpec spec = options.transitions[i];
+
+            int from = spec.from < 0 ? spec.from + L : spec.from - 1;
+            int to = spec.to < 0 ? spec.to + L : spec.to - 1;
+
+            for (int j = from; j <= to; j++) {
+                int c = 0;
+
+                for (int k = 0; k < spec.window; k++) {
+                    c = options.nstates * c + lattice[(j + k) % L];
+                }
+
+                for (int n = 0; n < spec.rates.length; n++) {
+                    if (n != c && spec.rates[n][c] > 0) {
+                        rates.put(transitionKey(i, j, n), spec.rates[n][c]);
+                    }
+                }
+            }
+        }
+
+        return rates;
+    }
+
+    private String transitionKey(int spec, int position, int c) {
+        return spec + "/" + position + "/" + c;
+    }
+
+    /**
+     * With no transition allowed (here, one whose multiplier is zero)
+     * there is nothing to select, so doTransition() does nothing and
+     * the last transition is kept.
+     */
+    @Test
+    public void nothingAllowed() throws Exception {
+        SimOptions options = SimOptions.fromJSON(
+            "{\"L\": 3, \"nstates\": 2, \"transitions\": ["
+            + "{\"window\": 1, \"from\": 1, \"to\": 1,"
+            + " \"rates\": [[0, 0], [0.7, 0]]},"
+            + "{\"window\": 1, \"from\": 2, \"to\": -1,"
+            + " \"multipliers\": [0, 0],"
+            + " \"rates\": [[0, 0.5], [0.5, 0]]}],"
+            + " \"initialState\": [0, 1, 0]}");
+
+        for (boolean useTree : new boolean [] {false, true}) {
+            LatticeConfiguration config = new LatticeConfiguration(
+                options.L, options.nstates, options.initialState);
+            config.setMaxWindow(options.getMaxWindow());
+
+            Transitions transitions
+                = new Transitions(config, options.transitions, useTree);
+
+            // Inject at the left, after which nothing is allowed
+            assertTrue(transitions.doTransition(0));
+            assertEquals(0, transitions.getLastSpec());
+            assertEquals(0, transitions.getExitRate(), 1e-12);
+
+            String sites = config.toString();
+
+            for (double r : new double [] {0, 1e-17}) {
+                assertTrue(!transitions.doTransition(r));
+            }
+
+            assertEquals(sites, config.toString());
+            assertEquals(0, transitions.getLastSpec());
+            assertEquals(0, transitions.getLastFromConfiguration());
+            assertEquals(1, transitions.getLastConfiguration());
+        }
+    }
+
+    /**
+     * Rejection sampling selects each allowed transition for the share of
+     * the bounding rate given by its rate, and never a spec with no
+     * allowed transitions, even at the end of the range.
+     */
+    @Test
+    public void rejectionMatchesEnumeration() throws Exception {
+        SimOptions options = SimOptions.fromJSON(
+            "{\"L\": 6, \"nstates\": 2, \"transitions\": ["
+            + "{\"window\": 1, \"from\": 1, \"to\": 1,"
+            + " \"rates\": [[0, 0.4], [0.7, 0]]},"
+            + "{\"window\": 1, \"from\": 2, \"to\": -1,"
+            + " \"rates\": [[0, 0], [0, 0]]},"
+            + "{\"window\": 2, \"from\": 1, \"to\": -2,"
+            + " \"rates\": [[0, 0, 0, 0], [0, 0, 1, 0], [0, 0.3, 0, 0],"
+            + " [0, 0, 0, 0]]},"
+            + "{\"window\": 1, \"from\": -1, \"to\": -1,"
+            + " \"multipliers\": [0],"
+            + " \"rates\": [[0, 0.5], [0.5, 0]]}],"
+            + " \"initialState\": [0, 1, 1, 0, 1, 0]}");
+
+        LatticeConfiguration config = new LatticeConfiguration(
+            options.L, options.nstates, options.initialState);
+        config.setMaxWindow(options.getMaxWindow());
+
+        Transitions transitions = new Transitions(config, options.transitions);
+
+        Map<String, Double> rates = enumerateTransitions(options, config);
+        rates.remove(transitionKey(3, 5, 1));
+
+        double bound = transitions.getBoundingRate();
+
+        int points = 20000;
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+
+        for (int k = 0; k < points; k++) {
+            double r = (k + 0.5) / points * bound;
+
+            LatticeConfiguration copyConfig = new LatticeConfiguration(config);
+            Transitions copy = new Transitions(transitions, copyConfig);
+
+            if (!copy.tryTransition(r, null)) {
+                continue;
+            }
+
+            String key = transitionKey(copy.getLastSpec(),
+                copy.getLastPosition(), copy.getLastConfiguration());
+
+            assertTrue(key, rates.containsKey(key));
+            assertTrue(copy.checkInvariants(1e-9));
+
+            counts.merge(key, 1, Integer::sum);
+        }
+
+        for (Map.Entry<String, Double> entry : rates.entrySet()) {
+            Integer count = counts.get(entry.getKey());
+
+            assertEquals(entry.getKey(), entry.getValue() / bound * points,
+                count == null ? 0 : count, 1.5);
+        }
+
+        // r rounded up to the bound falls past the last spec with any
+        // transitions, on one with none
+        assertTrue(!transitions.tryTransition(bound, null));
+        assertTrue(transitions.checkInvariants(1e-9));
+    }
+
+    /**
+     * After some random transitions, perform the transition selected by
+     * each of a fine grid of values of r on a copy of the state: each
+     * allowed transition must be selected for the share of the grid given
+     * by its rate.
+     */
+    private void checkSelection(String optionsFile, boolean useTree)
+        throws Exception {
+        SimOptions options = loadTestOptions(optionsFile);
+
+        LatticeConfiguration config = new LatticeConfiguration(
+            options.L, options.nstates, options.initialState,
+            LatticeConfiguration.isPackedByDefault(options.nstates),
+            options.periodic);
+        config.setMaxWindow(options.getMaxWindow());
+
+        Transitions transitions
+            = new Transitions(config, options.transitions, useTree);
+
+        MersenneTwister random = new MersenneTwister(99);
+
+        for (int i = 0; i < 1000; i++) {
+            transitions.doTransition(
+                random.nextDouble() * transitions.getExitRate());
+        }
+
+        Map<String, Double> rates = enumerateTransitions(options, config);
+
+        double exitRate = 0;
+
+        for (double rate : rates.values()) {
+            exitRate += rate;
+        }
+
+        assertEquals(exitRate, transitions.getExitRate(), 1e-9);
+
+        int points = 20000;
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+
+        for (int k = 0; k < points; k++) {
+            LatticeConfiguration copyConfig = new LatticeConfiguration(config);
+            Transitions copy = new Transitions(transitions, copyConfig);
+
+            copy.doTransition((k + 0.5) / points * copy.getExitRate());
+
+            String key = transitionKey(copy.getLastSpec(),
+                copy.getLastPosition(), copy.getLastConfiguration());
+
+            assertTrue(key, rates.containsKey(key));
+
+            counts.merge(key, 1, Integer::sum);
+        }
+
+        for (Map.Entry<String, Double> entry : rates.entrySet()) {
+            Integer count = counts.get(entry.getKey());
+
+            assertEquals(entry.getKey(), entry.getValue() / exitRate * points,
+                count == null ? 0 : count, 1.5);
+        }
+    }
+
+    /**
+     * One bulk hopping spec per bond, so most specs are far from any
+     * given transition, and recalculation relies on the index of specs by
+     * site range.
+     */
+    @Test
+    public void perSiteSpecsInvariant() throws Exception {
+        for (boolean periodic : new boolean [] {false, true}) {
+            SimOptions options = perSiteOptions(300, periodic);
+
+            checkInvariants(options, 200000, false);
+            checkInvariants(options, 200000, true);
+        }
+    }
+
+    private SimOptions perSiteOptions(int L, boolean periodic)
+        throws Exception {
+        StringBuilder json = new StringBuilder();
+
+        json.append("{\"L\": " + L + ", \"nstates\": 2, \"periodic\": "
+            + periodic + ", \"transitions\": [");
+
+        String boundary = "{\"window\": 1, \"from\": %d, \"to\": %d,"
+            + " \"rates\": [[0, 0.5], [0.5, 0]]}";
+        String bulk = "{\"window\": 2, \"from\": %d, \"to\": %d,"
+            + " \"rates\": [[0, 0, 0, 0], [0, 0, %s, 0], [0, 0.2, 0, 0],"
+            + " [0, 0, 0, 0]]},";
+
+        int bonds = periodic ? L : L - 1;
+
+        for (int k = 1; k <= bonds; k++) {
+            json.append(String.format(bulk, k, k, 1 + 0.01 * k));
+        }
+
+        json.append(String.format(boundary, 1, 1));
+        json.append("], \"initialState\": [1, 0, 1, 1, 0, 0, 1]}");
+
+        return SimOptions.fromJSON(json.toString());
+    }
+
+    /**
+     * Per-site multipliers scale every rate of the spec at that position.
+     */
+    @Test
+    public void multipliersScaleRates() throws Exception {
+        SimOptions options = SimOptions.fromJSON(
+            "{\"L\": 4, \"nstates\": 2, \"transitions\": ["
+            + "{\"window\": 1, \"from\": 1, \"to\": -1,"
+            + " \"multipliers\": [1, 2, 0, 0.5],"
+            + " \"rates\": [[0, 0.3], [1, 0]]}],"
+            + " \"initialState\": [0, 1, 0, 1]}");
+
+        LatticeConfiguration config = new LatticeConfiguration(
+            options.L, options.nstates, options.initialState);
+        config.setMaxWindow(options.getMaxWindow());
+
+        Transitions transitions = new Transitions(config, options.transitions);
+
+        assertEquals(1 + 2 * 0.3 + 0 + 0.5 * 0.3, transitions.getExitRate(),
+            1e-12);
+        // Rejection bounds every position by the largest multiplier
+        assertEquals(4 * 2, transitions.getBoundingRate(), 1e-12);
+
+        String [] expected = {
+            "{\"rate\":0.15,\"c\":0,\"position\":3,\"window\":1,"
+                + "\"ispec\":0,\"fromC\":1}",
+            "{\"rate\":0.6,\"c\":0,\"position\":1,\"window\":1,"
+                + "\"ispec\":0,\"fromC\":1}",
+            "{\"rate\":1.0,\"c\":1,\"position\":0,\"window\":1,"
+                + "\"ispec\":0,\"fromC\":0}",
+        };
+
+        String [] output = transitions.transitionsJSON();
+        Arrays.sort(output);
+
+        // The position with multiplier 0 has a slot, but no transitions
+        assertArrayEquals(expected, removeZeroRates(output));
+    }
+
+    private String [] removeZeroRates(String [] transitions) {
+        return Arrays.stream(transitions)
+            .filter(t -> !t.startsWith("{\"rate\":0.0,"))
+            .toArray(String[]::new);
+    }
+
+    /**
+     * Seeded disorder gives the same multipliers every time, within the
+     * requested range, and the transitions stay consistent.
+     */
+    @Test
+    public void disorderInvariant() throws Exception {
+        String json = "{\"L\": 50, \"nstates\": 2, \"transitions\": ["
+            + "{\"window\": 2, \"from\": 1, \"to\": -2,"
+            + " \"disorder\": 0.5, \"disorderSeed\": 3,"
+            + " \"rates\": [[0, 0, 0, 0], [0, 0, 1, 0], [0, 0.3, 0, 0],"
+            + " [0, 0, 0, 0]]}],"
+            + " \"initialState\": [1, 1, 1, 1, 1, 1, 1, 1, 1, 1]}";
+
+        SimOptions options = SimOptions.fromJSON(json);
+
+        double [] multipliers = options.transitions[0].getMultipliers(50);
+
+        assertEquals(49, multipliers.length);
+        assertArrayEquals(multipliers,
+            SimOptions.fromJSON(json).transitions[0].getMultipliers(50), 0);
+
+        for (double m : multipliers) {
+            assertTrue(m >= 0.5 && m <= 1.5);
+        }
+
+        checkInvariants(options, 200000, false);
+        checkInvariants(options, 200000, true);
+    }
+
+    /**
+     * Check the exit rate still matches a full recalculation after
+     * many random transitions.
+     */
+    private void checkInvariants(String optionsFile, int steps,
+        boolean useTree) throws Exception {
+        checkInvariants(loadTestOptions(optionsFile), steps, useTree);
+    }
+
+    private void checkInvariants(SimOptions options, int steps,
+        boolean useTree) throws Exception {
+        LatticeConfiguration config = new LatticeConfiguration(
+            options.L, options.nstates, options.initialState,
+            LatticeConfiguration.isPackedByDefault(options.nstates),
+            options.periodic);
+        config.setMaxWindow(options.getMaxWindow());
+
+        Transitions transitions
+            = new Transitions(config, options.transitions, useTree);
+
+        MersenneTwister random = new MersenneTwister(4321);
+
+        for (int i = 0; i < steps; i++) {
+            transitions.doTransition(
+                random.nextDouble() * transitions.getExitRate());
+        }
+
+        assertTrue(transitions.checkInvariants(1e-9));
+    }
+
+    @Test
+    public void copiesEvolveIdentically() throws Exception {
+        for (boolean useTree : new boolean [] {false, true}) {
+            checkCopy("asep-test-options.json", useTree);
+            checkCopy("leftperm-test-options.json", useTree);
+            checkCopy("asepRing-options.json", useTree);
+        }
+    }
+
+    /**
+     * Copy a state part way through a run, both with the copy
+     * constructors and with copyFrom() onto a different state: each copy
+     * then follows the original exactly given the same random numbers,
+     * and doesn't share any state with it.
+     */
+    private void checkCopy(String optionsFile, boolean useTree)
+        throws Exception {
+        SimOptions options = loadTestOptions(optionsFile);
+
+        LatticeConfiguration config = new LatticeConfiguration(
+            options.L, options.nstates, options.initialState,
+            LatticeConfiguration.isPackedByDefault(options.nstates),
+            options.periodic);
+        config.setMaxWindow(options.getMaxWindow());
+
+        Transitions transitions
+            = new Transitions(config, options.transitions, useTree);
+
+        // Another state of the same lattice, to copy onto
+        LatticeConfiguration otherConfig = new LatticeConfiguration(config);
+        Transitions other = new Transitions(transitions, otherConfig);
+
+        MersenneTwister random = new MersenneTwister(77);
+
+        for (int i = 0; i < 500; i++) {
+            transitions.doTransition(
+                random.nextDouble() * transitions.getExitRate());
+            other.doTransition(random.nextDouble() * other.getExitRate());
+        }
+
+        LatticeConfiguration copyConfig = new LatticeConfiguration(config);
+        Transitions copy = new Transitions(transitions, copyConfig);
+
+        otherConfig.copyFrom(config);
+        other.copyFrom(transitions);
+
+        assertTrue(copy.checkInvariants(1e-9));
+        assertTrue(other.checkInvariants(1e-9));
+
+        for (int i = 0; i < 500; i++) {
+            double u = random.nextDouble();
+
+            transitions.doTransition(u * transitions.getExitRate());
+            copy.doTransition(u * copy.getExitRate());
+            other.doTransition(u * other.getExitRate());
+        }
+
+        assertArrayEquals(config.toArray(), copyConfig.toArray());
+        assertArrayEquals(config.toArray(), otherConfig.toArray());
+        assertEquals(transitions.getExitRate(), copy.getExitRate(), 0);
+
+        assertTrue(transitions.checkInvariants(1e-9));
+        assertTrue(copy.checkInvariants(1e-9));
+        assertTrue(other.checkInvariants(1e-9));
+    }
+
+    /**
+     * Run a number of random transitions in tree mode, then check the
+     * allowed transitions and exit rate against a list mode Transitions
+     * built from scratch on the resulting configuration.
+     */
+    private void checkAgainstList(String optionsFile, int steps)
+        throws Exception {
+        SimOptions options = loadTestOptions(optionsFile);
+
+        LatticeConfiguration config = new LatticeConfiguration(
+            options.L, options.nstates, options.initialState,
+            LatticeConfiguration.isPackedByDefault(options.nstates),
+            options.periodic);
+        config.setMaxWindow(options.getMaxWindow());
+
+        Transitions tree = new Transitions(config, options.transitions, true);
+
+        MersenneTwister random = new MersenneTwister(1234);
+
+        for (int i = 0; i < steps; i++) {
+            tree.doTransition(random.nextDouble() * tree.getExitRate());
+        }
+
+        Transitions list = new Transitions(config, options.transitions);
+
+        String [] treeTransitions = tree.transitionsJSON();
+        String [] listTransitions = list.transitionsJSON();
+        Arrays.sort(treeTransitions);
+        Arrays.sort(listTransitions);
+
+        assertArrayEquals(listTransitions, treeTransitions);
+        assertEquals(list.getExitRate(), tree.getExitRate(), 1e-9);
+    }
 
     private void initialTransitions(
         String optionsFile,
         String outputFile
+    ) throws Exception {
+        initialTransitions(optionsFile, outputFile, false);
+    }
+
+    private void initialTransitions(
+        String optionsFile,
+        String outputFile,
+        boolean useTree
     ) throws Exception {
         SimOptions options = loadTestOptions(optionsFile);
 
@@ -113,7 +642,8 @@ public class TransitionsTest {
             options.L, options.nstates, options.initialState);
         config.setMaxWindow(options.getMaxWindow());
 
-        Transitions transitions = new Transitions(config, options.transitions);
+        Transitions transitions
+            = new Transitions(config, options.transitions, useTree);
 
         String [] outputTransitions = transitions.transitionsJSON();
         Arrays.sort(outputTransitions);
@@ -125,6 +655,15 @@ public class TransitionsTest {
         String optionsFile,
         String transition,
         String outputFile
+    ) throws Exception{
+        doTransition(optionsFile, transition, outputFile, false);
+    }
+
+    private void doTransition(
+        String optionsFile,
+        String transition,
+        String outputFile,
+        boolean useTree
     ) throws Exception{
         SimOptions options = loadTestOptions(optionsFile);
 
@@ -135,7 +674,8 @@ public class TransitionsTest {
             options.L, options.nstates, options.initialState);
         config.setMaxWindow(options.getMaxWindow());
 
-        Transitions transitions = new Transitions(config, options.transitions);
+        Transitions transitions
+            = new Transitions(config, options.transitions, useTree);
 
         // Force the transition
         transitions.forceTransition(transition);
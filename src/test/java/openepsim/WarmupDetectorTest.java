@@ -0,0 +1,129 @@
+package openepsim;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class WarmupDetectorTest {
+    /**
+     * Add blocks of a + b exp(-i / tau) plus noise until relaxed,
+     * returning the number of blocks.
+     */
+    private int blocksToRelax(double b, double tau) {
+        Random random = new Random(3);
+
+        WarmupDetector detector = new WarmupDetector(1, 0.02);
+
+        for (int i = 0; i < 1000; i++) {
+            double x = 1 + b * Math.exp(-i / tau)
+                + 0.01 * random.nextGaussian();
+
+            detector.addBlock(new double [] {x});
+
+            if (detector.isRelaxed()) {
+                return detector.getNumBlocks();
+            }
+        }
+
+        return -1;
+    }
+
+    @Test
+    public void stationaryRelaxesImmediately() {
+        assertTrue(blocksToRelax(0, 1) < 2 * WarmupDetector.MIN_BLOCKS);
+    }
+
+    @Test
+    public void waitsForTransient() {
+        int n = blocksToRelax(2, 20);
+
+        // The transient is below the noise after about 100 blocks
+        assertTrue(n > 40);
+        assertTrue(n < 400);
+    }
+
+    @Test
+    public void constantNeverRelaxesEarly() {
+        WarmupDetector detector = new WarmupDetector(1, 0);
+
+        for (int i = 0; i < WarmupDetector.MIN_BLOCKS - 1; i++) {
+            detector.addBlock(new double [] {1});
+        }
+
+        assertFalse(detector.isRelaxed());
+
+        detector.addBlock(new double [] {1});
+
+        assertTrue(detector.isRelaxed());
+    }
+
+    /**
+     * Starting from a full lattice in the low density phase, recording
+     * starts after the density has relaxed.
+     */
+    @Test
+    public void simulationSkipsRelaxation() throws Exception {
+        JsonArray full = new JsonArray();
+
+        for (int i = 0; i < 400; i++) {
+            full.add(1);
+        }
+
+        JsonObject json = TestOptions.json("asepLD-options.json",
+            "initialState", full, "seed", 41,
+            "engine", SimOptions.ENGINE_TREE, "tMax", 40000, "tSkip", 20000,
+            "warmupInterval", 100);
+
+        // Watch the net current through the left boundary
+        json.getAsJsonArray("transitions").get(0).getAsJsonObject().add(
+            "currentWeights", new JsonParser().parse(
+                "[{\"from\": \"0\", \"to\": \"1\", \"weight\": 1},"
+                + " {\"from\": \"1\", \"to\": \"0\", \"weight\": -1}]"));
+
+        SimOptions options = TestOptions.build(json);
+
+        OpenEPSimulation sim = new OpenEPSimulation(options.seed);
+
+        DensityStatistics stats = new DensityStatistics(
+            options.L, options.nstates, options.transitions);
+
+        sim.simulate(options, stats);
+
+        double skip = sim.getSkipTime();
+
+        assertTrue(skip > 1000);
+        assertTrue(skip < options.tSkip);
+        assertEquals(options.tMax - skip, stats.getTotalTime(), 1e-6);
+
+        double [] profile = stats.getDensityProfile(1);
+        double density = 0;
+
+        for (int i = 0; i < profile.length; i++) {
+            density += profile[i] / profile.length;
+        }
+
+        assertEquals(0.25, density, 0.02);
+    }
+
+    /**
+     * Without tSkip, warmupInterval would silently do nothing.
+     */
+    @Test
+    public void requiresSkipTime() throws Exception {
+        try {
+            TestOptions.load("asepLD-options.json", "warmupInterval", 100);
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("tSkip"));
+            return;
+        }
+
+        assertTrue(false);
+    }
+}